@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Provides the input data for the benchmarks. If the system property {@code tychogfx.bench.input} points to a flatbuffer file,
+ * that file is used. Otherwise, a synthetic ObjDesc flatbuffer is generated by {@code ObjDescGenerator} whose size grows with
+ * the given scale. Synthetic data is generated from a fixed seed, so every run measures the same input.
+ * 
+ * @author Aurum
+ */
+final class BenchmarkData {
+    static final String INPUT_PROPERTY = "tychogfx.bench.input";
+    
+    private BenchmarkData() {
+        throw new IllegalStateException("Instantiation of this class is forbidden!");
+    }
+    
+    /**
+     * Returns the uncompressed flatbuffer data to be benchmarked.
+     * 
+     * @param scale the scale of the synthetic data, ignored if an input file is specified.
+     * @return the uncompressed flatbuffer data.
+     * @throws IOException if the input file cannot be read.
+     * @throws LZ10.LZ10Exception if the input file contains malformed LZ10 data.
+     */
+    static byte[] flatBuffer(int scale) throws IOException, LZ10.LZ10Exception {
+        String input = System.getProperty(INPUT_PROPERTY);
+        
+        if (input != null) {
+            byte[] data = Files.readAllBytes(new File(input).toPath());
+            return input.endsWith(".cat") ? LZ10.decompress(data) : data;
+        }
+        
+        // Every section grows linearly with the scale
+        return new ObjDescGenerator()
+                .setSeed(0x7C40L + scale)
+                .setFramesPerType(8 * scale)
+                .setFramesPerSequence(4 * scale)
+                .setCellSetsPerType(4 * scale)
+                .setTilesPerType(6 * scale)
+                .generate(false);
+    }
+    
+    /**
+     * Writes the flatbuffer data to a temporary file that is deleted when the JVM exits.
+     * 
+     * @param data the uncompressed flatbuffer data.
+     * @param compressed whether the file should be LZ10 compressed.
+     * @return the temporary file.
+     * @throws IOException if the file cannot be written.
+     */
+    static File writeTempFile(byte[] data, boolean compressed) throws IOException {
+        File file = File.createTempFile("tychogfx-bench", compressed ? ".cat" : ".dat");
+        file.deleteOnExit();
+        Files.write(file.toPath(), compressed ? LZ10.compress(data) : data);
+        return file;
+    }
+    
+    /**
+     * Creates a temporary folder to export frames into.
+     * 
+     * @return the temporary folder.
+     * @throws IOException if the folder cannot be created.
+     */
+    static File createTempFolder() throws IOException {
+        File folder = Files.createTempDirectory("tychogfx-bench").toFile();
+        folder.deleteOnExit();
+        return folder;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the complete path from a flatbuffer file to exported PNG files, as done by the batch export, and the path from a
+ * file to a fully prerendered ObjDesc, as done when opening a file in the viewer.
+ * 
+ * @author Aurum
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndBenchmark {
+    @Param({"1", "4"})
+    public int scale;
+    
+    @Param({"false", "true"})
+    public boolean compressed;
+    
+    private File file, folder;
+    
+    @Setup
+    public void setup() throws IOException, LZ10.LZ10Exception {
+        file = BenchmarkData.writeTempFile(BenchmarkData.flatBuffer(scale), compressed);
+        folder = BenchmarkData.createTempFolder();
+    }
+    
+    @Benchmark
+    public ObjDesc open() throws IOException, LZ10.LZ10Exception {
+        ObjDesc objdesc = ObjDesc.unpackObjDesc(FlatBuffer.unpackFlatBuffer(file));
+        objdesc.setPaletteOffsetAndPrerenderAllFrames(0);
+        return objdesc;
+    }
+    
+    @Benchmark
+    public boolean export() throws IOException, LZ10.LZ10Exception {
+        ObjDesc objdesc = ObjDesc.unpackObjDesc(FlatBuffer.mapFlatBuffer(file));
+        return ObjDescDumper.prepareAnimationTypes(objdesc, folder.getPath()).run();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures encoding prerendered frames as PNG images with {@code IndexedPngWriter} and with {@code ImageIO}, as well as
+ * dumping all frames into files. The scores are given per ObjDesc, not per frame.
+ * 
+ * @author Aurum
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExportBenchmark {
+    @Param({"1", "4"})
+    public int scale;
+    
+    @Param({"1", "6"})
+    public int level;
+    
+    private ObjDesc objdesc;
+    private List<ObjDescFrame> frames;
+    private File folder;
+    
+    @Setup
+    public void setup() throws IOException, LZ10.LZ10Exception {
+        objdesc = ObjDesc.unpackObjDesc(FlatBuffer.unpackFlatBuffer(ByteBuffer.wrap(BenchmarkData.flatBuffer(scale))));
+        objdesc.setPaletteOffsetAndPrerenderAllFrames(0);
+        frames = new ArrayList();
+        folder = BenchmarkData.createTempFolder();
+        
+        for (String type : objdesc.animationTypes()) {
+            for (List<ObjDescFrame> sequence : objdesc.animationSequences(type)) {
+                for (ObjDescFrame frame : sequence) {
+                    if (frame.indexedPixelData() != null)
+                        frames.add(frame);
+                }
+            }
+        }
+    }
+    
+    @Benchmark
+    public void encodeIndexed(Blackhole blackhole) {
+        for (ObjDescFrame frame : frames) {
+            byte[] pixels = frame.indexedPixelData();
+            blackhole.consume(IndexedPngWriter.encode(frame.bounds.width, frame.bounds.height, pixels,
+                    frame.indexedColorModel(), level));
+        }
+    }
+    
+    @Benchmark
+    public void encodeImageIO(Blackhole blackhole) throws IOException {
+        for (ObjDescFrame frame : frames) {
+            BufferedImage image = frame.prerendered();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", out);
+            blackhole.consume(out.toByteArray());
+        }
+    }
+    
+    @Benchmark
+    public boolean dumpAll() throws IOException {
+        ObjDescDumper.DumpTask task = ObjDescDumper.prepareAnimationTypes(objdesc, folder.getPath());
+        task.setCompressionLevel(level);
+        return task.run();
+    }
+}
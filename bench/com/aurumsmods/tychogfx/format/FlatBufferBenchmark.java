@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures loading flatbuffers from files, using streams and memory mapping, as well as unpacking them from memory. The files
+ * are served from the page cache after the first iteration, so this measures the cost of reading and unpacking rather than
+ * disk speed.
+ * 
+ * @author Aurum
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlatBufferBenchmark {
+    @Param({"1", "4", "16"})
+    public int scale;
+    
+    @Param({"false", "true"})
+    public boolean compressed;
+    
+    private File file;
+    private byte[] data;
+    
+    @Setup
+    public void setup() throws IOException, LZ10.LZ10Exception {
+        data = BenchmarkData.flatBuffer(scale);
+        file = BenchmarkData.writeTempFile(data, compressed);
+    }
+    
+    @Benchmark
+    public FlatBuffer unpackFile() throws IOException, LZ10.LZ10Exception {
+        return FlatBuffer.unpackFlatBuffer(file);
+    }
+    
+    @Benchmark
+    public FlatBuffer mapFile() throws IOException, LZ10.LZ10Exception {
+        return FlatBuffer.mapFlatBuffer(file);
+    }
+    
+    @Benchmark
+    public FlatBuffer unpackMemory() throws IOException {
+        return FlatBuffer.unpackFlatBuffer(ByteBuffer.wrap(data));
+    }
+}
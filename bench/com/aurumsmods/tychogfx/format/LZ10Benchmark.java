@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures LZ10 decompression, both in one piece and streamed through {@code LZ10InputStream}, as well as compression at
+ * different effort levels. The input is flatbuffer data, which compresses like the game's own files.
+ * 
+ * @author Aurum
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LZ10Benchmark {
+    @Param({"1", "4", "16"})
+    public int scale;
+    
+    @Param({"1", "6", "9"})
+    public int effort;
+    
+    private byte[] uncompressed, compressed;
+    
+    @Setup
+    public void setup() throws IOException, LZ10.LZ10Exception {
+        uncompressed = BenchmarkData.flatBuffer(scale);
+        compressed = LZ10.compress(uncompressed, effort);
+    }
+    
+    @Benchmark
+    public byte[] decompress() throws LZ10.LZ10Exception {
+        return LZ10.decompress(compressed);
+    }
+    
+    @Benchmark
+    public byte[] decompressStream() throws IOException, LZ10.LZ10Exception {
+        try (LZ10InputStream in = new LZ10InputStream(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+    
+    @Benchmark
+    public byte[] compress() {
+        return LZ10.compress(uncompressed, effort);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures parsing the ObjDesc sections of an unpacked flatbuffer, prerendering all of their frames and switching the palette
+ * offset. Frames cache their prerendered pixels, so prerendering is measured on freshly parsed frames.
+ * 
+ * @author Aurum
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjDescBenchmark {
+    @Param({"1", "4", "16"})
+    public int scale;
+    
+    private FlatBuffer flatbuffer;
+    private ObjDesc prerendered;
+    private int paletteOffset;
+    
+    @Setup
+    public void setup() throws IOException, LZ10.LZ10Exception {
+        flatbuffer = FlatBuffer.unpackFlatBuffer(ByteBuffer.wrap(BenchmarkData.flatBuffer(scale)));
+        prerendered = ObjDesc.unpackObjDesc(flatbuffer);
+        prerendered.setPaletteOffsetAndPrerenderAllFrames(0);
+        paletteOffset = 0;
+    }
+    
+    @Benchmark
+    public ObjDesc parse() {
+        return ObjDesc.unpackObjDesc(flatbuffer);
+    }
+    
+    @Benchmark
+    public ObjDesc parseAndPrerender() {
+        ObjDesc objdesc = ObjDesc.unpackObjDesc(flatbuffer);
+        objdesc.setPaletteOffsetAndPrerenderAllFrames(0);
+        return objdesc;
+    }
+    
+    @Benchmark
+    public void switchPalette(Blackhole blackhole) {
+        // Switch the palette and fetch every frame image, like the viewer does while previewing all frames
+        paletteOffset ^= 1;
+        prerendered.setPaletteOffset(paletteOffset);
+        
+        for (String type : prerendered.animationTypes()) {
+            for (List<ObjDescFrame> sequence : prerendered.animationSequences(type)) {
+                for (ObjDescFrame frame : sequence)
+                    blackhole.consume(frame.prerendered());
+            }
+        }
+    }
+}
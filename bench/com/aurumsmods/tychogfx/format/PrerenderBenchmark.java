@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the raster-level prerender kernel of {@code ObjDescFrame} against drawing every pixel with
+ * {@code BufferedImage.setRGB}, which is how frames were prerendered before.
+ * 
+ * @author Aurum
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrerenderBenchmark {
+    @Param({"1", "8", "32"})
+    public int numCells;
+    
+    @Param({"16", "64"})
+    public int cellSize;
+    
+    private ObjDescFrame frame;
+    
+    @Setup
+    public void setup() {
+        Random random = new Random(numCells * 31L + cellSize);
+        
+        ObjDescPalettes palettes = new ObjDescPalettes(1);
+        palettes.palettes[0] = new int[16];
+        for (int i = 0 ; i < 16 ; i++)
+            palettes.palettes[0][i] = 0xFF000000 | random.nextInt(0x1000000);
+        
+        frame = new ObjDescFrame();
+        frame.paletteContext = palettes;
+        frame.paletteSlots = List.of(0);
+        
+        ObjDescCells.Builder builder = new ObjDescCells.Builder();
+        byte[][] tiles = new byte[numCells][];
+        int dim = Integer.numberOfTrailingZeros(cellSize >> 3);
+        Rectangle bounds = null;
+        
+        for (int i = 0 ; i < numCells ; i++) {
+            int x = random.nextInt(64) - 32;
+            int y = random.nextInt(64) - 64;
+            tiles[i] = new byte[cellSize * cellSize / 2];
+            builder.add(i, dim, dim, 0, random.nextInt(4), x, y);
+            random.nextBytes(tiles[i]);
+            
+            Rectangle cellBounds = new Rectangle(x, y, cellSize, cellSize);
+            bounds = bounds == null ? cellBounds : bounds.union(cellBounds);
+        }
+        
+        frame.cells = builder.build(tiles);
+        frame.numCells = numCells;
+        frame.bounds = bounds;
+    }
+    
+    @Benchmark
+    public byte[] rasterKernel() {
+        return frame.prerenderIndexedPixels();
+    }
+    
+    @Benchmark
+    public BufferedImage perPixelSetRGB() {
+        Rectangle bounds = frame.bounds;
+        BufferedImage image = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_4BYTE_ABGR);
+        int[] palette = frame.paletteContext.getPalette(0);
+        
+        ObjDescCells cells = frame.cells;
+        
+        for (int cell = 0 ; cell < frame.numCells ; cell++) {
+            byte[] bitmap = cells.bitmap(cell);
+            int width = cells.width(cell);
+            int height = cells.height(cell);
+            int flipBits = cells.flipBits(cell);
+            int numPixels = bitmap.length * 2;
+            
+            for (int p = 0, colorID = 0 ; p < numPixels ; p++) {
+                if ((p & 1) == 0)
+                    colorID = bitmap[p >> 1];
+                
+                int rx = cells.x(cell) - bounds.x + mirror(p % width, (flipBits & 1) != 0, width);
+                int ry = cells.y(cell) - bounds.y + mirror(p / width, (flipBits & 2) != 0, height);
+                
+                if ((colorID & 15) != 0)
+                    image.setRGB(rx, ry, palette[colorID & 15]);
+                
+                colorID >>>= 4;
+            }
+        }
+        
+        return image;
+    }
+    
+    private static int mirror(int val, boolean flip, int dist) {
+        return flip ? dist - val - 1 : val;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures one update of many animation sequencers, either as individual {@code ObjDescSequencer} instances or all at once
+ * in an {@code ObjDescSequencerBank}. The sequencers play the sequences of the benchmarked flatbuffer in turn, every one
+ * starting at a different frame.
+ * 
+ * @author Aurum
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequencerBenchmark {
+    @Param({"1000", "100000"})
+    public int count;
+    
+    private ObjDescSequencer[] sequencers;
+    private ObjDescSequencerBank bank;
+    
+    @Setup
+    public void setup() throws IOException, LZ10.LZ10Exception {
+        ObjDesc objdesc = ObjDesc.unpackObjDesc(FlatBuffer.unpackFlatBuffer(ByteBuffer.wrap(BenchmarkData.flatBuffer(4))));
+        List<List<ObjDescFrame>> sequences = new ArrayList();
+        
+        for (String type : objdesc.animationTypes())
+            sequences.addAll(objdesc.animationSequences(type));
+        
+        sequencers = new ObjDescSequencer[count];
+        bank = new ObjDescSequencerBank(count);
+        
+        for (int i = 0 ; i < count ; i++) {
+            List<ObjDescFrame> sequence = sequences.get(i % sequences.size());
+            int startFrame = i % sequence.size();
+            
+            sequencers[i] = new ObjDescSequencer();
+            sequencers[i].setSequenceAndFrame(sequence, startFrame);
+            bank.add(sequence, startFrame);
+        }
+    }
+    
+    @Benchmark
+    public ObjDescSequencer[] updateIndividually() {
+        for (ObjDescSequencer sequencer : sequencers)
+            sequencer.update();
+        
+        return sequencers;
+    }
+    
+    @Benchmark
+    public ObjDescSequencerBank updateBank() {
+        bank.updateAll();
+        return bank;
+    }
+    
+    @Benchmark
+    public ObjDescSequencerBank updateBankParallel() {
+        bank.updateAll(true);
+        return bank;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a step action at a fixed rate on its own thread. Ticks are scheduled using {@code System.nanoTime} and the thread parks
+ * between ticks. While the scheduler is inactive, the thread is parked until it gets activated again, so it does not use any
+ * CPU time. If the thread falls behind, for example after the system has been suspended, only a limited number of missed steps
+ * is caught up and the remaining ones are dropped.
+ * 
+ * @author Aurum
+ */
+final class PlaybackScheduler {
+    /**
+     * A snapshot of the timing statistics of a {@code PlaybackScheduler}. Jitter is measured as the delay between the time a
+     * tick was due and the time it actually started.
+     */
+    static final class Statistics {
+        final long ticks, steps, droppedSteps;
+        final long meanJitterNanos, maxJitterNanos;
+        
+        private Statistics(long ticks, long steps, long droppedSteps, long meanJitterNanos, long maxJitterNanos) {
+            this.ticks = ticks;
+            this.steps = steps;
+            this.droppedSteps = droppedSteps;
+            this.meanJitterNanos = meanJitterNanos;
+            this.maxJitterNanos = maxJitterNanos;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d ticks, %d steps, %d dropped steps, jitter mean %.3f ms, max %.3f ms", ticks, steps,
+                    droppedSteps, meanJitterNanos / 1e6, maxJitterNanos / 1e6);
+        }
+    }
+    
+    private final long period;
+    private final int maxCatchUpSteps;
+    private final Runnable step, afterSteps;
+    private final Thread thread;
+    private volatile boolean running, active;
+    
+    // Timing statistics, guarded by this
+    private long ticks, steps, droppedSteps;
+    private long totalJitter, maxJitter;
+    
+    /**
+     * Creates a new inactive scheduler. On every tick, the step action is run once for every step that is due, followed by the
+     * after-steps action.
+     * 
+     * @param name the name of the scheduler thread.
+     * @param rate the number of steps per second.
+     * @param maxCatchUpSteps the maximum number of steps to be run in a single tick.
+     * @param step the action to be run for every step.
+     * @param afterSteps the action to be run after the steps of a tick.
+     */
+    PlaybackScheduler(String name, double rate, int maxCatchUpSteps, Runnable step, Runnable afterSteps) {
+        if (rate <= 0.0 || maxCatchUpSteps < 1)
+            throw new IllegalArgumentException("Rate and catch-up steps have to be positive.");
+        
+        this.period = Math.round(1e9 / rate);
+        this.maxCatchUpSteps = maxCatchUpSteps;
+        this.step = step;
+        this.afterSteps = afterSteps;
+        
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        running = false;
+        active = false;
+    }
+    
+    /**
+     * Starts the scheduler thread.
+     */
+    void start() {
+        running = true;
+        thread.start();
+    }
+    
+    /**
+     * Stops the scheduler thread. The thread finishes its current tick before it terminates.
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+    
+    /**
+     * Activates or deactivates the scheduler. When activated, the first step runs one period later.
+     * 
+     * @param enable whether steps should be run.
+     */
+    void setActive(boolean enable) {
+        if (active != enable) {
+            active = enable;
+            LockSupport.unpark(thread);
+        }
+    }
+    
+    /**
+     * Returns {@code true} if the scheduler runs steps.
+     * 
+     * @return {@code true} if the scheduler is active.
+     */
+    boolean isActive() {
+        return active;
+    }
+    
+    /**
+     * Returns the timing statistics collected so far.
+     * 
+     * @return the statistics snapshot.
+     */
+    synchronized Statistics statistics() {
+        return new Statistics(ticks, steps, droppedSteps, ticks > 0 ? totalJitter / ticks : 0L, maxJitter);
+    }
+    
+    /**
+     * Resets the timing statistics.
+     */
+    synchronized void resetStatistics() {
+        ticks = steps = droppedSteps = 0L;
+        totalJitter = maxJitter = 0L;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private void run() {
+        long next = System.nanoTime() + period;
+        
+        while(running) {
+            // Sleep until activated, then start with a fresh schedule
+            if (!active) {
+                LockSupport.park(this);
+                next = System.nanoTime() + period;
+                continue;
+            }
+            
+            // Park until the next tick is due. Wakeups may be spurious, so check again afterwards.
+            long now = System.nanoTime();
+            long wait = next - now;
+            
+            if (wait > 0L) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            
+            // Determine the number of due steps, but never catch up more than the allowed amount of steps
+            long late = -wait;
+            long due = 1L + late / period;
+            int count = (int)Math.min(due, maxCatchUpSteps);
+            next += due * period;
+            
+            for (int i = 0 ; i < count && active ; i++)
+                step.run();
+            
+            afterSteps.run();
+            record(late, count, due - count);
+        }
+    }
+    
+    private synchronized void record(long jitter, int count, long dropped) {
+        ticks++;
+        steps += count;
+        droppedSteps += dropped;
+        totalJitter += jitter;
+        maxJitter = Math.max(maxJitter, jitter);
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx;
+
+import com.aurumsmods.tychogfx.format.AssetIndex;
+import com.aurumsmods.tychogfx.format.FlatBuffer;
+import com.aurumsmods.tychogfx.format.LZ10;
+import com.aurumsmods.tychogfx.format.NitroFileSystem;
+import com.aurumsmods.tychogfx.format.ObjDesc;
+import com.aurumsmods.tychogfx.format.ObjDescDumper;
+import com.aurumsmods.tychogfx.format.ObjDescFrame;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * The headless command-line mode of this project. It processes entire directory trees of flatbuffers without requiring a
+ * display.
+ * 
+ * @author Aurum
+ */
+final class TychoCli {
+    private TychoCli() { throw new IllegalStateException(); }
+    
+    /**
+     * Runs the submitted tasks directly on the submitting thread. Workers use it to encode frames themselves instead of
+     * sharing another pool.
+     */
+    private static final ExecutorService CALLING_THREAD = new AbstractExecutorService() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+        
+        @Override
+        public void shutdown() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public List<Runnable> shutdownNow() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+        
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+        
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    };
+    
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: TychoGfx <command> [options]",
+            "",
+            "Commands:",
+            "  export [--threads <n>] [--level <0-9>] <input folder or *.nds> <output folder>",
+            "      Exports the frames of all ObjDesc animations in the *.dat and *.cat flatbuffers found in the input folder and",
+            "      its subfolders, or in the file system of the input ROM. Every flatbuffer is exported into its own folder,",
+            "      keeping the input's folder structure. The level sets the PNG compression level, lower levels export faster",
+            "      but produce larger files.",
+            "",
+            "  index <input folder> <index file>",
+            "      Creates or updates the index of the *.dat and *.cat flatbuffers found in the input folder and its subfolders.",
+            "      Only files that were added or modified since the last update are unpacked.",
+            "",
+            "  find <index file> [<animation type>]",
+            "      Lists the files that contain the specified animation type, for example ladder_upObjDesc, along with its",
+            "      directions, frames and palettes. Without a type, all indexed animation types are listed."
+    );
+    
+    /**
+     * Runs the command specified by the given arguments and returns the exit code.
+     * 
+     * @param args the command-line arguments.
+     * @return the exit code, 0 if successful.
+     */
+    static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        
+        try {
+            switch(args[0]) {
+                case "export" -> {
+                    return export(args);
+                }
+                case "index" -> {
+                    return index(args);
+                }
+                case "find" -> {
+                    return find(args);
+                }
+                case "help", "--help", "-h" -> {
+                    System.out.println(USAGE);
+                    return 0;
+                }
+                default -> throw new IllegalArgumentException(String.format("Unknown command %s", args[0]));
+            }
+        }
+        catch(IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        catch(IOException ex) {
+            System.err.println(ex);
+            return 1;
+        }
+    }
+    
+    /**
+     * Parses the options starting at index 1 and returns the remaining positional arguments. Recognized options are stored in
+     * the specified map by their name.
+     */
+    private static List<String> parseOptions(String[] args, Map<String, String> options) {
+        List<String> positional = new ArrayList();
+        
+        for (int i = 1 ; i < args.length ; i++) {
+            String arg = args[i];
+            
+            if (arg.startsWith("--")) {
+                String name = arg.substring(2);
+                
+                if (!options.containsKey(name))
+                    throw new IllegalArgumentException(String.format("Unknown option %s", arg));
+                if (++i >= args.length)
+                    throw new IllegalArgumentException(String.format("Missing value for option %s", arg));
+                
+                options.put(name, args[i]);
+            }
+            else
+                positional.add(arg);
+        }
+        
+        return positional;
+    }
+    
+    private static int parseThreads(String value) {
+        try {
+            int threads = Integer.parseInt(value);
+            
+            if (threads < 1)
+                throw new IllegalArgumentException("Thread count has to be positive.");
+            
+            return threads;
+        }
+        catch(NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid thread count %s", value));
+        }
+    }
+    
+    private static int parseLevel(String value) {
+        try {
+            int level = Integer.parseInt(value);
+            
+            if (level < 0 || level > 9)
+                throw new IllegalArgumentException("Compression level has to be between 0 and 9.");
+            
+            return level;
+        }
+        catch(NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid compression level %s", value));
+        }
+    }
+    
+    private static boolean isFlatBuffer(Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(".dat") || name.endsWith(".cat");
+    }
+    
+    private static boolean isRom(Path path) {
+        return Files.isRegularFile(path) && path.getFileName().toString().endsWith(".nds");
+    }
+    
+    private static List<String> findFlatBuffers(Path folder) throws IOException {
+        if (!Files.isDirectory(folder))
+            throw new IllegalArgumentException(String.format("%s is neither a folder nor a ROM", folder));
+        
+        try (Stream<Path> paths = Files.walk(folder)) {
+            return paths.filter(path -> Files.isRegularFile(path) && isFlatBuffer(path)).sorted()
+                    .map(path -> folder.relativize(path).toString()).toList();
+        }
+    }
+    
+    private static List<String> findFlatBuffers(NitroFileSystem rom) {
+        return rom.files().stream().filter(path -> path.endsWith(".dat") || path.endsWith(".cat")).sorted().toList();
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private static int export(String[] args) throws IOException {
+        Map<String, String> options = new HashMap();
+        options.put("threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        options.put("level", "6");
+        List<String> positional = parseOptions(args, options);
+        
+        if (positional.size() != 2)
+            throw new IllegalArgumentException("Expected an input and an output folder.");
+        
+        int threads = parseThreads(options.get("threads"));
+        int level = parseLevel(options.get("level"));
+        Path input = Path.of(positional.get(0));
+        Path outputFolder = Path.of(positional.get(1));
+        
+        // Files are addressed by their path relative to the input folder or the root of the ROM
+        NitroFileSystem rom = isRom(input) ? NitroFileSystem.mapRom(input.toFile()) : null;
+        List<String> files = rom != null ? findFlatBuffers(rom) : findFlatBuffers(input);
+        
+        // Statistics for the final report
+        AtomicInteger exportedFiles = new AtomicInteger();
+        AtomicInteger skippedFiles = new AtomicInteger();
+        AtomicInteger failedFiles = new AtomicInteger();
+        AtomicLong exportedFrames = new AtomicLong();
+        AtomicLong frameReferences = new AtomicLong();
+        AtomicLong uniqueFrames = new AtomicLong();
+        AtomicLong inputBytes = new AtomicLong();
+        long start = System.nanoTime();
+        
+        // Every file is parsed and encoded on its worker thread, so no more than the specified number of threads are busy.
+        // The walking thread blocks when too many files are queued.
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Semaphore queued = new Semaphore(threads * 4);
+        
+        for (String relative : files) {
+            acquire(queued, workers);
+            workers.execute(() -> {
+                try {
+                    // Only the labels are read first, so files without ObjDesc sections are skipped quickly
+                    boolean compressed = relative.endsWith(".cat");
+                    ByteBuffer view = rom != null ? rom.fileView(relative) : null;
+                    File file = input.resolve(relative).toFile();
+                    inputBytes.addAndGet(view != null ? view.remaining() : file.length());
+                    
+                    FlatBuffer.Header header = view != null ? FlatBuffer.probe(view, compressed) : FlatBuffer.probe(file);
+                    
+                    if (!ObjDesc.containsObjDesc(header)) {
+                        skippedFiles.incrementAndGet();
+                        return;
+                    }
+                    
+                    FlatBuffer flatbuffer = view != null ? FlatBuffer.unpackFlatBuffer(view, compressed)
+                            : FlatBuffer.mapFlatBuffer(file);
+                    ObjDesc objdesc = ObjDesc.unpackObjDesc(flatbuffer, false);
+                    
+                    // Export into a folder named like the file without its extension
+                    File folder = outputFolder.resolve(relative.substring(0, relative.lastIndexOf('.'))).toFile();
+                    
+                    if (!folder.isDirectory() && !folder.mkdirs())
+                        throw new IOException(String.format("Could not create folder %s", folder));
+                    
+                    ObjDescDumper.DumpTask task = ObjDescDumper.prepareAnimationTypes(objdesc, folder.getPath());
+                    task.setCompressionLevel(level);
+                    task.run(CALLING_THREAD, 1);
+                    exportedFrames.addAndGet(countFrames(objdesc));
+                    
+                    ObjDesc.FrameStatistics frameStats = objdesc.frameStatistics();
+                    frameReferences.addAndGet(frameStats.frameReferences());
+                    uniqueFrames.addAndGet(frameStats.uniqueFrames());
+                    exportedFiles.incrementAndGet();
+                }
+                catch(IOException | LZ10.LZ10Exception | RuntimeException ex) {
+                    failedFiles.incrementAndGet();
+                    System.err.printf("%s: %s%n", input.resolve(relative), ex);
+                }
+                finally {
+                    queued.release();
+                }
+            });
+        }
+        
+        workers.shutdown();
+        
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch(InterruptedException ex) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Export was interrupted.", ex);
+        }
+        
+        // Print the final report
+        double seconds = (System.nanoTime() - start) / 1e9;
+        PrintStream out = System.out;
+        out.printf("Scanned %d flatbuffers (%.1f MiB) using %d threads in %.2f s%n", files.size(),
+                inputBytes.get() / 1048576.0, threads, seconds);
+        out.printf("Exported %d files, skipped %d files without ObjDesc sections, %d files failed%n", exportedFiles.get(),
+                skippedFiles.get(), failedFiles.get());
+        out.printf("Parsed %d unique frames for %d frame references%n", uniqueFrames.get(), frameReferences.get());
+        out.printf("Throughput: %.1f files/s, %.1f MiB/s, %.1f frames/s%n", files.size() / seconds,
+                inputBytes.get() / 1048576.0 / seconds, exportedFrames.get() / seconds);
+        
+        return failedFiles.get() == 0 ? 0 : 1;
+    }
+    
+    private static void acquire(Semaphore semaphore, ExecutorService workers) throws IOException {
+        try {
+            semaphore.acquire();
+        }
+        catch(InterruptedException ex) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Export was interrupted.", ex);
+        }
+    }
+    
+    private static long countFrames(ObjDesc objdesc) {
+        long frames = 0;
+        
+        for (String type : objdesc.animationTypes()) {
+            for (List<ObjDescFrame> sequence : objdesc.animationSequences(type)) {
+                for (ObjDescFrame frame : sequence) {
+                    if (frame.prerendered() != null)
+                        frames++;
+                }
+            }
+        }
+        
+        return frames;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private static int index(String[] args) throws IOException {
+        List<String> positional = parseOptions(args, new HashMap());
+        
+        if (positional.size() != 2)
+            throw new IllegalArgumentException("Expected an input folder and an index file.");
+        
+        Path inputFolder = Path.of(positional.get(0));
+        File indexFile = new File(positional.get(1));
+        long start = System.nanoTime();
+        
+        // A damaged index is rebuilt from scratch
+        AssetIndex previous = AssetIndex.empty();
+        
+        if (indexFile.isFile()) {
+            try {
+                previous = AssetIndex.load(indexFile);
+            }
+            catch(IOException ex) {
+                System.err.printf("%s: %s, rebuilding index%n", indexFile, ex.getMessage());
+            }
+        }
+        
+        AssetIndex index = previous.update(inputFolder);
+        index.save(indexFile);
+        
+        AssetIndex.UpdateStatistics statistics = index.updateStatistics();
+        
+        for (Map.Entry<String, String> failure : statistics.failures().entrySet())
+            System.err.printf("%s: %s%n", inputFolder.resolve(failure.getKey()), failure.getValue());
+        
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Indexed %d flatbuffers with %d animation types in %.2f s%n", index.filesCount(),
+                index.animationTypes().size(), seconds);
+        System.out.printf("Files: %s%n", statistics);
+        
+        return statistics.failed() == 0 ? 0 : 1;
+    }
+    
+    private static int find(String[] args) throws IOException {
+        List<String> positional = parseOptions(args, new HashMap());
+        
+        if (positional.isEmpty() || positional.size() > 2)
+            throw new IllegalArgumentException("Expected an index file and an optional animation type.");
+        
+        AssetIndex index = AssetIndex.load(new File(positional.get(0)));
+        PrintStream out = System.out;
+        
+        if (positional.size() == 1) {
+            for (String type : index.animationTypes())
+                out.printf("%s (%d files)%n", type, index.filesContaining(type).size());
+            return 0;
+        }
+        
+        Map<String, AssetIndex.Animation> animations = index.findAnimations(positional.get(1));
+        
+        for (Map.Entry<String, AssetIndex.Animation> entry : animations.entrySet()) {
+            AssetIndex.Animation animation = entry.getValue();
+            out.printf("%s: %d directions, %d frames, %d palettes%n", entry.getKey(), animation.directions(),
+                    animation.frames(), animation.palettes());
+        }
+        
+        return animations.isEmpty() ? 1 : 0;
+    }
+}
@@ -39,6 +39,12 @@ public final class TychoGfx {
     public static final String FULL_TITLE = String.join(" -- ", LONG_TITLE, VERSION, COPYRIGHT);
     
     public static void main(String[] args) {
+        // Any arguments select the headless command-line mode
+        if (args.length > 0) {
+            System.exit(TychoCli.run(args));
+            return;
+        }
+        
         SwingUtil.trySetSystemUI();
         new TychoViewer().setVisible(true);
     }
@@ -20,7 +20,9 @@ import com.aurumsmods.ajul.MathUtil;
 import com.aurumsmods.ajul.SwingUtil;
 import com.aurumsmods.tychogfx.format.FlatBuffer;
 import com.aurumsmods.tychogfx.format.LZ10;
+import com.aurumsmods.tychogfx.format.NitroFileSystem;
 import com.aurumsmods.tychogfx.format.ObjDesc;
+import com.aurumsmods.tychogfx.format.ObjDescCache;
 import com.aurumsmods.tychogfx.format.ObjDescDumper;
 import com.aurumsmods.tychogfx.format.ObjDescFrame;
 import com.aurumsmods.tychogfx.format.ObjDescSequencer;
@@ -31,7 +33,12 @@ import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
 import javax.swing.Icon;
@@ -41,6 +48,9 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.JTree;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellRenderer;
@@ -48,7 +58,7 @@ import javax.swing.tree.DefaultTreeModel;
 
 final class TychoViewer extends javax.swing.JFrame {
     /**
-     * These describe how the {@code PreviewPanel} and  {@code SequencerAndPreviewUpdater} should be used.
+     * These describe how the {@code PreviewPanel} and {@code PlaybackScheduler} should be used.
      */
     private enum UpdateMode {
         /**
@@ -57,12 +67,12 @@ final class TychoViewer extends javax.swing.JFrame {
         NO_RENDERING,
         
         /**
-         * Renders the current state of {@code ObjDescSequencer} but prevents updating by {@code SequencerAndPreviewUpdater}.
+         * Renders the current state of {@code ObjDescSequencer} but prevents updating by {@code PlaybackScheduler}.
          */
         PAUSE,
         
         /**
-         * Renders the current state of {@code ObjDescSequencer} and enables updating by {@code SequencerAndPreviewUpdater}.
+         * Renders the current state of {@code ObjDescSequencer} and enables updating by {@code PlaybackScheduler}.
          */
         RUN
     }
@@ -113,43 +123,6 @@ final class TychoViewer extends javax.swing.JFrame {
         }
     }
     
-    /**
-     * Updates the {@code ObjDescSequencer} and preview panel.
-     */
-    private final class SequencerAndPreviewUpdater implements Runnable {
-        static final double UPDATE_RATE = 1.0d / 67.0d;
-        
-        final AtomicBoolean running = new AtomicBoolean(false);
-        
-        @Override
-        public void run() {
-            long current, last = System.currentTimeMillis();
-            double delta = 0;
-            boolean render = false;
-            
-            while(running.get()) {
-                current = System.currentTimeMillis();
-                delta += (current - last) / 1000.0d;
-                last = current;
-                
-                while(delta > UPDATE_RATE) {
-                    if (sequencerUpdateMode == UpdateMode.RUN) {
-                        objDescSequencer.update();
-                        render = true;
-                        updateCurrentFrameInfo();
-                    }
-                    
-                    delta -= UPDATE_RATE;
-                }
-                
-                if (render) {
-                    render = false;
-                    preview.repaint();
-                }
-            }
-        }
-    }
-    
     /**
      * An implementation of {@code DefaultMutableTreeNode} that stores information about what animation object it represents.
      */
@@ -207,26 +180,54 @@ final class TychoViewer extends javax.swing.JFrame {
     
     // -------------------------------------------------------------------------------------------------------------------------
     
+    // The game updates animations at 67 Hz. After stalls, at most a quarter second of playback is caught up.
+    private static final double UPDATE_RATE = 67.0;
+    private static final int MAX_CATCH_UP_STEPS = 16;
+    
+    // With -Dtychogfx.playbackStats=true, the timing statistics of every playback run are printed once it stops.
+    private static final boolean PRINT_PLAYBACK_STATS = Boolean.getBoolean("tychogfx.playbackStats");
+    
+    // Parsed files are cached in the user's home unless disabled with -Dtychogfx.cache=false. The least recently opened files
+    // are removed once the cache grows beyond this size.
+    private static final long CACHE_SIZE_LIMIT = 256L << 20;
+    
     private File gfxFile;
+    private NitroFileSystem gfxRom;
+    private String gfxRomPath, gfxName;
     private ObjDesc objDesc;
     private final ObjDescSequencer objDescSequencer;
+    private final ObjDescCache objDescCache;
+    private final ExecutorService objDescCacheWriter;
+    private Future<?> pendingCacheStore;
     
-    private UpdateMode sequencerUpdateMode;
-    private final SequencerAndPreviewUpdater updater;
-    private final Thread updaterThread;
+    private volatile UpdateMode sequencerUpdateMode;
+    private final PlaybackScheduler scheduler;
+    private final AtomicBoolean frameInfoPending;
     private final PreviewPanel preview;
     private int zoomFactor;
     private Color backgroundColor, axisColor;
     
     public TychoViewer() {
         gfxFile = null;
+        gfxRom = null;
+        gfxRomPath = null;
+        gfxName = null;
         objDesc = null;
         objDescSequencer = new ObjDescSequencer();
+        objDescCache = createObjDescCache();
+        objDescCacheWriter = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ObjDescCacheWriter");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        pendingCacheStore = null;
         
         sequencerUpdateMode = UpdateMode.NO_RENDERING;
-        updater = new SequencerAndPreviewUpdater();
-        updaterThread = new Thread(updater, "SequencerAndPreviewUpdater");
         preview = new PreviewPanel();
+        frameInfoPending = new AtomicBoolean(false);
+        scheduler = new PlaybackScheduler("PlaybackScheduler", UPDATE_RATE, MAX_CATCH_UP_STEPS, this::updateSequencer,
+                this::refreshPreview);
         zoomFactor = 2;
         backgroundColor = Color.WHITE;
         axisColor = Color.GRAY;
@@ -238,45 +239,118 @@ final class TychoViewer extends javax.swing.JFrame {
     
     @Override
     public void dispose() {
-        updater.running.set(false);
+        if (scheduler.isActive())
+            printPlaybackStatistics();
+        
+        scheduler.stop();
+        objDescCacheWriter.shutdownNow();
         super.dispose();
     }
     
+    private static ObjDescCache createObjDescCache() {
+        if (!Boolean.parseBoolean(System.getProperty("tychogfx.cache", "true")))
+            return null;
+        
+        File defaultDir = new File(new File(System.getProperty("user.home"), ".tychogfx"), "cache");
+        return new ObjDescCache(new File(System.getProperty("tychogfx.cacheDir", defaultDir.getPath())));
+    }
+    
     // -------------------------------------------------------------------------------------------------------------------------
     
     private void openObjDescFile() {
         final JFileChooser fc = new JFileChooser();
         fc.setDialogTitle("Open Pokémon Ranger flatbuffer...");
-        fc.setFileFilter(new FileNameExtensionFilter("Pokémon Ranger flatbuffer (*.dat, *.cat)", "dat", "cat"));
+        fc.setFileFilter(new FileNameExtensionFilter("Pokémon Ranger flatbuffer or ROM (*.dat, *.cat, *.nds)", "dat", "cat",
+                "nds"));
         fc.setSelectedFile(new File(Preferences.userRoot().get("tychogfx_lastFile", "")));
         
         if (fc.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            gfxFile = fc.getSelectedFile();
+            File selectedFile = fc.getSelectedFile();
             
-            if (gfxFile.isFile()) {
-                Preferences.userRoot().put("tychogfx_lastFile", gfxFile.getPath());
-                loadObjDesc();
+            if (selectedFile.isFile()) {
+                Preferences.userRoot().put("tychogfx_lastFile", selectedFile.getPath());
+                
+                if (selectedFile.getName().endsWith(".nds"))
+                    openRomFile(selectedFile);
+                else {
+                    gfxFile = selectedFile;
+                    gfxRom = null;
+                    gfxRomPath = null;
+                    gfxName = selectedFile.getName();
+                    loadObjDesc();
+                }
             }
-            else
-                gfxFile = null;
+        }
+    }
+    
+    private void openRomFile(File romFile) {
+        NitroFileSystem rom;
+        
+        try {
+            rom = NitroFileSystem.mapRom(romFile);
+        }
+        catch(IOException ex) {
+            SwingUtil.showExceptionBox(this, ex, TychoGfx.TITLE);
+            return;
+        }
+        
+        // Let the user pick one of the flatbuffers inside the ROM
+        String[] paths = rom.files().stream().filter(path -> path.endsWith(".dat") || path.endsWith(".cat"))
+                .toArray(String[]::new);
+        
+        if (paths.length == 0) {
+            JOptionPane.showMessageDialog(this, "The ROM does not contain any flatbuffers.", TychoGfx.LONG_TITLE,
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        String lastPath = Preferences.userRoot().get("tychogfx_lastRomFile", paths[0]);
+        String selectedPath = (String)JOptionPane.showInputDialog(this, "Select a flatbuffer from the ROM:",
+                TychoGfx.LONG_TITLE, JOptionPane.QUESTION_MESSAGE, null, paths, lastPath);
+        
+        if (selectedPath != null) {
+            Preferences.userRoot().put("tychogfx_lastRomFile", selectedPath);
+            gfxFile = null;
+            gfxRom = rom;
+            gfxRomPath = selectedPath;
+            gfxName = selectedPath.substring(selectedPath.lastIndexOf('/') + 1);
+            loadObjDesc();
         }
     }
     
     private void loadObjDesc() {
-        // Reset sequencer and disable rendering/updating
+        // Reset sequencer and disable rendering/updating. The previous file does not need to be cached anymore.
+        cancelCacheStore();
         objDesc = null;
         objDescSequencer.clearContext();
-        sequencerUpdateMode = UpdateMode.NO_RENDERING;
+        setUpdateMode(UpdateMode.NO_RENDERING);
         updateCurrentFrameInfo();
         
         // Try to unpack ObjDesc graphics and create the tree nodes representation
         try {
-            objDesc = ObjDesc.unpackObjDesc(FlatBuffer.unpackFlatBuffer(gfxFile));
-            objDesc.setPaletteOffsetAndPrerenderAllFrames(0);
+            // Sequences are decoded when they are selected and frames are prerendered when they are displayed. Files inside a
+            // ROM are read straight from the mapped ROM and are not cached.
+            if (gfxRom != null) {
+                FlatBuffer flatbuffer = FlatBuffer.unpackFlatBuffer(gfxRom.fileView(gfxRomPath), gfxRomPath.endsWith(".cat"));
+                objDesc = ObjDesc.unpackObjDescLazily(flatbuffer);
+            }
+            else {
+                objDesc = loadCachedObjDesc(gfxFile);
+                
+                if (objDesc == null) {
+                    objDesc = ObjDesc.unpackObjDescLazily(FlatBuffer.unpackFlatBuffer(gfxFile));
+                    storeCachedObjDesc(gfxFile, objDesc);
+                }
+            }
+            
+            objDesc.setPaletteOffset(0);
             populateSequenceNodes();
         }
         catch(IOException | LZ10.LZ10Exception ex) {
             gfxFile = null;
+            gfxRom = null;
+            gfxRomPath = null;
+            gfxName = null;
             objDesc = null;
             SwingUtil.showExceptionBox(this, ex, TychoGfx.TITLE);
         }
@@ -286,6 +360,47 @@ final class TychoViewer extends javax.swing.JFrame {
         sldPalette.setValue(0);
     }
     
+    private ObjDesc loadCachedObjDesc(File file) {
+        if (objDescCache == null)
+            return null;
+        
+        try {
+            return objDescCache.load(file);
+        }
+        catch(IOException ex) {
+            SwingUtil.showExceptionBox(this, ex, TychoGfx.TITLE);
+            return null;
+        }
+    }
+    
+    private void storeCachedObjDesc(File file, ObjDesc objdesc) {
+        if (objDescCache == null)
+            return;
+        
+        // The sequences of the lazily loaded file are decoded in the background, so the file can be shown right away. Frames
+        // are not prerendered for the cache, as that would take longer than parsing the file again. Caching is optional, so
+        // errors are only logged.
+        pendingCacheStore = objDescCacheWriter.submit(() -> {
+            try {
+                objDescCache.store(file, objdesc, false);
+                objDescCache.trim(CACHE_SIZE_LIMIT);
+            }
+            catch(InterruptedIOException ex) {
+                // cancelled because another file has been opened
+            }
+            catch(IOException | RuntimeException ex) {
+                System.err.printf("Could not cache %s: %s%n", file, ex);
+            }
+        });
+    }
+    
+    private void cancelCacheStore() {
+        if (pendingCacheStore != null) {
+            pendingCacheStore.cancel(true);
+            pendingCacheStore = null;
+        }
+    }
+    
     private static int translateDirection(int index, int seqcount) {
         if (seqcount == 4)
             return index * 2;
@@ -296,7 +411,7 @@ final class TychoViewer extends javax.swing.JFrame {
     
     private void populateSequenceNodes() {
         // Create root node which displays the filename
-        DefaultMutableTreeNode root = new DefaultMutableTreeNode(gfxFile.getName());
+        DefaultMutableTreeNode root = new DefaultMutableTreeNode(gfxName);
         
         // Create all anim type nodes
         for (String animType : objDesc.animationTypes()) {
@@ -362,7 +477,7 @@ final class TychoViewer extends javax.swing.JFrame {
             Preferences.userRoot().put("tychogfx_lastDumpFolder", selectedFolder.getAbsolutePath());
             
             // Get ObjDesc filename without extension
-            String gfxFileName = gfxFile.getName();
+            String gfxFileName = gfxName;
             gfxFileName = gfxFileName.substring(0, gfxFileName.lastIndexOf('.'));
             
             File folder = new File(String.format("%s/%s", selectedFolder.getAbsolutePath(), gfxFileName));
@@ -379,8 +494,84 @@ final class TychoViewer extends javax.swing.JFrame {
         return null;
     }
     
+    private void runDumpTask(ObjDescDumper.DumpTask task) {
+        // Dump the frames in the background while the progress monitor allows the user to cancel the task
+        ProgressMonitor monitor = new ProgressMonitor(this, "Dumping animation frame(s)...", null, 0, task.frameCount());
+        monitor.setMillisToDecideToPopup(250);
+        btnExportFrames.setEnabled(false);
+        
+        task.setProgressListener((dumped, total) -> SwingUtilities.invokeLater(() -> {
+            if (monitor.isCanceled())
+                task.cancel();
+            else
+                monitor.setProgress(dumped);
+        }));
+        
+        new SwingWorker<Boolean, Void>() {
+            @Override
+            protected Boolean doInBackground() throws IOException {
+                return task.run();
+            }
+            
+            @Override
+            protected void done() {
+                monitor.close();
+                btnExportFrames.setEnabled(objDesc != null && treeNodes.getLastSelectedPathComponent() != null);
+                
+                try {
+                    if (get())
+                        JOptionPane.showMessageDialog(TychoViewer.this, "Successfully dumped the animation frame(s).", TychoGfx.LONG_TITLE, JOptionPane.INFORMATION_MESSAGE);
+                }
+                catch(ExecutionException ex) {
+                    Exception cause = ex.getCause() instanceof Exception ? (Exception)ex.getCause() : ex;
+                    SwingUtil.showExceptionBox(TychoViewer.this, cause, TychoGfx.LONG_TITLE);
+                }
+                catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }.execute();
+    }
+    
     // -------------------------------------------------------------------------------------------------------------------------
     
+    private void setUpdateMode(UpdateMode mode) {
+        boolean run = mode == UpdateMode.RUN;
+        
+        if (run && !scheduler.isActive())
+            scheduler.resetStatistics();
+        else if (!run && scheduler.isActive())
+            printPlaybackStatistics();
+        
+        sequencerUpdateMode = mode;
+        scheduler.setActive(run);
+    }
+    
+    private void printPlaybackStatistics() {
+        if (PRINT_PLAYBACK_STATS)
+            System.err.printf("Playback: %s%n", scheduler.statistics());
+    }
+    
+    private void updateSequencer() {
+        if (sequencerUpdateMode == UpdateMode.RUN)
+            objDescSequencer.update();
+    }
+    
+    /**
+     * Repaints the preview and schedules an update of the frame info on the EDT. Info updates are coalesced, so at most one of
+     * them is pending at any time.
+     */
+    private void refreshPreview() {
+        preview.repaint();
+        
+        if (frameInfoPending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> {
+                frameInfoPending.set(false);
+                updateCurrentFrameInfo();
+            });
+        }
+    }
+    
     private void tryZoom(int arg) {
         zoomFactor = MathUtil.clamp(1, 10, zoomFactor + arg);
         
@@ -817,12 +1008,12 @@ final class TychoViewer extends javax.swing.JFrame {
             int animFrameIndex = objDescNode.animFrameIndex;
             
             objDescSequencer.setSequenceAndFrame(objDesc, animType, animIndex, animFrameIndex);
-            sequencerUpdateMode = ((ObjDescEntryNode)selected).sequencerUpdateMode;
+            setUpdateMode(((ObjDescEntryNode)selected).sequencerUpdateMode);
         }
         // Otherwise, clear the sequencer context and disable rendering/updating
         else {
             objDescSequencer.clearContext();
-            sequencerUpdateMode = UpdateMode.NO_RENDERING;
+            setUpdateMode(UpdateMode.NO_RENDERING);
         }
         
         preview.repaint();
@@ -831,8 +1022,7 @@ final class TychoViewer extends javax.swing.JFrame {
     }//GEN-LAST:event_treeNodesValueChanged
 
     private void formWindowOpened(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowOpened
-        updaterThread.start();
-        updater.running.set(true);
+        scheduler.start();
     }//GEN-LAST:event_formWindowOpened
 
     private void btnExportFramesActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnExportFramesActionPerformed
@@ -843,7 +1033,7 @@ final class TychoViewer extends javax.swing.JFrame {
                 String folder = chooseDumpFolderPath();
 
                 if (folder != null) {
-                    boolean result = false;
+                    ObjDescDumper.DumpTask task = null;
 
                     if (selected instanceof ObjDescEntryNode) {
                         ObjDescEntryNode objDescNode = (ObjDescEntryNode)selected;
@@ -852,16 +1042,16 @@ final class TychoViewer extends javax.swing.JFrame {
                         int animFrameIndex = objDescNode.animFrameIndex;
 
                         switch(objDescNode.dumpMode) {
-                            case SEQUENCES -> result = ObjDescDumper.dumpAnimationSequences(objDesc, animType, folder);
-                            case SEQUENCE -> result = ObjDescDumper.dumpAnimationSequence(objDesc, animType, animIndex, folder);
-                            case FRAME -> result = ObjDescDumper.dumpAnimationFrame(objDesc, animType, animIndex, animFrameIndex, folder);
+                            case SEQUENCES -> task = ObjDescDumper.prepareAnimationSequences(objDesc, animType, folder);
+                            case SEQUENCE -> task = ObjDescDumper.prepareAnimationSequence(objDesc, animType, animIndex, folder);
+                            case FRAME -> task = ObjDescDumper.prepareAnimationFrame(objDesc, animType, animIndex, animFrameIndex, folder);
                         }
                     }
                     else
-                        result = ObjDescDumper.dumpAnimationTypes(objDesc, folder);
+                        task = ObjDescDumper.prepareAnimationTypes(objDesc, folder);
                     
-                    if (result)
-                        JOptionPane.showMessageDialog(this, "Successfully dumped the animation frame(s).", TychoGfx.LONG_TITLE, JOptionPane.INFORMATION_MESSAGE);
+                    if (task != null)
+                        runDumpTask(task);
                     else
                         JOptionPane.showMessageDialog(this, "Couldn't dump one or more frame(s).", TychoGfx.LONG_TITLE, JOptionPane.ERROR_MESSAGE);
                 }
@@ -905,7 +1095,7 @@ final class TychoViewer extends javax.swing.JFrame {
 
     private void sldPaletteStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_sldPaletteStateChanged
         if (objDesc != null) {
-            objDesc.setPaletteOffsetAndPrerenderAllFrames(sldPalette.getValue());
+            objDesc.setPaletteOffset(sldPalette.getValue());
             preview.repaint();
         }
     }//GEN-LAST:event_sldPaletteStateChanged
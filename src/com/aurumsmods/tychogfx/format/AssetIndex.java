@@ -0,0 +1,803 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * An index of all flatbuffers in an asset folder and the ObjDesc animations they contain. For every file, the index records
+ * its size, modification time and CRC-32C checksum as well as the directions, frames and palettes of every animation type.
+ * Updating an index only unpacks files whose size or modification time changed and whose contents differ from the indexed
+ * version, so rescanning a large folder after a few changes is fast.
+ * <p>
+ * Indices are stored in a compact little-endian format that is queried straight from the loaded file. It consists of a
+ * header, a table of animation types sorted by name, a table of files sorted by path, a table of animations, lists of the
+ * animations of every type and a string pool. Paths are relative to the indexed folder and use '/' as separator.
+ * 
+ * @author Aurum
+ */
+public final class AssetIndex {
+    private static final int MAGIC = 0x49414754; // "TGAI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 0x20;
+    private static final int TYPE_SIZE = 16;
+    private static final int FILE_SIZE = 32;
+    private static final int ANIMATION_SIZE = 16;
+    
+    /**
+     * The directions, frames and palettes of one animation type in an indexed file.
+     */
+    public static final class Animation {
+        private final String type;
+        private final int directions, frames, palettes;
+        
+        private Animation(String type, int directions, int frames, int palettes) {
+            this.type = type;
+            this.directions = directions;
+            this.frames = frames;
+            this.palettes = palettes;
+        }
+        
+        /**
+         * Returns the name of the animation type's section.
+         * 
+         * @return the animation type.
+         */
+        public String type() {
+            return type;
+        }
+        
+        /**
+         * Returns the number of sequences, which is the number of directions the animation type has been drawn in.
+         * 
+         * @return the number of directions.
+         */
+        public int directions() {
+            return directions;
+        }
+        
+        /**
+         * Returns the number of frames in all sequences of the animation type.
+         * 
+         * @return the number of frames.
+         */
+        public int frames() {
+            return frames;
+        }
+        
+        /**
+         * Returns the number of 16-color palettes of the animation type.
+         * 
+         * @return the number of palettes.
+         */
+        public int palettes() {
+            return palettes;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%s: %d directions, %d frames, %d palettes", type, directions, frames, palettes);
+        }
+    }
+    
+    /**
+     * An indexed file and the animation types it contains. Files without ObjDesc sections are indexed as well, so they are not
+     * probed again by the next update.
+     */
+    public static final class Entry {
+        private final String path;
+        private final long size, lastModified;
+        private final int hash;
+        private final List<Animation> animations;
+        
+        private Entry(String path, long size, long lastModified, int hash, List<Animation> animations) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.animations = animations;
+        }
+        
+        /**
+         * Returns the path of the file relative to the indexed folder.
+         * 
+         * @return the relative path.
+         */
+        public String path() {
+            return path;
+        }
+        
+        /**
+         * Returns the size of the file in bytes.
+         * 
+         * @return the file size.
+         */
+        public long size() {
+            return size;
+        }
+        
+        /**
+         * Returns the modification time of the file in milliseconds since the epoch.
+         * 
+         * @return the modification time.
+         */
+        public long lastModified() {
+            return lastModified;
+        }
+        
+        /**
+         * Returns the CRC-32C checksum of the file's contents.
+         * 
+         * @return the checksum.
+         */
+        public int hash() {
+            return hash;
+        }
+        
+        /**
+         * Returns the animation types of the file in section order.
+         * 
+         * @return the animation types.
+         */
+        public List<Animation> animations() {
+            return animations;
+        }
+    }
+    
+    /**
+     * Reports how many files an update had to unpack and how many indexed entries it could keep.
+     */
+    public static final class UpdateStatistics {
+        private static final UpdateStatistics NONE = new UpdateStatistics(0, 0, 0, 0, Collections.emptyMap());
+        
+        private final int scanned, unchanged, rehashed, removed;
+        private final Map<String, String> failures;
+        
+        private UpdateStatistics(int scanned, int unchanged, int rehashed, int removed, Map<String, String> failures) {
+            this.scanned = scanned;
+            this.unchanged = unchanged;
+            this.rehashed = rehashed;
+            this.removed = removed;
+            this.failures = failures;
+        }
+        
+        /**
+         * Returns the number of new or modified files that have been unpacked.
+         * 
+         * @return the number of scanned files.
+         */
+        public int scanned() {
+            return scanned;
+        }
+        
+        /**
+         * Returns the number of files whose size and modification time did not change.
+         * 
+         * @return the number of unchanged files.
+         */
+        public int unchanged() {
+            return unchanged;
+        }
+        
+        /**
+         * Returns the number of files whose modification time changed but whose contents are still the same.
+         * 
+         * @return the number of files that only had to be hashed.
+         */
+        public int rehashed() {
+            return rehashed;
+        }
+        
+        /**
+         * Returns the number of indexed files that do not exist anymore.
+         * 
+         * @return the number of removed files.
+         */
+        public int removed() {
+            return removed;
+        }
+        
+        /**
+         * Returns the number of files that could not be read or unpacked. They are left out of the index, so the next update
+         * tries them again.
+         * 
+         * @return the number of failed files.
+         */
+        public int failed() {
+            return failures.size();
+        }
+        
+        /**
+         * Returns the files that could not be read or unpacked along with the error that occurred. The files are mapped by
+         * their path relative to the indexed folder in sorted order.
+         * 
+         * @return the errors of the failed files by path.
+         */
+        public Map<String, String> failures() {
+            return failures;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d scanned, %d unchanged, %d rehashed, %d removed, %d failed", scanned, unchanged, rehashed,
+                    removed, failures.size());
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Returns an index that does not contain any files.
+     * 
+     * @return an empty index.
+     */
+    public static AssetIndex empty() {
+        return build(Collections.emptyList(), UpdateStatistics.NONE);
+    }
+    
+    /**
+     * Returns the index stored in the supplied {@code File}. The file is read into memory instead of being mapped, so it can be
+     * replaced by {@code save} while the loaded index is still in use. The tables are validated once, so queries never read
+     * outside of the index.
+     * 
+     * @param file the index file.
+     * @return the stored index.
+     * @throws IOException if an error occurs during reading or the file does not contain a proper index.
+     */
+    public static AssetIndex load(File file) throws IOException {
+        if (Files.size(file.toPath()) > Integer.MAX_VALUE - 8)
+            throw new IOException("Index exceeds the maximum size of 2 GiB.");
+        
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        
+        if (data.limit() < HEADER_SIZE)
+            throw new IOException("File does not contain an asset index.");
+        
+        AssetIndex index = new AssetIndex(data.order(ByteOrder.LITTLE_ENDIAN), UpdateStatistics.NONE);
+        index.validate();
+        return index;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private final ByteBuffer buffer;
+    private final UpdateStatistics updateStatistics;
+    private int numTypes, numFiles, numAnimations;
+    private int offTypes, offFiles, offAnimations, offPostings, offStrings;
+    
+    private AssetIndex(ByteBuffer buffer, UpdateStatistics updateStatistics) {
+        this.buffer = buffer;
+        this.updateStatistics = updateStatistics;
+        readHeader();
+    }
+    
+    private void readHeader() {
+        numTypes = buffer.getInt(0x08);
+        numFiles = buffer.getInt(0x0C);
+        numAnimations = buffer.getInt(0x10);
+        offTypes = HEADER_SIZE;
+        offFiles = offTypes + numTypes * TYPE_SIZE;
+        offAnimations = offFiles + numFiles * FILE_SIZE;
+        offPostings = offAnimations + numAnimations * ANIMATION_SIZE;
+        offStrings = offPostings + numAnimations * 4;
+    }
+    
+    private void validate() throws IOException {
+        if (buffer.getInt(0x00) != MAGIC)
+            throw new IOException("File does not contain an asset index.");
+        if (buffer.getInt(0x04) != VERSION)
+            throw new IOException(String.format("Unsupported asset index version %d.", buffer.getInt(0x04)));
+        
+        int lenStrings = buffer.getInt(0x14);
+        
+        if (numTypes < 0 || numFiles < 0 || numAnimations < 0 || lenStrings < 0 || HEADER_SIZE + numTypes * (long)TYPE_SIZE
+                + numFiles * (long)FILE_SIZE + numAnimations * (ANIMATION_SIZE + 4L) + lenStrings != buffer.limit())
+            throw new IOException("Asset index is truncated or damaged.");
+        
+        // Strings and references have to stay inside their tables, and every file has to own a consecutive range of animations
+        for (int i = 0 ; i < numTypes ; i++) {
+            int off = offTypes + i * TYPE_SIZE;
+            checkRange(buffer.getInt(off), buffer.getInt(off + 4), lenStrings);
+            checkRange(buffer.getInt(off + 8), buffer.getInt(off + 12), numAnimations);
+        }
+        
+        int nextAnimation = 0;
+        
+        for (int i = 0 ; i < numFiles ; i++) {
+            int off = offFiles + i * FILE_SIZE;
+            checkRange(buffer.getInt(off), buffer.getInt(off + 4), lenStrings);
+            
+            if (buffer.getInt(off + 28) != nextAnimation)
+                throw new IOException("Asset index is truncated or damaged.");
+            
+            nextAnimation = animationsEnd(i);
+            checkRange(buffer.getInt(off + 28), nextAnimation - buffer.getInt(off + 28), numAnimations);
+        }
+        
+        for (int i = 0 ; i < numAnimations ; i++) {
+            int off = offAnimations + i * ANIMATION_SIZE;
+            checkRange(buffer.getInt(off), 1, numFiles);
+            checkRange(buffer.getInt(off + 4), 1, numTypes);
+            checkRange(buffer.getInt(offPostings + i * 4), 1, numAnimations);
+        }
+    }
+    
+    private static void checkRange(int first, int count, int total) throws IOException {
+        if (first < 0 || count < 0 || first > total - count)
+            throw new IOException("Asset index is truncated or damaged.");
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Returns the number of indexed files, including files without ObjDesc sections.
+     * 
+     * @return the number of indexed files.
+     */
+    public int filesCount() {
+        return numFiles;
+    }
+    
+    /**
+     * Returns the paths of all indexed files in sorted order.
+     * 
+     * @return the paths of all indexed files.
+     */
+    public List<String> files() {
+        List<String> paths = new ArrayList(numFiles);
+        
+        for (int i = 0 ; i < numFiles ; i++)
+            paths.add(filePath(i));
+        
+        return paths;
+    }
+    
+    /**
+     * Returns the names of all animation types that occur in any indexed file in sorted order.
+     * 
+     * @return the names of all indexed animation types.
+     */
+    public List<String> animationTypes() {
+        List<String> types = new ArrayList(numTypes);
+        
+        for (int i = 0 ; i < numTypes ; i++)
+            types.add(typeName(i));
+        
+        return types;
+    }
+    
+    /**
+     * Returns the paths of all files that contain the specified animation type in sorted order. Only the type table and the
+     * files that match are read from the index.
+     * 
+     * @param type the name of the animation type's section, for example "ladder_upObjDesc".
+     * @return the paths of all files that contain the type, which may be empty.
+     */
+    public List<String> filesContaining(String type) {
+        int typeIdx = findTypeIndex(type);
+        if (typeIdx < 0)
+            return Collections.emptyList();
+        
+        int first = buffer.getInt(offTypes + typeIdx * TYPE_SIZE + 8);
+        int count = buffer.getInt(offTypes + typeIdx * TYPE_SIZE + 12);
+        List<String> paths = new ArrayList(count);
+        
+        for (int i = first ; i < first + count ; i++)
+            paths.add(filePath(animationFile(buffer.getInt(offPostings + i * 4))));
+        
+        return paths;
+    }
+    
+    /**
+     * Returns the directions, frames and palettes of the specified animation type in every file that contains it. The files
+     * are mapped by their path in sorted order.
+     * 
+     * @param type the name of the animation type's section.
+     * @return the animations of the type by file, which may be empty.
+     */
+    public Map<String, Animation> findAnimations(String type) {
+        int typeIdx = findTypeIndex(type);
+        if (typeIdx < 0)
+            return Collections.emptyMap();
+        
+        int first = buffer.getInt(offTypes + typeIdx * TYPE_SIZE + 8);
+        int count = buffer.getInt(offTypes + typeIdx * TYPE_SIZE + 12);
+        Map<String, Animation> animations = new LinkedHashMap(count);
+        
+        for (int i = first ; i < first + count ; i++) {
+            int animIdx = buffer.getInt(offPostings + i * 4);
+            animations.put(filePath(animationFile(animIdx)), readAnimation(animIdx));
+        }
+        
+        return animations;
+    }
+    
+    /**
+     * Attempts to find and return the entry of the specified file. If the file is not indexed, {@code null} is returned
+     * instead.
+     * 
+     * @param path the path of the file relative to the indexed folder, using '/' as separator.
+     * @return the entry of the file if available. Otherwise, {@code null} is returned.
+     */
+    public Entry findFile(String path) {
+        int index = findFileIndex(path);
+        if (index < 0)
+            return null;
+        return readEntry(index);
+    }
+    
+    /**
+     * Returns the statistics of the update that created this index. Indices that have been loaded or created empty did not
+     * scan any files, so all of their counts are zero.
+     * 
+     * @return the update statistics.
+     */
+    public UpdateStatistics updateStatistics() {
+        return updateStatistics;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private String readString(int off) {
+        byte[] bytes = new byte[buffer.getInt(off + 4)];
+        buffer.get(offStrings + buffer.getInt(off), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private int compareString(int off, byte[] key) {
+        int offString = offStrings + buffer.getInt(off);
+        int length = buffer.getInt(off + 4);
+        int common = Math.min(length, key.length);
+        
+        for (int i = 0 ; i < common ; i++) {
+            int diff = Byte.toUnsignedInt(buffer.get(offString + i)) - Byte.toUnsignedInt(key[i]);
+            if (diff != 0)
+                return diff;
+        }
+        
+        return length - key.length;
+    }
+    
+    private int binarySearch(int offTable, int entrySize, int count, String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+        
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareString(offTable + mid * entrySize, key);
+            
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        
+        return -1;
+    }
+    
+    private int findTypeIndex(String type) {
+        return binarySearch(offTypes, TYPE_SIZE, numTypes, type);
+    }
+    
+    private int findFileIndex(String path) {
+        return binarySearch(offFiles, FILE_SIZE, numFiles, path);
+    }
+    
+    private String typeName(int typeIdx) {
+        return readString(offTypes + typeIdx * TYPE_SIZE);
+    }
+    
+    private String filePath(int fileIdx) {
+        return readString(offFiles + fileIdx * FILE_SIZE);
+    }
+    
+    private int animationsEnd(int fileIdx) {
+        return fileIdx + 1 < numFiles ? buffer.getInt(offFiles + (fileIdx + 1) * FILE_SIZE + 28) : numAnimations;
+    }
+    
+    private int animationFile(int animIdx) {
+        return buffer.getInt(offAnimations + animIdx * ANIMATION_SIZE);
+    }
+    
+    private Animation readAnimation(int animIdx) {
+        int off = offAnimations + animIdx * ANIMATION_SIZE;
+        return new Animation(typeName(buffer.getInt(off + 4)), Short.toUnsignedInt(buffer.getShort(off + 8)),
+                buffer.getInt(off + 12), Short.toUnsignedInt(buffer.getShort(off + 10)));
+    }
+    
+    private Entry readEntry(int fileIdx) {
+        int off = offFiles + fileIdx * FILE_SIZE;
+        int first = buffer.getInt(off + 28);
+        int end = animationsEnd(fileIdx);
+        List<Animation> animations = new ArrayList(end - first);
+        
+        for (int i = first ; i < end ; i++)
+            animations.add(readAnimation(i));
+        
+        return new Entry(filePath(fileIdx), buffer.getLong(off + 8), buffer.getLong(off + 16), buffer.getInt(off + 24),
+                Collections.unmodifiableList(animations));
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Returns a new index of the *.dat and *.cat flatbuffers in the specified folder and its subfolders. Entries of this index
+     * are kept for files whose size and modification time did not change. Files whose modification time changed are hashed
+     * and only unpacked if their contents changed as well. New and modified files are probed and unpacked concurrently on the
+     * common {@code ForkJoinPool}. Only the sequence tables of ObjDesc sections are read, frames are not decoded.
+     * 
+     * @param folder the asset folder.
+     * @return the updated index.
+     * @throws IOException if the folder cannot be listed.
+     */
+    public AssetIndex update(Path folder) throws IOException {
+        if (!Files.isDirectory(folder))
+            throw new IOException(String.format("%s is not a folder", folder));
+        
+        List<Path> files;
+        
+        try (Stream<Path> paths = Files.walk(folder)) {
+            files = paths.filter(path -> {
+                String name = path.getFileName().toString();
+                return (name.endsWith(".dat") || name.endsWith(".cat")) && Files.isRegularFile(path);
+            }).toList();
+        }
+        
+        AtomicInteger known = new AtomicInteger();
+        AtomicInteger unchanged = new AtomicInteger();
+        AtomicInteger rehashed = new AtomicInteger();
+        Map<String, String> failures = new ConcurrentHashMap();
+        
+        List<Entry> entries = files.parallelStream()
+                .map(file -> {
+                    String path = folder.relativize(file).toString().replace(File.separatorChar, '/');
+                    
+                    try {
+                        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                        long size = attributes.size();
+                        long lastModified = attributes.lastModifiedTime().toMillis();
+                        Entry previous = findFile(path);
+                        
+                        if (previous != null)
+                            known.incrementAndGet();
+                        
+                        if (previous != null && previous.size == size && previous.lastModified == lastModified) {
+                            unchanged.incrementAndGet();
+                            return previous;
+                        }
+                        
+                        int hash = hash(file, size);
+                        
+                        if (previous != null && previous.size == size && previous.hash == hash) {
+                            rehashed.incrementAndGet();
+                            return new Entry(path, size, lastModified, hash, previous.animations);
+                        }
+                        
+                        return new Entry(path, size, lastModified, hash, scan(file.toFile()));
+                    }
+                    catch(IOException | LZ10.LZ10Exception | RuntimeException ex) {
+                        failures.put(path, ex.toString());
+                        return null;
+                    }
+                })
+                .filter(Objects::nonNull)
+                .toList();
+        
+        TreeMap<String, String> sortedFailures = new TreeMap<>(AssetIndex::compareUtf8);
+        sortedFailures.putAll(failures);
+        
+        int kept = unchanged.get() + rehashed.get();
+        UpdateStatistics statistics = new UpdateStatistics(entries.size() - kept, unchanged.get(), rehashed.get(),
+                numFiles - known.get(), Collections.unmodifiableMap(sortedFailures));
+        return build(entries, statistics);
+    }
+    
+    private static int hash(Path file, long size) throws IOException {
+        CRC32C crc = new CRC32C();
+        
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (long position = 0L ; position < size ; position += Integer.MAX_VALUE) {
+                long length = Math.min(size - position, Integer.MAX_VALUE);
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+            }
+        }
+        
+        return (int)crc.getValue();
+    }
+    
+    private static List<Animation> scan(File file) throws IOException, LZ10.LZ10Exception {
+        // Files without sprites are recognized by their labels alone
+        if (!ObjDesc.containsObjDesc(FlatBuffer.probe(file)))
+            return Collections.emptyList();
+        
+        // Sequences of lazily unpacked sections know their frame count without being decoded
+        ObjDesc objdesc = ObjDesc.unpackObjDescLazily(FlatBuffer.mapFlatBuffer(file));
+        List<Animation> animations = new ArrayList();
+        
+        for (String type : objdesc.animationTypes()) {
+            List<List<ObjDescFrame>> sequences = objdesc.animationSequences(type);
+            int frames = 0;
+            
+            for (List<ObjDescFrame> sequence : sequences)
+                frames += sequence.size();
+            
+            animations.add(new Animation(type, sequences.size(), frames, objdesc.paletteCount(type)));
+        }
+        
+        return Collections.unmodifiableList(animations);
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private static AssetIndex build(List<Entry> entries, UpdateStatistics statistics) {
+        List<Entry> sorted = new ArrayList(entries);
+        sorted.sort((a, b) -> compareUtf8(a.path, b.path));
+        
+        // Collect the animations of every type, sorted by name like the paths
+        TreeMap<String, List<Integer>> postings = new TreeMap<>(AssetIndex::compareUtf8);
+        int numAnimations = 0;
+        
+        for (Entry entry : sorted) {
+            for (Animation animation : entry.animations)
+                postings.computeIfAbsent(animation.type, type -> new ArrayList()).add(numAnimations++);
+        }
+        
+        Map<String, Integer> typeIds = new HashMap();
+        for (String type : postings.keySet())
+            typeIds.put(type, typeIds.size());
+        
+        // Lay out the string pool, paths first
+        StringPool strings = new StringPool();
+        int[] pathRefs = new int[sorted.size() * 2];
+        int[] typeRefs = new int[postings.size() * 2];
+        
+        for (int i = 0 ; i < sorted.size() ; i++)
+            strings.add(sorted.get(i).path, pathRefs, i);
+        
+        int t = 0;
+        for (String type : postings.keySet())
+            strings.add(type, typeRefs, t++);
+        
+        long size = HEADER_SIZE + postings.size() * (long)TYPE_SIZE + sorted.size() * (long)FILE_SIZE
+                + numAnimations * (ANIMATION_SIZE + 4L) + strings.size;
+        
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalStateException("Asset index exceeds the maximum size of 2 GiB.");
+        
+        ByteBuffer out = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt(postings.size()).putInt(sorted.size()).putInt(numAnimations)
+                .putInt(strings.size).putLong(0L);
+        
+        int firstPosting = 0;
+        t = 0;
+        
+        for (List<Integer> animations : postings.values()) {
+            out.putInt(typeRefs[t * 2]).putInt(typeRefs[t * 2 + 1]).putInt(firstPosting).putInt(animations.size());
+            firstPosting += animations.size();
+            t++;
+        }
+        
+        int firstAnimation = 0;
+        
+        for (int i = 0 ; i < sorted.size() ; i++) {
+            Entry entry = sorted.get(i);
+            out.putInt(pathRefs[i * 2]).putInt(pathRefs[i * 2 + 1]).putLong(entry.size).putLong(entry.lastModified)
+                    .putInt(entry.hash).putInt(firstAnimation);
+            firstAnimation += entry.animations.size();
+        }
+        
+        for (int i = 0 ; i < sorted.size() ; i++) {
+            for (Animation animation : sorted.get(i).animations) {
+                out.putInt(i).putInt(typeIds.get(animation.type)).putShort((short)animation.directions)
+                        .putShort((short)animation.palettes).putInt(animation.frames);
+            }
+        }
+        
+        for (List<Integer> animations : postings.values()) {
+            for (int animIdx : animations)
+                out.putInt(animIdx);
+        }
+        
+        strings.writeTo(out);
+        return new AssetIndex(out.flip(), statistics);
+    }
+    
+    /**
+     * Compares strings by their UTF-8 encoding, which is the order that the tables are searched in.
+     */
+    private static int compareUtf8(String a, String b) {
+        return Arrays.compareUnsigned(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static final class StringPool {
+        private final List<byte[]> strings = new ArrayList();
+        private int size = 0;
+        
+        void add(String string, int[] refs, int index) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            refs[index * 2] = size;
+            refs[index * 2 + 1] = bytes.length;
+            strings.add(bytes);
+            size += bytes.length;
+        }
+        
+        void writeTo(ByteBuffer out) {
+            for (byte[] bytes : strings)
+                out.put(bytes);
+        }
+    }
+    
+    /**
+     * Stores this index in the specified file, replacing any previous version. The index is written into a temporary file
+     * first, so readers never see a partially written index.
+     * 
+     * @param file the index file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(File file) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Path directory = target.getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, "assetindex", ".tmp");
+        
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer data = buffer.duplicate().position(0);
+                
+                while(data.hasRemaining())
+                    channel.write(data);
+            }
+            
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch(AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
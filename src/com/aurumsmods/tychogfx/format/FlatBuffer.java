@@ -17,16 +17,20 @@
 package com.aurumsmods.tychogfx.format;
 
 import com.aurumsmods.littlebigio.BinaryInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -47,28 +51,278 @@ public class FlatBuffer {
      * @throws LZ10.LZ10Exception if the buffer does not contain proper LZ10 data.
      */
     public static FlatBuffer unpackFlatBuffer(File file) throws IOException, LZ10.LZ10Exception {
-        // Determine source input stream
-        InputStream src;
-
-        // Check if the file contains compressed data (LZ10)
-        if (file.getName().endsWith(".cat")) {
-            try (BinaryInputStream decompsrc = new BinaryInputStream(new FileInputStream(file), ByteOrder.LITTLE_ENDIAN)) {
-                byte[] decompressed = LZ10.decompress(decompsrc);
-                src = new ByteArrayInputStream(decompressed);
-            }
-        }
-        // File is not compressed
-        else
-            src = new FileInputStream(file);
-
+        // Check if the file contains compressed data (LZ10). The size of the file is known, so it is read at once and
+        // decompressed by the array decoder. The unpacked data refers to the decompressed array without copying it.
+        if (file.getName().endsWith(".cat"))
+            return unpackFlatBuffer(ByteBuffer.wrap(LZ10.decompress(Files.readAllBytes(file.toPath()))));
+        
         FlatBuffer flatbuffer;
-        try (BinaryInputStream in = new BinaryInputStream(src, ByteOrder.LITTLE_ENDIAN)) {
+        try (BinaryInputStream in = new BinaryInputStream(new FileInputStream(file), ByteOrder.LITTLE_ENDIAN)) {
             flatbuffer = new FlatBuffer();
             flatbuffer.unpack(in);
         }
         return flatbuffer;
     }
     
+    /**
+     * Returns a {@code FlatBuffer} as the result of memory-mapping and unpacking a supplied {@code File}. For uncompressed
+     * files, the data is not copied. Instead, {@code data()} returns a read-only view of the mapped file, so only the parts of
+     * the file that are actually accessed will be loaded. Compressed files are decompressed straight from the mapped file.
+     * 
+     * @param file an input {@code File} to map.
+     * @return a {@code FlatBuffer} header containing the raw binary data sections.
+     * @throws IOException if an error occurs during reading.
+     * @throws LZ10.LZ10Exception if the buffer does not contain proper LZ10 data.
+     */
+    public static FlatBuffer mapFlatBuffer(File file) throws IOException, LZ10.LZ10Exception {
+        ByteBuffer mapped;
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        
+        return unpackFlatBuffer(mapped, file.getName().endsWith(".cat"));
+    }
+    
+    /**
+     * Returns a {@code FlatBuffer} as the result of unpacking the flatbuffer stored in the remaining bytes of the supplied
+     * {@code ByteBuffer}, for example a file inside a mapped ROM. Uncompressed flatbuffers are not copied, compressed ones are
+     * decompressed straight from the buffer. The buffer's position is not modified.
+     * 
+     * @param buffer the {@code ByteBuffer} containing the flatbuffer.
+     * @param compressed whether the flatbuffer is LZ10 compressed, as found in *.cat files.
+     * @return a {@code FlatBuffer} header containing the raw binary data sections.
+     * @throws IOException if the buffer does not contain a proper flatbuffer.
+     * @throws LZ10.LZ10Exception if the buffer does not contain proper LZ10 data.
+     */
+    public static FlatBuffer unpackFlatBuffer(ByteBuffer buffer, boolean compressed) throws IOException, LZ10.LZ10Exception {
+        if (compressed)
+            return unpackFlatBuffer(ByteBuffer.wrap(LZ10.decompress(buffer)));
+        else
+            return unpackFlatBuffer(buffer);
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Returns the {@code Header} of the flatbuffer stored in a supplied {@code File} without reading its data block. For
+     * uncompressed files, the data block and pointer fix list are skipped by seeking. Compressed files have to be decompressed
+     * up to the label pairs, but the skipped data is not kept in memory.
+     * 
+     * @param file an input {@code File} to probe.
+     * @return the header, section and entry labels of the flatbuffer.
+     * @throws IOException if an error occurs during reading or the file does not contain a proper flatbuffer.
+     * @throws LZ10.LZ10Exception if the file does not contain proper LZ10 data.
+     */
+    public static Header probe(File file) throws IOException, LZ10.LZ10Exception {
+        InputStream src = new FileInputStream(file);
+        
+        if (file.getName().endsWith(".cat")) {
+            try {
+                src = new LZ10InputStream(src);
+            }
+            catch(IOException | LZ10.LZ10Exception ex) {
+                src.close();
+                throw ex;
+            }
+        }
+        
+        try (InputStream in = src) {
+            return probe(in);
+        }
+    }
+    
+    /**
+     * Returns the {@code Header} of the flatbuffer stored in the remaining bytes of the supplied {@code ByteBuffer} without
+     * reading its data block, for example a file inside a mapped ROM. The buffer's position is not modified.
+     * 
+     * @param buffer the {@code ByteBuffer} containing the flatbuffer.
+     * @param compressed whether the flatbuffer is LZ10 compressed, as found in *.cat files.
+     * @return the header, section and entry labels of the flatbuffer.
+     * @throws IOException if the buffer does not contain a proper flatbuffer.
+     * @throws LZ10.LZ10Exception if the buffer does not contain proper LZ10 data.
+     */
+    public static Header probe(ByteBuffer buffer, boolean compressed) throws IOException, LZ10.LZ10Exception {
+        InputStream in = new ByteBufferInputStream(buffer.slice());
+        return probe(compressed ? new LZ10InputStream(in) : in);
+    }
+    
+    private static Header probe(InputStream in) throws IOException {
+        // Read header
+        ByteBuffer header = ByteBuffer.wrap(in.readNBytes(0x20)).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.limit() < 0x20)
+            throw new IOException("Input stream contains less bytes than expected.");
+        
+        int totalSize = header.getInt(0x00);
+        int dataSize = header.getInt(0x04);
+        int numPointers = header.getInt(0x08);
+        int numSections = header.getInt(0x0C);
+        int numEntries = header.getInt(0x10);
+        
+        offStrings(dataSize, numPointers, numSections, numEntries, totalSize);
+        long offLabelPairs = 0x20L + dataSize + numPointers * 4L;
+        
+        // Skip the data block and pointer fix list, then read the raw label pairs and string pool at once
+        in.skipNBytes(offLabelPairs - 0x20);
+        byte[] rawLabels = in.readNBytes(totalSize - (int)offLabelPairs);
+        if (rawLabels.length < totalSize - offLabelPairs)
+            throw new IOException("Input stream contains less bytes than expected.");
+        
+        int[] rawLabelPairs = new int[(numSections + numEntries) * 2];
+        ByteBuffer.wrap(rawLabels).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(rawLabelPairs);
+        byte[] rawStrings = Arrays.copyOfRange(rawLabels, rawLabelPairs.length * 4, rawLabels.length);
+        
+        return new Header(header, unpackLabelPairs(rawLabelPairs, rawStrings, 0, numSections),
+                unpackLabelPairs(rawLabelPairs, rawStrings, numSections * 2, numEntries));
+    }
+    
+    /**
+     * Reads the remaining bytes of a {@code ByteBuffer}. Skipping moves the position, so nothing is copied.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+        
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) {
+            Objects.checkFromIndexSize(off, len, b.length);
+            
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+        
+        @Override
+        public long skip(long n) {
+            int count = (int)Math.max(0L, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+    }
+    
+    /**
+     * The header and labels of a flatbuffer, as returned by {@code probe}. This is enough to decide whether a flatbuffer
+     * contains the sections of interest before unpacking its data.
+     */
+    public static final class Header {
+        private final int totalSize, dataSize, numPointers, unk14;
+        private final LinkedHashMap<String, Integer> sections, entries;
+        
+        private Header(ByteBuffer header, LinkedHashMap<String, Integer> sections, LinkedHashMap<String, Integer> entries) {
+            totalSize = header.getInt(0x00);
+            dataSize = header.getInt(0x04);
+            numPointers = header.getInt(0x08);
+            unk14 = header.getInt(0x14);
+            this.sections = sections;
+            this.entries = entries;
+        }
+        
+        /**
+         * Returns the total size of the uncompressed flatbuffer in bytes.
+         * 
+         * @return the total size of the flatbuffer.
+         */
+        public int totalSize() {
+            return totalSize;
+        }
+        
+        /**
+         * Returns the size of the raw data block in bytes.
+         * 
+         * @return the size of the data block.
+         */
+        public int dataSize() {
+            return dataSize;
+        }
+        
+        /**
+         * Returns the count of entries in the pointer fix list.
+         * 
+         * @return the count of pointers.
+         */
+        public int pointersCount() {
+            return numPointers;
+        }
+        
+        /**
+         * Returns the {@code Set} of name-offset section pairs.
+         * 
+         * @return the {@code Set} of name-offset section pairs.
+         */
+        public Set<Map.Entry<String, Integer>> sections() {
+            return sections.entrySet();
+        }
+        
+        /**
+         * Returns the {@code Set} of section names.
+         * 
+         * @return the {@code Set} of section names.
+         */
+        public Set<String> sectionNames() {
+            return sections.keySet();
+        }
+        
+        /**
+         * Returns the {@code Set} of name-offset entry pairs.
+         * 
+         * @return the {@code Set} of name-offset entry pairs.
+         */
+        public Set<Map.Entry<String, Integer>> entries() {
+            return entries.entrySet();
+        }
+        
+        /**
+         * Returns the {@code Set} of entry names.
+         * 
+         * @return the {@code Set} of entry names.
+         */
+        public Set<String> entryNames() {
+            return entries.keySet();
+        }
+        
+        /**
+         * Returns the unknown constant value that is found at offset 0x14 in the flatbuffer header.
+         * 
+         * @return the unknown constant value at offset 0x14.
+         */
+        public int getUnk14() {
+            return unk14;
+        }
+    }
+    
+    /**
+     * Returns a {@code FlatBuffer} as the result of unpacking the uncompressed flatbuffer stored in the remaining bytes of the
+     * supplied {@code ByteBuffer}. The data is not copied. Instead, {@code data()} returns a read-only view of the buffer. The
+     * buffer's position is not modified.
+     * 
+     * @param buffer the {@code ByteBuffer} containing the uncompressed flatbuffer.
+     * @return a {@code FlatBuffer} header containing the raw binary data sections.
+     * @throws IOException if the buffer does not contain a proper flatbuffer.
+     */
+    public static FlatBuffer unpackFlatBuffer(ByteBuffer buffer) throws IOException {
+        FlatBuffer flatbuffer = new FlatBuffer();
+        flatbuffer.unpack(buffer.slice().order(ByteOrder.LITTLE_ENDIAN));
+        return flatbuffer;
+    }
+    
     // -------------------------------------------------------------------------------------------------------------------------
     
     private ByteBuffer data = null;
@@ -95,6 +349,7 @@ public class FlatBuffer {
         int numEntries = in.readInt();
         unk14 = in.readInt();
         in.skipNBytes(8); // remaining 8 bytes seem to be always set to 0
+        offStrings(dataSize, numPointers, numSections, numEntries, totalSize);
         
         // Read raw data block
         data = ByteBuffer.wrap(in.readNBytes(dataSize));
@@ -121,7 +376,65 @@ public class FlatBuffer {
         entries = unpackLabelPairs(rawLabelPairs, rawStrings, numSections * 2, numEntries);
     }
     
-    private LinkedHashMap<String, Integer> unpackLabelPairs(int[] labelPairs, byte[] strPool, int firstIdx, int count) {
+    private void unpack(ByteBuffer in) throws IOException {
+        // Verify total file size
+        int inputSize = in.remaining();
+        if (inputSize < 0x20)
+            throw new IOException("Input buffer contains less bytes than expected.");
+        
+        int totalSize = in.getInt(0x00);
+        if (inputSize < totalSize)
+            throw new IOException("Input buffer contains less bytes than expected.");
+        
+        // Read header
+        int dataSize = in.getInt(0x04);
+        int numPointers = in.getInt(0x08);
+        int numSections = in.getInt(0x0C);
+        int numEntries = in.getInt(0x10);
+        unk14 = in.getInt(0x14);
+        
+        int offStrings = offStrings(dataSize, numPointers, numSections, numEntries, inputSize);
+        int offPointers = 0x20 + dataSize;
+        int offLabelPairs = offPointers + numPointers * 4;
+        
+        // Create a view of the raw data block
+        data = in.slice(0x20, dataSize).asReadOnlyBuffer();
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        
+        // Decode pointer fix list and raw label pairs in bulk
+        pointerFixList = new int[numPointers];
+        in.slice(offPointers, numPointers * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(pointerFixList);
+        
+        int[] rawLabelPairs = new int[(numSections + numEntries) * 2];
+        in.slice(offLabelPairs, rawLabelPairs.length * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(rawLabelPairs);
+        
+        byte[] rawStrings = new byte[inputSize - offStrings];
+        in.get(offStrings, rawStrings);
+        
+        // Unpack sections and entries from label pairs
+        sections = unpackLabelPairs(rawLabelPairs, rawStrings, 0, numSections);
+        entries = unpackLabelPairs(rawLabelPairs, rawStrings, numSections * 2, numEntries);
+    }
+    
+    /**
+     * Returns the offset of the string pool declared by the header. The counts are added as longs, so that large values cannot
+     * overflow and pass the size check.
+     */
+    private static int offStrings(int dataSize, int numPointers, int numSections, int numEntries, int size)
+            throws IOException {
+        if (dataSize < 0 || numPointers < 0 || numSections < 0 || numEntries < 0)
+            throw new IOException("Flatbuffer header declares negative sizes.");
+        
+        long offStrings = 0x20L + dataSize + numPointers * 4L + (numSections + (long)numEntries) * 8L;
+        
+        if (offStrings > size)
+            throw new IOException("Flatbuffer header declares more data than available.");
+        
+        return (int)offStrings;
+    }
+    
+    private static LinkedHashMap<String, Integer> unpackLabelPairs(int[] labelPairs, byte[] strPool, int firstIdx, int count)
+            throws IOException {
         LinkedHashMap<String, Integer> output = new LinkedHashMap(count);
         
         for (int i = 0 ; i < count ; i++) {
@@ -132,7 +445,9 @@ public class FlatBuffer {
             
             // Read name string
             int lenName = 0;
-            while(strPool[offName + lenName] != 0)
+            if (offName < 0 || offName >= strPool.length)
+                throw new IOException(String.format("Label name at 0x%X is outside of the string pool.", offName));
+            while(offName + lenName < strPool.length && strPool[offName + lenName] != 0)
                 lenName++;
             String name = new String(strPool, offName, lenName, StandardCharsets.US_ASCII);
             
@@ -144,7 +459,8 @@ public class FlatBuffer {
     }
     
     /**
-     * Returns the raw data wrapped in a {@code ByteBuffer}.
+     * Returns the raw data wrapped in a {@code ByteBuffer}. This buffer is shared by all callers, so use {@code dataView} when
+     * the position is going to be changed.
      * 
      * @return the raw data wrapped in a {@code ByteBuffer}.
      */
@@ -152,6 +468,16 @@ public class FlatBuffer {
         return data;
     }
     
+    /**
+     * Returns a new little-endian view of the raw data. The view shares its contents with {@code data()} but has its own
+     * position and limit, so every thread can read the data through its own view without affecting any other reader.
+     * 
+     * @return a new view of the raw data.
+     */
+    public ByteBuffer dataView() {
+        return data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
     /**
      * Returns the array of integer offsets to pointers. This is only used by the actual game to convert relative data offsets
      * into absolute address pointers.
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assembles flatbuffer files. The data block is written sequentially using little-endian values. Every value that points to
+ * another location in the data block has to be written using {@code putPointer} so that it is added to the pointer fix list.
+ * Sections and entries label offsets into the data block. Finally, the header, data block, pointer fix list, label pairs and
+ * string pool are written in the layout that {@code FlatBuffer} unpacks.
+ * 
+ * @author Aurum
+ */
+public final class FlatBufferBuilder {
+    private static final int HEADER_SIZE = 0x20;
+    
+    private byte[] data;
+    private int size;
+    private int[] pointers;
+    private int numPointers;
+    private final List<String> sectionNames, entryNames;
+    private final List<Integer> sectionOffsets, entryOffsets;
+    private int unk14;
+    
+    /**
+     * Creates a new builder with an empty data block.
+     */
+    public FlatBufferBuilder() {
+        this(0x1000);
+    }
+    
+    /**
+     * Creates a new builder with an empty data block and the specified initial capacity.
+     * 
+     * @param capacity the number of bytes that can be written before the data block has to grow.
+     */
+    public FlatBufferBuilder(int capacity) {
+        data = new byte[Math.max(capacity, 16)];
+        size = 0;
+        pointers = new int[64];
+        numPointers = 0;
+        sectionNames = new ArrayList();
+        entryNames = new ArrayList();
+        sectionOffsets = new ArrayList();
+        entryOffsets = new ArrayList();
+        unk14 = 0;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Returns the current size of the data block, which is the offset of the next value to be written.
+     * 
+     * @return the current offset in the data block.
+     */
+    public int position() {
+        return size;
+    }
+    
+    /**
+     * Pads the data block with zeros until its size is a multiple of the specified alignment.
+     * 
+     * @param alignment the alignment, a power of two.
+     * @return this builder.
+     */
+    public FlatBufferBuilder align(int alignment) {
+        int aligned = (size + alignment - 1) & -alignment;
+        ensureCapacity(aligned - size);
+        size = aligned;
+        return this;
+    }
+    
+    /**
+     * Appends a byte to the data block.
+     * 
+     * @param val the value.
+     * @return this builder.
+     */
+    public FlatBufferBuilder putByte(int val) {
+        ensureCapacity(1);
+        data[size++] = (byte)val;
+        return this;
+    }
+    
+    /**
+     * Appends a little-endian short to the data block.
+     * 
+     * @param val the value.
+     * @return this builder.
+     */
+    public FlatBufferBuilder putShort(int val) {
+        ensureCapacity(2);
+        data[size++] = (byte)val;
+        data[size++] = (byte)(val >>> 8);
+        return this;
+    }
+    
+    /**
+     * Appends a little-endian int to the data block.
+     * 
+     * @param val the value.
+     * @return this builder.
+     */
+    public FlatBufferBuilder putInt(int val) {
+        ensureCapacity(4);
+        putInt(data, size, val);
+        size += 4;
+        return this;
+    }
+    
+    /**
+     * Appends the specified bytes to the data block.
+     * 
+     * @param bytes the bytes.
+     * @return this builder.
+     */
+    public FlatBufferBuilder putBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, data, size, bytes.length);
+        size += bytes.length;
+        return this;
+    }
+    
+    /**
+     * Appends a pointer to the specified offset in the data block and adds its location to the pointer fix list. The target
+     * does not have to be written yet, a placeholder can be written and set later using {@code setInt}.
+     * 
+     * @param offset the offset in the data block that is pointed to.
+     * @return this builder.
+     */
+    public FlatBufferBuilder putPointer(int offset) {
+        if (numPointers == pointers.length)
+            pointers = Arrays.copyOf(pointers, numPointers * 2);
+        
+        pointers[numPointers++] = size;
+        return putInt(offset);
+    }
+    
+    /**
+     * Overwrites a little-endian int that has been written before, for example a pointer placeholder.
+     * 
+     * @param offset the offset of the value in the data block.
+     * @param val the new value.
+     * @return this builder.
+     */
+    public FlatBufferBuilder setInt(int offset, int val) {
+        if (offset < 0 || offset > size - 4)
+            throw new IndexOutOfBoundsException(String.format("Offset 0x%X is outside of the data block.", offset));
+        
+        putInt(data, offset, val);
+        return this;
+    }
+    
+    /**
+     * Labels the specified offset in the data block as a section.
+     * 
+     * @param name the section name.
+     * @param offset the offset in the data block.
+     * @return this builder.
+     */
+    public FlatBufferBuilder addSection(String name, int offset) {
+        sectionNames.add(name);
+        sectionOffsets.add(offset);
+        return this;
+    }
+    
+    /**
+     * Labels the specified offset in the data block as an entry.
+     * 
+     * @param name the entry name.
+     * @param offset the offset in the data block.
+     * @return this builder.
+     */
+    public FlatBufferBuilder addEntry(String name, int offset) {
+        entryNames.add(name);
+        entryOffsets.add(offset);
+        return this;
+    }
+    
+    /**
+     * Sets the unknown header value at offset 0x14.
+     * 
+     * @param val the value.
+     * @return this builder.
+     */
+    public FlatBufferBuilder setUnk14(int val) {
+        unk14 = val;
+        return this;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Returns the total size of the flatbuffer in bytes.
+     * 
+     * @return the total size of the flatbuffer.
+     */
+    public long totalSize() {
+        long total = HEADER_SIZE + alignedDataSize() + numPointers * 4L + (sectionNames.size() + entryNames.size()) * 8L;
+        
+        for (String name : sectionNames)
+            total += name.length() + 1;
+        for (String name : entryNames)
+            total += name.length() + 1;
+        
+        return total;
+    }
+    
+    /**
+     * Assembles the flatbuffer into a byte array.
+     * 
+     * @param compressed whether the flatbuffer should be LZ10 compressed, as found in *.cat files.
+     * @return the assembled flatbuffer.
+     * @throws IllegalArgumentException if the flatbuffer is compressed and larger than LZ10 can store.
+     */
+    public byte[] toByteArray(boolean compressed) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int)Math.min(totalSize(), Integer.MAX_VALUE - 8));
+        
+        try {
+            writeTo(out);
+        }
+        catch(IOException ex) {
+            throw new IllegalStateException(ex); // never thrown by ByteArrayOutputStream
+        }
+        
+        byte[] flatbuffer = out.toByteArray();
+        return compressed ? LZ10.compress(flatbuffer) : flatbuffer;
+    }
+    
+    /**
+     * Writes the flatbuffer into the specified file. Uncompressed flatbuffers are streamed directly into the file.
+     * 
+     * @param file the output file.
+     * @param compressed whether the flatbuffer should be LZ10 compressed, as found in *.cat files.
+     * @throws IOException if the file cannot be written.
+     * @throws IllegalArgumentException if the flatbuffer is compressed and larger than LZ10 can store.
+     */
+    public void writeFile(File file, boolean compressed) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 0x10000)) {
+            if (compressed)
+                out.write(toByteArray(true));
+            else
+                writeTo(out);
+        }
+    }
+    
+    /**
+     * Writes the uncompressed flatbuffer into the specified stream.
+     * 
+     * @param out the output stream.
+     * @throws IOException if the stream cannot be written to.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        long total = totalSize();
+        if (total > Integer.MAX_VALUE)
+            throw new IOException("Flatbuffer exceeds the maximum size of 2 GiB.");
+        
+        int dataSize = alignedDataSize();
+        byte[] header = new byte[HEADER_SIZE];
+        putInt(header, 0x00, (int)total);
+        putInt(header, 0x04, dataSize);
+        putInt(header, 0x08, numPointers);
+        putInt(header, 0x0C, sectionNames.size());
+        putInt(header, 0x10, entryNames.size());
+        putInt(header, 0x14, unk14);
+        out.write(header);
+        
+        // Data block, padded to the alignment of the following tables
+        out.write(data, 0, size);
+        out.write(new byte[dataSize - size]);
+        
+        // Pointer fix list
+        byte[] table = new byte[numPointers * 4];
+        for (int i = 0 ; i < numPointers ; i++)
+            putInt(table, i * 4, pointers[i]);
+        out.write(table);
+        
+        // Label pairs followed by the string pool
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        table = new byte[(sectionNames.size() + entryNames.size()) * 8];
+        int index = writeLabelPairs(table, 0, sectionNames, sectionOffsets, strings);
+        writeLabelPairs(table, index, entryNames, entryOffsets, strings);
+        out.write(table);
+        strings.writeTo(out);
+    }
+    
+    private static int writeLabelPairs(byte[] table, int index, List<String> names, List<Integer> offsets,
+            ByteArrayOutputStream strings) {
+        for (int i = 0 ; i < names.size() ; i++, index += 8) {
+            putInt(table, index, offsets.get(i));
+            putInt(table, index + 4, strings.size());
+            strings.writeBytes(names.get(i).getBytes(StandardCharsets.US_ASCII));
+            strings.write(0);
+        }
+        
+        return index;
+    }
+    
+    private int alignedDataSize() {
+        return (size + 3) & ~3;
+    }
+    
+    private void ensureCapacity(int count) {
+        if (size + count > data.length) {
+            long capacity = Math.max((long)size + count, data.length * 2L);
+            
+            if (capacity > Integer.MAX_VALUE - 8)
+                throw new IllegalStateException("Data block exceeds the maximum size of 2 GiB.");
+            
+            data = Arrays.copyOf(data, (int)capacity);
+        }
+    }
+    
+    private static void putInt(byte[] buf, int off, int val) {
+        buf[off    ] = (byte)val;
+        buf[off + 1] = (byte)(val >>> 8);
+        buf[off + 2] = (byte)(val >>> 16);
+        buf[off + 3] = (byte)(val >>> 24);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A utility class that encodes indexed pixels as palette-based PNG images. Images with up to 16 colors are stored with a bit
+ * depth of 4, larger palettes use a bit depth of 8. Transparency is stored in a tRNS chunk. Every thread reuses its own
+ * {@code Deflater}, so encoding many small images does not allocate a new compressor every time.
+ * 
+ * @author Aurum
+ */
+public final class IndexedPngWriter {
+    private static final byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<byte[]> DEFLATE_BUFFERS = ThreadLocal.withInitial(() -> new byte[0x2000]);
+    
+    private IndexedPngWriter() {
+        throw new IllegalStateException("Instantiation of this class is forbidden!");
+    }
+    
+    /**
+     * Encodes the given indexed pixels as a PNG image using the default compression level.
+     * 
+     * @param width the image width.
+     * @param height the image height.
+     * @param pixels the palette index of every pixel, stored row by row.
+     * @param colors the color model that provides the palette, up to 256 colors.
+     * @return the encoded PNG data.
+     */
+    public static byte[] encode(int width, int height, byte[] pixels, IndexColorModel colors) {
+        return encode(width, height, pixels, colors, Deflater.DEFAULT_COMPRESSION);
+    }
+    
+    /**
+     * Encodes the given indexed pixels as a PNG image using the specified compression level.
+     * 
+     * @param width the image width.
+     * @param height the image height.
+     * @param pixels the palette index of every pixel, stored row by row.
+     * @param colors the color model that provides the palette, up to 256 colors.
+     * @param level the deflate compression level, ranging from 0 to 9 or {@code Deflater.DEFAULT_COMPRESSION}.
+     * @return the encoded PNG data.
+     */
+    public static byte[] encode(int width, int height, byte[] pixels, IndexColorModel colors, int level) {
+        if (width <= 0 || height <= 0 || pixels.length < width * height)
+            throw new IllegalArgumentException("Pixel data does not match the image size.");
+        if (colors.getMapSize() > 256)
+            throw new IllegalArgumentException("PNG palettes cannot hold more than 256 colors.");
+        
+        int numColors = colors.getMapSize();
+        int bitDepth = numColors <= 16 ? 4 : 8;
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream(width * height / 2 + 128);
+        out.writeBytes(SIGNATURE);
+        
+        // Write header
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = (byte)bitDepth;
+        header[9] = 3; // indexed color
+        writeChunk(out, "IHDR", header, header.length);
+        
+        // Write palette and transparency. Trailing opaque colors can be left out of the tRNS chunk.
+        int[] argb = new int[numColors];
+        colors.getRGBs(argb);
+        
+        byte[] palette = new byte[numColors * 3];
+        byte[] alphas = new byte[numColors];
+        int numAlphas = 0;
+        
+        for (int i = 0 ; i < numColors ; i++) {
+            palette[i * 3    ] = (byte)(argb[i] >>> 16);
+            palette[i * 3 + 1] = (byte)(argb[i] >>> 8);
+            palette[i * 3 + 2] = (byte)argb[i];
+            alphas[i] = (byte)(argb[i] >>> 24);
+            
+            if (alphas[i] != (byte)0xFF)
+                numAlphas = i + 1;
+        }
+        
+        writeChunk(out, "PLTE", palette, palette.length);
+        
+        if (numAlphas > 0)
+            writeChunk(out, "tRNS", alphas, numAlphas);
+        
+        // Pack the rows without filtering, which is the recommended choice for indexed images
+        int rowSize = bitDepth == 4 ? (width + 1) / 2 : width;
+        byte[] rows = new byte[(rowSize + 1) * height];
+        
+        for (int y = 0, src = 0, dst = 0 ; y < height ; y++) {
+            rows[dst++] = 0; // filter type none
+            
+            if (bitDepth == 8) {
+                System.arraycopy(pixels, src, rows, dst, width);
+                src += width;
+                dst += width;
+            }
+            else {
+                for (int x = 0 ; x < width ; x += 2) {
+                    int hi = pixels[src++] & 15;
+                    int lo = x + 1 < width ? pixels[src++] & 15 : 0;
+                    rows[dst++] = (byte)(hi << 4 | lo);
+                }
+            }
+        }
+        
+        // Compress image data using this thread's deflater
+        Deflater deflater = DEFLATERS.get();
+        byte[] buffer = DEFLATE_BUFFERS.get();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(rows.length / 2 + 64);
+        
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(rows);
+        deflater.finish();
+        
+        while(!deflater.finished()) {
+            int len = deflater.deflate(buffer);
+            compressed.write(buffer, 0, len);
+        }
+        
+        writeChunk(out, "IDAT", compressed.toByteArray(), compressed.size());
+        writeChunk(out, "IEND", new byte[0], 0);
+        
+        return out.toByteArray();
+    }
+    
+    private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data, int len) {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        byte[] buf = new byte[4];
+        
+        putInt(buf, 0, len);
+        out.writeBytes(buf);
+        
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, len);
+        
+        out.writeBytes(typeBytes);
+        out.write(data, 0, len);
+        putInt(buf, 0, (int)crc.getValue());
+        out.writeBytes(buf);
+    }
+    
+    private static void putInt(byte[] buf, int off, int val) {
+        buf[off    ] = (byte)(val >>> 24);
+        buf[off + 1] = (byte)(val >>> 16);
+        buf[off + 2] = (byte)(val >>> 8);
+        buf[off + 3] = (byte)val;
+    }
+}
@@ -17,13 +17,14 @@
 package com.aurumsmods.tychogfx.format;
 
 import com.aurumsmods.littlebigio.BinaryInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteOrder;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
 
 /**
- * A utility class that provides methods to decompress the contents of an LZ10 encoded input stream. LZ10 is an LZ-type format
+ * A utility class that provides methods to compress and decompress LZ10 encoded data. LZ10 is an LZ-type format
  * that is commonly used in many post-GBC Nintendo games, including Pokémon Ranger. The compression information is stored in
  * little-endian byte order. Every LZ10 input stream starts off with a 0x10 {@code byte} value.
  * 
@@ -53,26 +54,101 @@ public final class LZ10 {
     
     // -------------------------------------------------------------------------------------------------------------------------
     
+    /**
+     * The lowest effort level for compression. This only checks a few candidates for every match.
+     */
+    public static final int MIN_EFFORT = 1;
+    
+    /**
+     * The default effort level for compression. This provides a good balance between speed and compression ratio.
+     */
+    public static final int DEFAULT_EFFORT = 6;
+    
+    /**
+     * The highest effort level for compression. This searches the entire window and chooses the smallest possible encoding.
+     */
+    public static final int MAX_EFFORT = 9;
+    
+    // Number of hash chain candidates that are checked for every position, indexed by the effort level.
+    private static final int[] MAX_CHAIN_LENGTHS = { 0, 4, 8, 16, 32, 64, 128, 256, 1024, 4096 };
+    
+    // Lazy matching is used starting at this effort level.
+    private static final int LAZY_EFFORT = 4;
+    
+    private static final int MAX_OUTPUT_SIZE = 0xFFFFFF;
+    private static final int WINDOW_SIZE = 0x1000;
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = 18;
+    private static final int HASH_BITS = 15;
+    
     private LZ10() {
         throw new IllegalStateException("Instantiation of this class is forbidden!");
     }
     
+    /**
+     * Compresses the given byte array using the default effort level. The compressed data is returned in a new byte array.
+     * 
+     * @param in the byte array containing the data to be compressed.
+     * @return a new byte array containing the LZ10 compressed data.
+     * @throws IllegalArgumentException if the data is larger than 16 MiB.
+     */
+    public static byte[] compress(byte[] in) {
+        return compress(in, DEFAULT_EFFORT);
+    }
+    
+    /**
+     * Compresses the given byte array using the specified effort level. Higher effort levels examine more candidates for every
+     * match and produce smaller output at the cost of speed. At {@code MAX_EFFORT}, the optimal encoding for the matches found
+     * in the window is chosen. The compressed data is returned in a new byte array.
+     * 
+     * @param in the byte array containing the data to be compressed.
+     * @param effort the effort level, ranging from {@code MIN_EFFORT} to {@code MAX_EFFORT}.
+     * @return a new byte array containing the LZ10 compressed data.
+     * @throws IllegalArgumentException if the data is larger than 16 MiB or the effort level is out of range.
+     */
+    public static byte[] compress(byte[] in, int effort) {
+        if (in.length > MAX_OUTPUT_SIZE)
+            throw new IllegalArgumentException("LZ10 cannot store more than 16 MiB of data.");
+        if (effort < MIN_EFFORT || effort > MAX_EFFORT)
+            throw new IllegalArgumentException(String.format("Effort level %d is out of range.", effort));
+        
+        return new Compressor(in, effort).compress();
+    }
+    
     /**
      * Reads and decompresses LZ10-compressed data from the given byte array. The decompressed data is returned in a new byte
      * array.
      * 
      * @param in the byte array containing LZ10 compressed data.
      * @return a new byte array containing the decompressed data.
-     * @throws IOException if an error occurs during reading.
      * @throws LZ10Exception if the buffer does not contain proper LZ10 data.
      */
-    public static byte[] decompress(byte[] in) throws IOException, LZ10Exception {
-        return decompress(new BinaryInputStream(new ByteArrayInputStream(in), ByteOrder.LITTLE_ENDIAN));
+    public static byte[] decompress(byte[] in) throws LZ10Exception {
+        return decompress(in, 0, in.length);
+    }
+    
+    /**
+     * Reads and decompresses LZ10-compressed data from the remaining bytes of the given {@code ByteBuffer}. The buffer's
+     * position is not modified. The decompressed data is returned in a new byte array.
+     * 
+     * @param in the buffer containing LZ10 compressed data.
+     * @return a new byte array containing the decompressed data.
+     * @throws LZ10Exception if the buffer does not contain proper LZ10 data.
+     */
+    public static byte[] decompress(ByteBuffer in) throws LZ10Exception {
+        // Heap buffers can be decoded in place, anything else is fetched with a single bulk copy first.
+        if (in.hasArray())
+            return decompress(in.array(), in.arrayOffset() + in.position(), in.arrayOffset() + in.limit());
+        
+        byte[] src = new byte[in.remaining()];
+        in.get(in.position(), src);
+        return decompress(src, 0, src.length);
     }
     
     /**
      * Reads and decompresses LZ10-compressed data from the given {@code InputStream}. The input stream will not be closed after
-     * processing the data. The decompressed data is returned in a new byte array.
+     * processing the data and any bytes following the compressed data are left unread. The decompressed data is returned in a
+     * new byte array.
      * 
      * @param in the input stream containing LZ10 compressed data.
      * @return a new byte array containing the decompressed data.
@@ -80,12 +156,26 @@ public final class LZ10 {
      * @throws LZ10Exception if the buffer does not contain proper LZ10 data.
      */
     public static byte[] decompress(InputStream in) throws IOException, LZ10Exception {
-        return decompress(new BinaryInputStream(in, ByteOrder.LITTLE_ENDIAN));
+        // Compressed bytes are fetched one at a time so that the stream is not read past the end of the LZ10 data.
+        LZ10InputStream decoder = new LZ10InputStream(in, 1);
+        byte[] out = new byte[decoder.length()];
+        
+        try {
+            decoder.readNBytes(out, 0, out.length);
+        }
+        catch(IOException ex) {
+            // Malformed data is reported like the array decoder does
+            LZ10InputStream.rethrowMalformed(ex);
+            throw ex;
+        }
+        
+        return out;
     }
     
     /**
      * Reads and decompresses LZ10-compressed data from the given {@code BinaryInputStream}. The input stream will not be closed
-     * after processing the data. The decompressed data is returned in a new byte array.
+     * after processing the data and any bytes following the compressed data are left unread. The decompressed data is returned
+     * in a new byte array.
      * 
      * @param in the input stream containing LZ10 compressed data.
      * @return a new byte array containing the decompressed data.
@@ -93,57 +183,300 @@ public final class LZ10 {
      * @throws LZ10Exception if the buffer does not contain proper LZ10 data.
      */
     public static byte[] decompress(BinaryInputStream in) throws IOException, LZ10Exception {
-        // Check header and get output buffer size
-        int lenOut = in.readInt();
+        return decompress((InputStream)in);
+    }
+    
+    /**
+     * Returns the size of the decompressed data that is declared by the LZ10 header at the start of the given byte array.
+     * 
+     * @param in the byte array containing LZ10 compressed data.
+     * @return the size of the decompressed data.
+     * @throws LZ10Exception if the buffer does not contain proper LZ10 data.
+     */
+    public static int decompressedSize(byte[] in) throws LZ10Exception {
+        return readHeader(in, 0, in.length);
+    }
+    
+    /**
+     * Reads and decompresses LZ10-compressed data from the given byte array range into the supplied output array. No memory
+     * is allocated by this method, which makes it suitable for decoding many buffers into a reused output array. The output
+     * array has to be at least as large as the size returned by {@code decompressedSize}.
+     * 
+     * @param in the byte array containing LZ10 compressed data.
+     * @param off the offset of the LZ10 header in the input array.
+     * @param len the number of compressed bytes available.
+     * @param out the array to store the decompressed data in.
+     * @return the number of decompressed bytes.
+     * @throws LZ10Exception if the buffer does not contain proper LZ10 data.
+     */
+    public static int decompress(byte[] in, int off, int len, byte[] out) throws LZ10Exception {
+        Objects.checkFromIndexSize(off, len, in.length);
+        int lenOut = readHeader(in, off, off + len);
         
-        if ((lenOut & 0xFF) != 0x10)
+        if (out.length < lenOut)
+            throw new IllegalArgumentException("Output array is too small to hold the decompressed data.");
+        
+        decode(in, off + 4, off + len, out, lenOut);
+        return lenOut;
+    }
+    
+    private static byte[] decompress(byte[] in, int offIn, int endIn) throws LZ10Exception {
+        byte[] out = new byte[readHeader(in, offIn, endIn)];
+        decode(in, offIn + 4, endIn, out, out.length);
+        return out;
+    }
+    
+    private static int readHeader(byte[] in, int offIn, int endIn) throws LZ10Exception {
+        if (endIn - offIn < 4 || in[offIn] != 0x10)
             throw new LZ10Exception("Stream does not contain LZ10 compressed data.");
-        lenOut >>= 8;
         
-        // Prepare output buffer
-        byte[] out = new byte[lenOut];
+        return (in[offIn + 1] & 0xFF) | (in[offIn + 2] & 0xFF) << 8 | (in[offIn + 3] & 0xFF) << 16;
+    }
+    
+    private static void decode(byte[] in, int offIn, int endIn, byte[] out, int lenOut) throws LZ10Exception {
         int offOut = 0;
         
-        // Decompress the stream's contents
-        int block = 0; // The control block that describes how to decompress data, 8-bit
-        int counter = 0; // Keeps track of the remaining bits to be checked for the current control block
-        int b0, b1, dist, lenCopy, offCopy;
-        
         while(offOut < lenOut) {
             // Get next control block. The bits are read starting from the most significant bit. If the bit is set, we read the
             // next two bytes that determine which decompressed bytes to copy into the output buffer. Otherwise, we copy the
             // next byte.
-            if (counter == 0) {
-                block = in.readUnsignedByte();
-                counter = 8;
-            }
+            if (offIn >= endIn)
+                throw new LZ10Exception("LZ10 data ends unexpectedly.");
             
-            // Read next byte
-            b0 = in.readUnsignedByte();
+            int block = in[offIn++];
             
-            // Is the most significant bit set? If so, copy decompressed data
-            if ((block & 0x80) != 0) {
-                // Read second byte
-                b1 = in.readUnsignedByte();
-
-                // Get copy offset and size
-                dist = ((b0 & 0xF) << 8) | b1;
-                offCopy = offOut - dist - 1;
-                lenCopy = (b0 >> 4) + 3;
-
-                // Copy 3+ bytes
-                for (int i = 0 ; i < lenCopy ; i++)
-                    out[offOut++] = out[offCopy + i];
+            for (int bit = 0x80 ; bit != 0 && offOut < lenOut ; bit >>>= 1) {
+                // Is the bit set? If so, copy decompressed data
+                if ((block & bit) != 0) {
+                    if (endIn - offIn < 2)
+                        throw new LZ10Exception("LZ10 data ends unexpectedly.");
+                    
+                    // Get copy offset and size
+                    int b0 = in[offIn++] & 0xFF;
+                    int b1 = in[offIn++] & 0xFF;
+                    int dist = (((b0 & 0xF) << 8) | b1) + 1;
+                    int offCopy = offOut - dist;
+                    int lenCopy = Math.min((b0 >>> 4) + 3, lenOut - offOut);
+                    
+                    if (offCopy < 0)
+                        throw new LZ10Exception("LZ10 data refers to bytes before the start of the output.");
+                    
+                    // Non-overlapping copies can be done in bulk. Otherwise, the copy has to repeat the bytes that are being
+                    // written right now, so it has to go byte by byte.
+                    if (dist >= lenCopy) {
+                        System.arraycopy(out, offCopy, out, offOut, lenCopy);
+                        offOut += lenCopy;
+                    }
+                    else {
+                        for (int i = 0 ; i < lenCopy ; i++)
+                            out[offOut++] = out[offCopy + i];
+                    }
+                }
+                // Otherwise, copy a plain byte into the output buffer.
+                else {
+                    if (offIn >= endIn)
+                        throw new LZ10Exception("LZ10 data ends unexpectedly.");
+                    
+                    out[offOut++] = in[offIn++];
+                }
             }
-            // Otherwise, copy a plain byte into the output buffer.
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Finds matches in the sliding window using hash chains over the three next bytes and writes the encoded tokens.
+     */
+    private static final class Compressor {
+        private final byte[] in;
+        private final int lenIn;
+        private final int maxChain;
+        private final boolean lazy, optimal;
+        
+        // Hash chain heads and links. Links are stored in a ring since older positions are outside the window anyway.
+        private final int[] head = new int[1 << HASH_BITS];
+        private final int[] prev = new int[WINDOW_SIZE];
+        private int nextInsert = 0;
+        
+        // Result of the last match search.
+        private int matchLen, matchDist;
+        
+        // Output buffer and the current control block.
+        private final byte[] out;
+        private int offOut, offBlock, blockBit;
+        
+        Compressor(byte[] data, int effort) {
+            in = data;
+            lenIn = data.length;
+            maxChain = MAX_CHAIN_LENGTHS[effort];
+            lazy = effort >= LAZY_EFFORT;
+            optimal = effort == MAX_EFFORT;
+            Arrays.fill(head, -1);
+            
+            // In the worst case, every byte is a literal and every eighth byte requires a new control block.
+            out = new byte[4 + lenIn + (lenIn + 7) / 8];
+            out[0] = 0x10;
+            out[1] = (byte)lenIn;
+            out[2] = (byte)(lenIn >>> 8);
+            out[3] = (byte)(lenIn >>> 16);
+            offOut = 4;
+        }
+        
+        byte[] compress() {
+            if (optimal)
+                compressOptimal();
             else
-                out[offOut++] = (byte)b0;
+                compressGreedy();
             
-            // Prepare next control block flag
-            block <<= 1;
-            counter--;
+            return Arrays.copyOf(out, offOut);
         }
         
-        return out;
+        private void compressGreedy() {
+            int pos = 0;
+            findMatch(pos);
+            
+            while(pos < lenIn) {
+                if (matchLen < MIN_MATCH) {
+                    writeLiteral(pos++);
+                    findMatch(pos);
+                    continue;
+                }
+                
+                // With lazy matching, a literal is written instead if the next position starts an even longer match.
+                int len = matchLen;
+                int dist = matchDist;
+                
+                if (lazy && len < MAX_MATCH) {
+                    findMatch(pos + 1);
+                    
+                    if (matchLen > len) {
+                        writeLiteral(pos++);
+                        continue;
+                    }
+                }
+                
+                writeMatch(len, dist);
+                pos += len;
+                findMatch(pos);
+            }
+        }
+        
+        private void compressOptimal() {
+            // Find the longest match for every position. Any shorter length at the same distance is valid as well.
+            byte[] lens = new byte[lenIn];
+            short[] dists = new short[lenIn];
+            
+            for (int pos = 0 ; pos < lenIn ; pos++) {
+                findMatch(pos);
+                lens[pos] = (byte)matchLen;
+                dists[pos] = (short)matchDist;
+            }
+            
+            // Determine the cheapest encoding from the back. Literals cost 9 bits and matches cost 17 bits.
+            int[] cost = new int[lenIn + 1];
+            byte[] choice = new byte[lenIn];
+            
+            for (int pos = lenIn - 1 ; pos >= 0 ; pos--) {
+                int best = cost[pos + 1] + 9;
+                int bestLen = 1;
+                
+                for (int len = MIN_MATCH ; len <= lens[pos] ; len++) {
+                    int c = cost[pos + len] + 17;
+                    
+                    if (c < best) {
+                        best = c;
+                        bestLen = len;
+                    }
+                }
+                
+                cost[pos] = best;
+                choice[pos] = (byte)bestLen;
+            }
+            
+            // Write the chosen tokens
+            for (int pos = 0 ; pos < lenIn ;) {
+                int len = choice[pos];
+                
+                if (len == 1)
+                    writeLiteral(pos);
+                else
+                    writeMatch(len, dists[pos]);
+                
+                pos += len;
+            }
+        }
+        
+        private int hash(int pos) {
+            int key = (in[pos] & 0xFF) << 16 | (in[pos + 1] & 0xFF) << 8 | (in[pos + 2] & 0xFF);
+            return (key * 0x9E3779B1) >>> (32 - HASH_BITS);
+        }
+        
+        private void findMatch(int pos) {
+            matchLen = 0;
+            matchDist = 0;
+            
+            // Insert all preceding positions into the hash chains
+            int lastHashable = Math.min(pos, lenIn - MIN_MATCH + 1);
+            
+            for (; nextInsert < lastHashable ; nextInsert++) {
+                int h = hash(nextInsert);
+                prev[nextInsert & (WINDOW_SIZE - 1)] = head[h];
+                head[h] = nextInsert;
+            }
+            
+            if (pos + MIN_MATCH > lenIn)
+                return;
+            
+            int maxLen = Math.min(MAX_MATCH, lenIn - pos);
+            int candidate = head[hash(pos)];
+            
+            for (int chain = maxChain ; candidate >= 0 && pos - candidate <= WINDOW_SIZE && chain > 0 ; chain--) {
+                // Quick check on the byte that would extend the current best match
+                if (in[candidate + matchLen] == in[pos + matchLen] || matchLen == 0) {
+                    int len = 0;
+                    
+                    while(len < maxLen && in[candidate + len] == in[pos + len])
+                        len++;
+                    
+                    if (len > matchLen) {
+                        matchLen = len;
+                        matchDist = pos - candidate;
+                        
+                        if (len == maxLen)
+                            break;
+                    }
+                }
+                
+                int next = prev[candidate & (WINDOW_SIZE - 1)];
+                
+                if (next >= candidate)
+                    break;
+                
+                candidate = next;
+            }
+        }
+        
+        private void nextBlockBit() {
+            if (blockBit == 0) {
+                offBlock = offOut++;
+                out[offBlock] = 0;
+                blockBit = 0x80;
+            }
+        }
+        
+        private void writeLiteral(int pos) {
+            nextBlockBit();
+            out[offOut++] = in[pos];
+            blockBit >>>= 1;
+        }
+        
+        private void writeMatch(int len, int dist) {
+            nextBlockBit();
+            out[offBlock] |= blockBit;
+            out[offOut++] = (byte)(((len - MIN_MATCH) << 4) | ((dist - 1) >>> 8));
+            out[offOut++] = (byte)(dist - 1);
+            blockBit >>>= 1;
+        }
     }
 }
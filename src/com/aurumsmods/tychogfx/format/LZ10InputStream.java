@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * An input stream that decompresses LZ10 data on demand. Only the last 4 KiB of decompressed data are kept in a ring buffer
+ * since back-references cannot reach any further. This allows callers to read the beginning of compressed data without having
+ * to decompress all of it into memory first. Data whose size is known up front is decoded faster by {@code LZ10.decompress}.
+ * <p>
+ * Compressed data is read from the underlying stream in blocks of 8 KiB, so bytes following the LZ10 data may be consumed as
+ * well. Only {@code LZ10.decompress(InputStream)}, which reads one compressed byte at a time, leaves them in the stream.
+ * <p>
+ * Malformed data is reported as an {@code IOException} whose cause is an {@code LZ10.LZ10Exception}, since the methods of
+ * {@code InputStream} cannot throw anything else.
+ * 
+ * @author Aurum
+ */
+public class LZ10InputStream extends FilterInputStream {
+    private static final int WINDOW_SIZE = 0x1000;
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+    private static final int INPUT_BUFFER_SIZE = 0x2000;
+    
+    // Ring buffer holding the most recently decompressed bytes.
+    private final byte[] window = new byte[WINDOW_SIZE];
+    
+    // Buffered compressed input.
+    private final byte[] input;
+    private int inputPos, inputLen;
+    
+    // Decompression progress
+    private final int length;
+    private int produced;
+    private int block, blockBit;
+    private int copyDist, copyRemaining;
+    
+    private final byte[] single = new byte[1];
+    private byte[] skipBuffer = null;
+    
+    /**
+     * Creates a new {@code LZ10InputStream} that decompresses the data from the specified input stream. The LZ10 header is read
+     * immediately.
+     * 
+     * @param in the input stream containing LZ10 compressed data.
+     * @throws IOException if an error occurs during reading.
+     * @throws LZ10.LZ10Exception if the stream does not contain proper LZ10 data.
+     */
+    public LZ10InputStream(InputStream in) throws IOException, LZ10.LZ10Exception {
+        this(in, INPUT_BUFFER_SIZE);
+    }
+    
+    /**
+     * Creates a new {@code LZ10InputStream} that reads at most {@code bufferSize} compressed bytes from the specified input
+     * stream at once. With a buffer size of 1, the underlying stream is never read beyond the end of the LZ10 data.
+     * 
+     * @param in the input stream containing LZ10 compressed data.
+     * @param bufferSize the number of compressed bytes to read at once.
+     * @throws IOException if an error occurs during reading.
+     * @throws LZ10.LZ10Exception if the stream does not contain proper LZ10 data.
+     */
+    LZ10InputStream(InputStream in, int bufferSize) throws IOException, LZ10.LZ10Exception {
+        super(Objects.requireNonNull(in));
+        input = new byte[bufferSize];
+        
+        try {
+            int header = nextByte();
+            if (header != 0x10)
+                throw new LZ10.LZ10Exception("Stream does not contain LZ10 compressed data.");
+            
+            length = nextByte() | nextByte() << 8 | nextByte() << 16;
+            produced = 0;
+        }
+        catch(IOException ex) {
+            rethrowMalformed(ex);
+            throw ex;
+        }
+    }
+    
+    /**
+     * Throws the {@code LZ10.LZ10Exception} that caused the specified exception, if any. Otherwise, this method returns and
+     * the caller rethrows the exception itself.
+     * 
+     * @param ex the exception thrown by an {@code LZ10InputStream}.
+     * @throws LZ10.LZ10Exception if the exception signals malformed LZ10 data.
+     */
+    static void rethrowMalformed(IOException ex) throws LZ10.LZ10Exception {
+        if (ex.getCause() instanceof LZ10.LZ10Exception)
+            throw (LZ10.LZ10Exception)ex.getCause();
+    }
+    
+    private static IOException malformed(IOException ex) {
+        ex.initCause(new LZ10.LZ10Exception(ex.getMessage()));
+        return ex;
+    }
+    
+    /**
+     * Returns the total number of bytes that this stream decompresses to.
+     * 
+     * @return the size of the decompressed data.
+     */
+    public int length() {
+        return length;
+    }
+    
+    /**
+     * Returns the number of decompressed bytes that have not been read or skipped yet. This is exact since the LZ10 header
+     * declares the size of the decompressed data.
+     * 
+     * @return the number of decompressed bytes remaining.
+     */
+    @Override
+    public int available() {
+        return length - produced;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        
+        if (len == 0)
+            return 0;
+        if (produced >= length)
+            return -1;
+        
+        int count = Math.min(len, length - produced);
+        decode(b, off, count);
+        return count;
+    }
+    
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+        
+        // Skipped bytes still have to be decompressed as later back-references may point to them.
+        if (skipBuffer == null)
+            skipBuffer = new byte[WINDOW_SIZE];
+        
+        long remaining = Math.min(n, length - produced);
+        long skipped = remaining;
+        
+        while(remaining > 0) {
+            int count = (int)Math.min(remaining, WINDOW_SIZE);
+            decode(skipBuffer, 0, count);
+            remaining -= count;
+        }
+        
+        return skipped;
+    }
+    
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+    @Override
+    public synchronized void mark(int readlimit) {
+        // not supported
+    }
+    
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+    
+    private void decode(byte[] b, int off, int count) throws IOException {
+        int end = off + count;
+        int pos = produced;
+        
+        while(off < end) {
+            // Finish any pending back-reference first
+            if (copyRemaining > 0) {
+                int n = Math.min(copyRemaining, end - off);
+                copyRemaining -= n;
+                
+                for (int i = 0 ; i < n ; i++, pos++) {
+                    byte val = window[(pos - copyDist) & WINDOW_MASK];
+                    window[pos & WINDOW_MASK] = val;
+                    b[off++] = val;
+                }
+                
+                continue;
+            }
+            
+            // Get next control block. The bits are read starting from the most significant bit.
+            if (blockBit == 0) {
+                block = nextByte();
+                blockBit = 0x80;
+            }
+            
+            // Is the bit set? If so, prepare copying decompressed data
+            if ((block & blockBit) != 0) {
+                int b0 = nextByte();
+                int b1 = nextByte();
+                copyDist = (((b0 & 0xF) << 8) | b1) + 1;
+                copyRemaining = (b0 >>> 4) + 3;
+                
+                if (copyDist > pos)
+                    throw malformed(new IOException("LZ10 data refers to bytes before the start of the output."));
+            }
+            // Otherwise, copy a plain byte
+            else {
+                byte val = (byte)nextByte();
+                window[pos & WINDOW_MASK] = val;
+                b[off++] = val;
+                pos++;
+            }
+            
+            blockBit >>>= 1;
+        }
+        
+        produced = pos;
+    }
+    
+    private int nextByte() throws IOException {
+        if (inputPos == inputLen) {
+            inputLen = in.read(input, 0, input.length);
+            inputPos = 0;
+            
+            if (inputLen <= 0) {
+                inputLen = 0;
+                throw malformed(new EOFException("LZ10 data ends unexpectedly."));
+            }
+        }
+        
+        return input[inputPos++] & 0xFF;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Reads the files of the NitroFS file system that is embedded in Nintendo DS ROM images. The file name table (FNT) assigns
+ * names and directories to file IDs and the file allocation table (FAT) stores the location of every file in the ROM. Files
+ * are not copied. Instead, every file is returned as a read-only view of the ROM, so a mapped ROM only loads the parts that
+ * are actually accessed.
+ * <p>
+ * File paths are relative to the root directory and use '/' as separator, for example "data/obj/hero.cat". Overlays and other
+ * files without a name are not listed.
+ * 
+ * @author Aurum
+ */
+public final class NitroFileSystem {
+    private static final int HEADER_SIZE = 0x200;
+    private static final int ROOT_DIRECTORY_ID = 0xF000;
+    
+    /**
+     * Returns the {@code NitroFileSystem} of the supplied ROM {@code File}, which is memory-mapped instead of being read.
+     * 
+     * @param file the *.nds file to map.
+     * @return the file system of the ROM.
+     * @throws IOException if an error occurs during reading or the ROM does not contain a proper file system.
+     */
+    public static NitroFileSystem mapRom(File file) throws IOException {
+        ByteBuffer mapped;
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("ROM exceeds the maximum size of 2 GiB.");
+            
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        
+        return unpackRom(mapped);
+    }
+    
+    /**
+     * Returns the {@code NitroFileSystem} of the ROM stored in the remaining bytes of the supplied {@code ByteBuffer}. The
+     * buffer's contents are not copied and its position is not modified.
+     * 
+     * @param buffer the {@code ByteBuffer} containing the ROM.
+     * @return the file system of the ROM.
+     * @throws IOException if the ROM does not contain a proper file system.
+     */
+    public static NitroFileSystem unpackRom(ByteBuffer buffer) throws IOException {
+        NitroFileSystem filesystem = new NitroFileSystem(buffer.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN));
+        filesystem.unpack();
+        return filesystem;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private final ByteBuffer rom;
+    private int[] fileStarts, fileEnds;
+    private final LinkedHashMap<String, Integer> files;
+    
+    private NitroFileSystem(ByteBuffer rom) {
+        this.rom = rom;
+        files = new LinkedHashMap();
+    }
+    
+    private void unpack() throws IOException {
+        if (rom.limit() < HEADER_SIZE)
+            throw new IOException("ROM is smaller than its header.");
+        
+        // Read header
+        int offFnt = rom.getInt(0x40);
+        int lenFnt = rom.getInt(0x44);
+        int offFat = rom.getInt(0x48);
+        int lenFat = rom.getInt(0x4C);
+        checkRange(offFnt, lenFnt, "File name table");
+        checkRange(offFat, lenFat, "File allocation table");
+        
+        // Read file allocation table, every entry holds the start and end offset of a file
+        int numFiles = lenFat / 8;
+        fileStarts = new int[numFiles];
+        fileEnds = new int[numFiles];
+        
+        for (int i = 0 ; i < numFiles ; i++) {
+            fileStarts[i] = rom.getInt(offFat + i * 8);
+            fileEnds[i] = rom.getInt(offFat + i * 8 + 4);
+        }
+        
+        // The root entry of the main table stores the total number of directories instead of a parent ID
+        ByteBuffer fnt = rom.slice(offFnt, lenFnt).order(ByteOrder.LITTLE_ENDIAN);
+        if (lenFnt < 8)
+            throw new IOException("File name table is too small.");
+        
+        int numDirs = Short.toUnsignedInt(fnt.getShort(6));
+        if (numDirs < 1 || numDirs > 0x1000 || numDirs * 8 > lenFnt)
+            throw new IOException(String.format("File name table declares %d directories.", numDirs));
+        
+        unpackDirectory(fnt, 0, "", new boolean[numDirs]);
+    }
+    
+    private void unpackDirectory(ByteBuffer fnt, int dirIdx, String prefix, boolean[] visited) throws IOException {
+        if (visited[dirIdx])
+            throw new IOException(String.format("Directory 0x%04X is referenced more than once.", ROOT_DIRECTORY_ID + dirIdx));
+        visited[dirIdx] = true;
+        
+        // Fetch main table entry
+        int offEntries = fnt.getInt(dirIdx * 8);
+        int fileId = Short.toUnsignedInt(fnt.getShort(dirIdx * 8 + 4));
+        
+        try {
+            // Every sub table entry starts with a byte that holds the name length and the directory flag
+            for (int off = offEntries ; ; ) {
+                int type = Byte.toUnsignedInt(fnt.get(off++));
+                
+                if (type == 0)
+                    break;
+                if (type == 0x80)
+                    throw new IOException(String.format("Invalid name table entry at 0x%X.", off - 1));
+                
+                int lenName = type & 0x7F;
+                byte[] rawName = new byte[lenName];
+                fnt.get(off, rawName);
+                off += lenName;
+                
+                // Names are stored without encoding information, but are ASCII in practice. ISO 8859-1 keeps them distinct.
+                String path = prefix + new String(rawName, StandardCharsets.ISO_8859_1);
+                
+                if ((type & 0x80) != 0) {
+                    int subDirIdx = Short.toUnsignedInt(fnt.getShort(off)) - ROOT_DIRECTORY_ID;
+                    off += 2;
+                    
+                    if (subDirIdx <= 0 || subDirIdx >= visited.length)
+                        throw new IOException(String.format("Directory %s refers to an invalid directory ID.", path));
+                    
+                    unpackDirectory(fnt, subDirIdx, path + "/", visited);
+                }
+                else {
+                    if (fileId >= fileStarts.length)
+                        throw new IOException(String.format("File %s refers to an invalid file ID.", path));
+                    
+                    checkRange(fileStarts[fileId], fileEnds[fileId] - fileStarts[fileId], path);
+                    files.put(path, fileId++);
+                }
+            }
+        }
+        catch(IndexOutOfBoundsException ex) {
+            throw new IOException("File name table is truncated.", ex);
+        }
+    }
+    
+    private void checkRange(int offset, int size, String name) throws IOException {
+        if (offset < 0 || size < 0 || offset > rom.limit() - size)
+            throw new IOException(String.format("%s is located outside of the ROM.", name));
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Returns the {@code Set} of paths of all named files in the order of the file name table.
+     * 
+     * @return the {@code Set} of file paths.
+     */
+    public Set<String> files() {
+        return files.keySet();
+    }
+    
+    /**
+     * Returns the count of named files.
+     * 
+     * @return the count of named files.
+     */
+    public int filesCount() {
+        return files.size();
+    }
+    
+    /**
+     * Attempts to find and return the ID of the specified file. If the file cannot be found, -1 is returned instead.
+     * 
+     * @param path the path of the file to be searched.
+     * @return the ID of the specified file if available. Otherwise, -1 is returned.
+     */
+    public int findFile(String path) {
+        Integer id = files.get(path);
+        if (id == null)
+            return -1;
+        return id;
+    }
+    
+    /**
+     * Returns a new little-endian, read-only view of the contents of the specified file. The view shares its contents with the
+     * ROM. If the file cannot be found, {@code null} is returned instead.
+     * 
+     * @param path the path of the file.
+     * @return a new view of the file's contents if available. Otherwise, {@code null} is returned.
+     */
+    public ByteBuffer fileView(String path) {
+        int id = findFile(path);
+        if (id < 0)
+            return null;
+        return fileView(id);
+    }
+    
+    /**
+     * Returns a new little-endian, read-only view of the contents of the file with the specified ID. The view shares its
+     * contents with the ROM.
+     * 
+     * @param id the ID of the file.
+     * @return a new view of the file's contents.
+     * @throws IndexOutOfBoundsException if there is no file with the specified ID or the file is located outside of the ROM.
+     */
+    public ByteBuffer fileView(int id) {
+        if (id < 0 || id >= fileStarts.length)
+            throw new IndexOutOfBoundsException(String.format("There is no file with ID %d.", id));
+        
+        // Only named files are checked while unpacking, so overlays and unused entries may still point anywhere
+        int start = fileStarts[id];
+        int size = fileEnds[id] - start;
+        
+        if (start < 0 || size < 0 || start > rom.limit() - size)
+            throw new IndexOutOfBoundsException(String.format("File %d is located outside of the ROM.", id));
+        
+        return rom.slice(start, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -18,22 +18,29 @@ package com.aurumsmods.tychogfx.format;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.stream.Stream;
 
 /**
  * A container storing the parsed animation sequences contained in a provided {@code FlatBuffer} object. Every sequence can be
- * retrieved using its type name and direction index. Before rendering any frame, one should make sure to invoke the function
- * {@code setPaletteOffsetAndPrerenderAllFrames} first. Otherwise, all frames will be invisible.
+ * retrieved using its type name and direction index. Frames are prerendered with indexed colors when their images are first
+ * requested, so switching palettes with {@code setPaletteOffset} does not require any frame to be drawn again.
  * 
  * @author Aurum
  */
 public final class ObjDesc {
     /**
-     * Sorted array of all supported ObjDesc types.
+     * Sorted array of all known ObjDesc types. Sections with other names that end with "ObjDesc" are recognized by their
+     * structure instead.
      */
-    private static final String[] OBJ_DESC_TYPES = {
+    static final String[] OBJ_DESC_TYPES = {
         "abilityObjDesc",              // special ability
         "ability_bodyObjDesc",         // special ability for body parts (see pokemon/gyarados)
         "ability_neckObjDesc",         // special ability for neck parts (see pokemon/gyarados)
@@ -99,10 +106,10 @@ public final class ObjDesc {
         "mizuObjDesc",                 // Water-type capturing line (see line)
         "musiObjDesc",                 // Bug-type capturing line (see line)
         "normalObjDesc",               // Capturing line (see line)
+        "openObjDesc",                 // ???
         "pose2ObjDesc",                // special pose 2
         "poseObjDesc",                 // special pose 1
         "pose_koObjDesc",              // ??? (see player/hero)
-        "openObjDesc",                 // ???
         "pukaObjDesc",                 // repaired submarine (see player/zero1)
         "pushObjDesc",                 // ???
         "rideObjDesc",                 // player starting ride (see player/hero)
@@ -113,7 +120,6 @@ public final class ObjDesc {
         "stand2ObjDesc",               // idle 2
         "standObjDesc",                // idle
         "stand_abilityObjDesc",        // smooth transition: idle -> special ability
-        "stand_abilityObjDesc",        // smooth transition: idle -> attack 1
         "stand_bodyObjDesc",           // idle for body parts
         "stand_flyObjDesc",            // smooth transition: idle -> airborne
         "stand_neckObjDesc",           // idle for neck parts
@@ -127,45 +133,211 @@ public final class ObjDesc {
         "zannenObjDesc"                // ??? (see mainmenu/DLminun)
     };
     
+    private static final String OBJ_DESC_SUFFIX = "ObjDesc";
+    
+    // The known types are stored in a perfect hash table that is built when the class is loaded. Every name is assigned to a
+    // bucket, and every bucket has a seed that places its names into distinct slots. A lookup therefore computes one slot and
+    // compares one string.
+    private static final int[] KNOWN_TYPE_SEEDS = new int[Integer.highestOneBit(OBJ_DESC_TYPES.length)];
+    private static final int MAX_KNOWN_TYPE_SEED = 0x10000;
+    private static final String[] KNOWN_TYPES = createKnownTypesTable(OBJ_DESC_TYPES, KNOWN_TYPE_SEEDS);
+    
+    /**
+     * Builds the perfect hash table for the specified names and stores the seed of every bucket in {@code seeds}. Names are
+     * told apart by their hash code alone, so duplicates and colliding hash codes are rejected. The table has four slots per
+     * bucket.
+     * 
+     * @throws IllegalStateException if the names cannot be placed into distinct slots.
+     */
+    static String[] createKnownTypesTable(String[] types, int[] seeds) {
+        Map<Integer, String> hashes = new HashMap(types.length * 2);
+        
+        for (String name : types) {
+            String other = hashes.put(name.hashCode(), name);
+            
+            if (other != null)
+                throw new IllegalStateException(String.format("Known types %s and %s share the same hash code", other, name));
+        }
+        
+        // Place the largest buckets first while most slots are still free
+        List<List<String>> buckets = new ArrayList(seeds.length);
+        for (int i = 0 ; i < seeds.length ; i++)
+            buckets.add(new ArrayList());
+        for (String name : types)
+            buckets.get(knownTypeBucket(name.hashCode(), seeds.length)).add(name);
+        
+        Integer[] order = new Integer[seeds.length];
+        for (int i = 0 ; i < order.length ; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+        
+        String[] table = new String[seeds.length * 4];
+        int mask = table.length - 1;
+        
+        for (int bucket : order) {
+            List<String> names = buckets.get(bucket);
+            
+            if (names.isEmpty())
+                continue;
+            
+            for (int seed = 1 ; ; seed++) {
+                if (seed > MAX_KNOWN_TYPE_SEED)
+                    throw new IllegalStateException(String.format("No seed places the known types %s", names));
+                
+                int[] slots = new int[names.size()];
+                boolean free = true;
+                
+                for (int i = 0 ; i < slots.length && free ; i++) {
+                    slots[i] = knownTypeSlot(names.get(i).hashCode(), seed, mask);
+                    free = table[slots[i]] == null;
+                    
+                    for (int j = 0 ; j < i && free ; j++)
+                        free = slots[j] != slots[i];
+                }
+                
+                if (free) {
+                    for (int i = 0 ; i < slots.length ; i++)
+                        table[slots[i]] = names.get(i);
+                    
+                    seeds[bucket] = seed;
+                    break;
+                }
+            }
+        }
+        
+        return table;
+    }
+    
+    private static int knownTypeBucket(int hash, int numBuckets) {
+        return (int)((Integer.toUnsignedLong(hash * 0x9E3779B9) * numBuckets) >>> 32);
+    }
+    
+    private static int knownTypeSlot(int hash, int seed, int mask) {
+        int h = (hash ^ seed) * 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return (h ^ (h >>> 16)) & mask;
+    }
+    
     /**
-     * Checks if the specified section name corresponds to the ObjDesc format. If it is, {@code true} will be returned, or else
-     * {@code false} will be returned.
+     * Checks if the specified section name is a known ObjDesc type. If it is, {@code true} will be returned, or else
+     * {@code false} will be returned. Use {@code isObjDescSection} to recognize unknown types as well.
      * 
      * @param name the section name.
-     * @return {@code true} if the section name corresponds to the ObjDesc format. Otherwise, {@code false} is returned.
+     * @return {@code true} if the section name is a known ObjDesc type. Otherwise, {@code false} is returned.
      */
     public static boolean isObjDesc(String name) {
-        return Arrays.binarySearch(OBJ_DESC_TYPES, name) >= 0;
+        int hash = name.hashCode();
+        int seed = KNOWN_TYPE_SEEDS[knownTypeBucket(hash, KNOWN_TYPE_SEEDS.length)];
+        return name.equals(KNOWN_TYPES[knownTypeSlot(hash, seed, KNOWN_TYPES.length - 1)]);
+    }
+    
+    /**
+     * Checks if the specified section of a flatbuffer is an ObjDesc section. Sections with a known ObjDesc type name are
+     * accepted right away. Other sections whose name ends with "ObjDesc" are accepted if the info blocks of their header are
+     * consistent, so animation types that are not known yet are found as well.
+     * 
+     * @param flatbuffer the {@code FlatBuffer} that contains the section.
+     * @param name the section name.
+     * @return {@code true} if the section is an ObjDesc section. Otherwise, {@code false} is returned.
+     */
+    public static boolean isObjDescSection(FlatBuffer flatbuffer, String name) {
+        int offset = flatbuffer.findSection(name);
+        return offset >= 0 && isObjDescSection(flatbuffer, name, offset);
+    }
+    
+    private static boolean isObjDescSection(FlatBuffer flatbuffer, String name, int offset) {
+        if (isObjDesc(name))
+            return true;
+        
+        return name.endsWith(OBJ_DESC_SUFFIX) && ObjDescParser.hasValidHeader(flatbuffer.data(), offset);
+    }
+    
+    /**
+     * Checks if the flatbuffer described by the specified header may contain ObjDesc sections, which is the case if any of
+     * its section names ends with "ObjDesc". This allows skipping files without sprites before their data is read. Sections
+     * of unknown types are validated once the flatbuffer is unpacked.
+     * 
+     * @param header the header returned by {@code FlatBuffer.probe}.
+     * @return {@code true} if at least one section name denotes an ObjDesc section. Otherwise, {@code false} is returned.
+     */
+    public static boolean containsObjDesc(FlatBuffer.Header header) {
+        return header.sectionNames().stream().anyMatch(name -> name.endsWith(OBJ_DESC_SUFFIX));
     }
     
     // -------------------------------------------------------------------------------------------------------------------------
     
     /**
      * Returns a {@code ObjDesc} as the getAnimations of parsing the ObjDesc sections contained in a supplied
-     * {@code FlatBuffer}. This container will hold all animations available in the specified flatbuffer.
+     * {@code FlatBuffer}. This container will hold all animations available in the specified flatbuffer. The sections are
+     * parsed concurrently on the common {@code ForkJoinPool}, but the animation types keep the order of the sections.
      * 
      * @param flatbuffer the {@code FlatBuffer} that contains ObjDesc sections.
      * @return a {@code ObjDesc} containing the parsed animation sequences.
      */
     public static ObjDesc unpackObjDesc(FlatBuffer flatbuffer) {
+        return unpackObjDesc(flatbuffer, false, true);
+    }
+    
+    /**
+     * Returns a {@code ObjDesc} as the result of parsing the ObjDesc sections contained in a supplied {@code FlatBuffer}.
+     * Unless {@code parallel} is set, the sections are parsed one after another on the calling thread. This is meant for
+     * callers that process many files on their own threads and should not share the common {@code ForkJoinPool}.
+     * 
+     * @param flatbuffer the {@code FlatBuffer} that contains ObjDesc sections.
+     * @param parallel whether the sections are parsed concurrently on the common {@code ForkJoinPool}.
+     * @return a {@code ObjDesc} containing the parsed animation sequences.
+     */
+    public static ObjDesc unpackObjDesc(FlatBuffer flatbuffer, boolean parallel) {
+        return unpackObjDesc(flatbuffer, false, parallel);
+    }
+    
+    /**
+     * Returns a {@code ObjDesc} that reads only the headers, palettes and sequence sizes of the ObjDesc sections contained in
+     * a supplied {@code FlatBuffer}. The frames and cells of a sequence are decoded when the sequence is accessed for the
+     * first time and frames are prerendered when they are displayed for the first time. This keeps the time until the first
+     * frame is displayed short for large files. The flatbuffer's data is kept for as long as the container is reachable.
+     * 
+     * @param flatbuffer the {@code FlatBuffer} that contains ObjDesc sections.
+     * @return a {@code ObjDesc} containing the lazily parsed animation sequences.
+     */
+    public static ObjDesc unpackObjDescLazily(FlatBuffer flatbuffer) {
+        return unpackObjDesc(flatbuffer, true, true);
+    }
+    
+    private static ObjDesc unpackObjDesc(FlatBuffer flatbuffer, boolean lazy, boolean parallel) {
         // Prepare the ObjDesc container that stores the parsed animations. The flatbuffer's section count also denotes the max
         // number of animation sequence types it can hold.
         ObjDesc objdesc = new ObjDesc(flatbuffer.sectionsCount());
         
-        for (Entry<String, Integer> labeledSection: flatbuffer.sections()) {
-            String sectionName = labeledSection.getKey();
-            
-            if (isObjDesc(sectionName)) {
-                // Parse ObjDesc section
-                int sectionOffset = labeledSection.getValue();
-                ObjDescParser parser = new ObjDescParser(flatbuffer, sectionOffset);
-                parser.parse();
-                
-                // Retrieve results
-                objdesc.animations.put(sectionName, parser.getAnimations());
-                objdesc.prerenderFrames.addAll(parser.getPrerenderFrames());
-                objdesc.paletteContexts.add(parser.getPaletteContext());
-            }
+        // Every parser works on its own view of the flatbuffer's data, so the sections can be parsed in parallel.
+        List<Entry<String, Integer>> labeledSections = flatbuffer.sections().stream()
+                .filter(labeledSection -> isObjDescSection(flatbuffer, labeledSection.getKey(), labeledSection.getValue()))
+                .toList();
+        
+        // Tile bitmaps are shared by all sections, so they are only copied once per file.
+        ObjDescTileStore tiles = new ObjDescTileStore(labeledSections.size() * 64);
+        
+        Stream<Entry<String, Integer>> stream = parallel ? labeledSections.parallelStream() : labeledSections.stream();
+        List<ObjDescParser> parsers = stream
+                .map(labeledSection -> {
+                    ObjDescParser parser = new ObjDescParser(flatbuffer, tiles, labeledSection.getValue());
+                    
+                    if (lazy)
+                        parser.parseLazily();
+                    else
+                        parser.parse();
+                    
+                    return parser;
+                })
+                .toList();
+        
+        // Retrieve results in section order
+        for (int i = 0 ; i < parsers.size() ; i++) {
+            ObjDescParser parser = parsers.get(i);
+            objdesc.animations.put(labeledSections.get(i).getKey(), parser.getAnimations());
+            objdesc.paletteContexts.add(parser.getPaletteContext());
+            objdesc.parsers.add(parser);
         }
         
         return objdesc;
@@ -173,14 +345,56 @@ public final class ObjDesc {
     
     // -------------------------------------------------------------------------------------------------------------------------
     
+    /**
+     * Reports how many frames are referenced by the animation sequences and how many distinct frames these references share.
+     * Sequences refer to the same frame record by its offset, and every frame record is parsed and prerendered only once.
+     */
+    public static final class FrameStatistics {
+        private final int frameReferences, uniqueFrames;
+        
+        private FrameStatistics(int frameReferences, int uniqueFrames) {
+            this.frameReferences = frameReferences;
+            this.uniqueFrames = uniqueFrames;
+        }
+        
+        /**
+         * Returns the number of frames in all animation sequences.
+         * 
+         * @return the number of frame references.
+         */
+        public int frameReferences() {
+            return frameReferences;
+        }
+        
+        /**
+         * Returns the number of distinct frames that are referenced by the animation sequences.
+         * 
+         * @return the number of distinct frames.
+         */
+        public int uniqueFrames() {
+            return uniqueFrames;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d frame references, %d unique frames", frameReferences, uniqueFrames);
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
     // Although a linked node implementation is used by the actual game, we are using array lists to store our animation frame
     // sequences. This is really just for time-efficiency since we want to access our individual frames using indices.
     private final LinkedHashMap<String, List<List<ObjDescFrame>>> animations;
-    
-    // To slightly improve prerendering, all the necessary frames will be collected first to prevent nested loops.
-    private final List<ObjDescFrame> prerenderFrames;
     private final List<ObjDescPalettes> paletteContexts;
     
+    // The parsers are kept to report statistics. They release their working data after parsing unless sequences are parsed
+    // lazily.
+    private final List<ObjDescParser> parsers;
+    
+    // Statistics of the animation types that have been restored without a parser.
+    private int restoredFrameReferences, restoredUniqueFrames;
+    
     // The current palette offset that is prerendered.
     private int paletteOffset;
     
@@ -189,30 +403,96 @@ public final class ObjDesc {
      * 
      * @param allocanims number of animation types to allocate space for.
      */
-    private ObjDesc(int allocanims) {
+    ObjDesc(int allocanims) {
         animations = new LinkedHashMap(allocanims);
-        prerenderFrames = new ArrayList(allocanims * 32);
         paletteContexts = new ArrayList(allocanims);
+        parsers = new ArrayList(allocanims);
+        restoredFrameReferences = 0;
+        restoredUniqueFrames = 0;
         paletteOffset = -1;
     }
     
     /**
-     * Sets the palette offset for every frame. This also forces all frames to be prerendered again.
+     * Adds an animation type whose sequences have been restored without parsing a flatbuffer, for example from a cache.
+     * 
+     * @param type the animation type.
+     * @param sequences the animation sequences of the type.
+     * @param context the palettes used by the frames of the type.
+     */
+    void addRestoredAnimationType(String type, List<List<ObjDescFrame>> sequences, ObjDescPalettes context) {
+        Set<ObjDescFrame> uniqueFrames = Collections.newSetFromMap(new IdentityHashMap());
+        
+        for (List<ObjDescFrame> sequence : sequences) {
+            uniqueFrames.addAll(sequence);
+            restoredFrameReferences += sequence.size();
+        }
+        
+        restoredUniqueFrames += uniqueFrames.size();
+        animations.put(type, sequences);
+        paletteContexts.add(context);
+    }
+    
+    /**
+     * Returns the palettes of every animation type, in the same order as {@code animationTypes}.
+     * 
+     * @return the palettes of every animation type.
+     */
+    List<ObjDescPalettes> paletteContexts() {
+        return paletteContexts;
+    }
+    
+    /**
+     * Sets the palette offset for every frame. Frames are prerendered with indexed colors, so this only replaces the color
+     * models and does not redraw any pixels. Images returned by {@code ObjDescFrame.prerendered} use the new palettes from now
+     * on.
      * 
      * @param offset the palette offset.
      */
-    public void setPaletteOffsetAndPrerenderAllFrames(int offset) {
+    public void setPaletteOffset(int offset) {
         if (paletteOffset != offset) {
             paletteOffset = offset;
-        
+            
             for (ObjDescPalettes context : paletteContexts)
-                context.offset = offset;
-
-            for (ObjDescFrame frame : prerenderFrames)
-                frame.prerender();
+                context.setOffset(offset);
+        }
+    }
+    
+    /**
+     * Sets the palette offset for every frame and makes sure that all frames have been prerendered. Only frames that have not
+     * been prerendered yet or that use too many palettes for indexed colors are drawn. If the container was unpacked lazily,
+     * this decodes all sequences.
+     * 
+     * @param offset the palette offset.
+     */
+    public void setPaletteOffsetAndPrerenderAllFrames(int offset) {
+        setPaletteOffset(offset);
+        
+        for (List<List<ObjDescFrame>> sequences : animations.values()) {
+            for (List<ObjDescFrame> sequence : sequences) {
+                for (ObjDescFrame frame : sequence)
+                    frame.prerender();
+            }
         }
     }
     
+    /**
+     * Returns the number of frame references and distinct frames. If the container was unpacked lazily, only the sequences
+     * that have been accessed so far are counted.
+     * 
+     * @return the frame statistics.
+     */
+    public FrameStatistics frameStatistics() {
+        int frameReferences = restoredFrameReferences;
+        int uniqueFrames = restoredUniqueFrames;
+        
+        for (ObjDescParser parser : parsers) {
+            frameReferences += parser.frameReferences();
+            uniqueFrames += parser.uniqueFrames();
+        }
+        
+        return new FrameStatistics(frameReferences, uniqueFrames);
+    }
+    
     /**
      * Returns a list of animation types that exist in this container.
      * 
@@ -247,4 +527,24 @@ public final class ObjDesc {
         
         return sequenceLists.get(direction);
     }
+    
+    /**
+     * Returns the number of 16-color palettes that the specified animation type provides. If the type does not exist in this
+     * container, -1 is returned instead.
+     * 
+     * @param type the animation sequence type.
+     * @return the number of palettes of the type if available. Otherwise, -1 is returned.
+     */
+    public int paletteCount(String type) {
+        int index = 0;
+        
+        for (String name : animations.keySet()) {
+            if (name.equals(type))
+                return paletteContexts.get(index).palettes.length;
+            
+            index++;
+        }
+        
+        return -1;
+    }
 }
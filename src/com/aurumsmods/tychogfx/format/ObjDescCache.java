@@ -0,0 +1,803 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+/**
+ * Stores fully parsed {@code ObjDesc} containers in a directory, so that reopening a file skips decompressing and parsing it.
+ * Every source file has one cache file, whose name is derived from the source's path. A cache file is only used if the size
+ * and modification time of the source file still match the ones it was created from. If only the modification time differs,
+ * the source's content hash is compared instead.
+ * <p>
+ * A cache file holds the deduplicated palettes and tile bitmaps, the cell blocks, every distinct frame and the animation
+ * tables that refer to them by index. Optionally, the prerendered indexed pixels of the frames are stored as well, so frames
+ * do not even have to be prerendered again. All values are little-endian and the contents following the header are protected
+ * by a CRC-32C checksum. Cache files are memory-mapped while they are loaded. Their header is read first and only files that
+ * match their source are mapped, so outdated files are never mapped and can be replaced on every platform.
+ * 
+ * @author Aurum
+ */
+public final class ObjDescCache {
+    private static final int MAGIC = 0x434F4754; // "TGOC"
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".objc";
+    private static final int NONE = -1;
+    
+    // The header holds the source's path, which is read without mapping the file.
+    private static final int MAX_HEADER_SIZE = 0x2000;
+    
+    // Tile bitmap sizes are stored as 16-bit values in flatbuffers.
+    private static final int MAX_TILE_SIZE = 0xFFFF;
+    
+    private final File directory;
+    
+    /**
+     * Creates a new cache that stores its files in the specified directory. The directory is created when the first file is
+     * stored.
+     * 
+     * @param directory the cache directory.
+     */
+    public ObjDescCache(File directory) {
+        this.directory = directory;
+    }
+    
+    /**
+     * Returns the directory in which the cache files are stored.
+     * 
+     * @return the cache directory.
+     */
+    public File directory() {
+        return directory;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Returns the cached {@code ObjDesc} for the specified source file. If there is no cache file for the source, or if the
+     * source has changed since the cache file was created, {@code null} is returned. Damaged cache files are treated as if they
+     * did not exist.
+     * 
+     * @param source the flatbuffer file.
+     * @return the cached {@code ObjDesc}, or {@code null} if the cache does not hold an up-to-date version.
+     * @throws IOException if the source file cannot be read.
+     */
+    public ObjDesc load(File source) throws IOException {
+        File file = cacheFile(source);
+        
+        if (!file.isFile())
+            return null;
+        
+        ObjDesc objdesc;
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate((int)Math.min(size, MAX_HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+            
+            while(header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0)
+                    break;
+            }
+            
+            header.flip();
+            
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || !SourceKey.read(header).isCurrent(source))
+                return null;
+            
+            // The contents are copied into the container, so the mapping is not used afterwards
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(header.position());
+            
+            // Reject damaged contents before any of it is used
+            int checksum = buffer.getInt();
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.duplicate());
+            
+            if ((int)crc.getValue() != checksum)
+                return null;
+            
+            objdesc = new Reader(buffer).read();
+        }
+        catch(BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException ex) {
+            return null;
+        }
+        
+        // Keep track of recently used files for trimming
+        file.setLastModified(System.currentTimeMillis());
+        return objdesc;
+    }
+    
+    /**
+     * Stores the specified {@code ObjDesc} as the cached version of the specified source file, replacing any previous cache
+     * file. If the container was unpacked lazily, all of its sequences are decoded. If pixels are included, all frames that
+     * use indexed colors are prerendered. If the calling thread is interrupted meanwhile, no cache file is written.
+     * 
+     * @param source the flatbuffer file that the container was unpacked from.
+     * @param objdesc the unpacked container.
+     * @param includePixels whether the prerendered indexed pixels should be stored as well.
+     * @throws InterruptedIOException if the calling thread has been interrupted.
+     * @throws IOException if the source file cannot be read or the cache file cannot be written.
+     */
+    public void store(File source, ObjDesc objdesc, boolean includePixels) throws IOException {
+        // Channels are closed when their thread is interrupted, which means the store was abandoned as well
+        try {
+            storeInterruptibly(source, objdesc, includePixels);
+        }
+        catch(ClosedByInterruptException ex) {
+            InterruptedIOException interrupted = new InterruptedIOException("Storing the cache file was interrupted.");
+            interrupted.initCause(ex);
+            throw interrupted;
+        }
+    }
+    
+    private void storeInterruptibly(File source, ObjDesc objdesc, boolean includePixels) throws IOException {
+        SourceKey key = SourceKey.of(source);
+        Writer writer = new Writer(includePixels);
+        writer.out.putInt(MAGIC).putInt(VERSION);
+        key.write(writer);
+        
+        // The checksum is filled in once the contents are known
+        int offChecksum = writer.out.position();
+        writer.out.putInt(0);
+        writer.write(objdesc);
+        
+        CRC32C crc = new CRC32C();
+        crc.update(writer.out.array(), offChecksum + 4, writer.out.position() - offChecksum - 4);
+        writer.out.putInt(offChecksum, (int)crc.getValue());
+        
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException(String.format("Could not create cache directory %s", directory));
+        
+        // Write into a temporary file first, so readers never see a partially written cache file
+        Path target = cacheFile(source).toPath();
+        Path temp = Files.createTempFile(directory.toPath(), "objdesc", ".tmp");
+        
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer data = writer.out.flip();
+                
+                while(data.hasRemaining())
+                    channel.write(data);
+            }
+            
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch(AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    /**
+     * Returns the cached {@code ObjDesc} for the specified source file. If the cache does not hold an up-to-date version, the
+     * file is unpacked and stored in the cache, including its prerendered pixels.
+     * 
+     * @param source the flatbuffer file.
+     * @return the unpacked {@code ObjDesc}.
+     * @throws IOException if the source file cannot be read or the cache file cannot be written.
+     * @throws LZ10.LZ10Exception if the source file contains malformed LZ10 data.
+     */
+    public ObjDesc open(File source) throws IOException, LZ10.LZ10Exception {
+        ObjDesc objdesc = load(source);
+        
+        if (objdesc == null) {
+            objdesc = ObjDesc.unpackObjDesc(FlatBuffer.unpackFlatBuffer(source));
+            store(source, objdesc, true);
+        }
+        
+        return objdesc;
+    }
+    
+    /**
+     * Deletes the least recently used cache files until all cache files together take up no more than the specified number of
+     * bytes.
+     * 
+     * @param maxBytes the maximum size of the cache directory's files.
+     * @throws IOException if the cache directory cannot be listed.
+     */
+    public void trim(long maxBytes) throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        
+        if (files == null)
+            return;
+        
+        long total = 0L;
+        
+        for (File file : files)
+            total += file.length();
+        
+        // Oldest files first
+        long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        
+        for (int i = 0 ; i < files.length ; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        
+        Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+        
+        for (int i = 0 ; i < order.length && total > maxBytes ; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            
+            if (file.delete())
+                total -= length;
+        }
+    }
+    
+    /**
+     * Returns the cache file that belongs to the specified source file.
+     * 
+     * @param source the flatbuffer file.
+     * @return the cache file.
+     * @throws IOException if the canonical path of the source file cannot be determined.
+     */
+    public File cacheFile(File source) throws IOException {
+        byte[] path = source.getCanonicalPath().getBytes(StandardCharsets.UTF_8);
+        return new File(directory, UUID.nameUUIDFromBytes(path) + SUFFIX);
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Identifies the contents of a source file by its path, size, modification time and CRC-32C checksum.
+     */
+    private static final class SourceKey {
+        final String path;
+        final long size, lastModified;
+        final int hash;
+        
+        private SourceKey(String path, long size, long lastModified, int hash) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+        
+        static SourceKey of(File source) throws IOException {
+            return new SourceKey(source.getCanonicalPath(), source.length(), source.lastModified(), hash(source));
+        }
+        
+        static SourceKey read(ByteBuffer in) {
+            String path = readString(in);
+            long size = in.getLong();
+            long lastModified = in.getLong();
+            return new SourceKey(path, size, lastModified, in.getInt());
+        }
+        
+        void write(Writer writer) {
+            writer.putString(path);
+            writer.out.putLong(size).putLong(lastModified).putInt(hash);
+        }
+        
+        /**
+         * Checks whether the source file still has the contents that this key was created from. The source is only hashed if
+         * its size is unchanged but its modification time differs, for example after it was copied or touched.
+         */
+        boolean isCurrent(File source) throws IOException {
+            if (!path.equals(source.getCanonicalPath()) || size != source.length())
+                return false;
+            
+            return lastModified == source.lastModified() || hash == hash(source);
+        }
+        
+        private static int hash(File source) throws IOException {
+            CRC32C crc = new CRC32C();
+            
+            try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                
+                for (long position = 0L ; position < size ; position += Integer.MAX_VALUE) {
+                    long length = Math.min(size - position, Integer.MAX_VALUE);
+                    crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                }
+            }
+            
+            return (int)crc.getValue();
+        }
+    }
+    
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[checkCount(in, in.getInt(), 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Checks that a count read from a cache file is not negative and that its elements can fit into the remaining bytes, so
+     * damaged files cannot cause huge allocations.
+     */
+    private static int checkCount(ByteBuffer in, int count, int minElementSize) {
+        if (count < 0 || (long)count * minElementSize > in.remaining())
+            throw new IllegalArgumentException("Damaged cache file.");
+        
+        return count;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Serializes an {@code ObjDesc}. Palettes, tiles, cell blocks and frames are assigned indices in the order they are first
+     * encountered, so shared objects are written only once.
+     */
+    private static final class Writer {
+        private final boolean includePixels;
+        private ByteBuffer out;
+        
+        private final HashMap<IntArrayKey, Integer> palettes;
+        private final List<IntArrayKey> paletteList;
+        private final IdentityHashMap<byte[], Integer> tiles;
+        private final List<byte[]> tileList;
+        private final IdentityHashMap<ObjDescCells, Integer> blocks;
+        private final List<ObjDescCells> blockList;
+        private final IdentityHashMap<ObjDescPalettes, Integer> contexts;
+        private final List<ObjDescPalettes> contextList;
+        private final IdentityHashMap<ObjDescFrame, Integer> frames;
+        private final List<ObjDescFrame> frameList;
+        
+        Writer(boolean includePixels) {
+            this.includePixels = includePixels;
+            out = ByteBuffer.allocate(0x10000).order(ByteOrder.LITTLE_ENDIAN);
+            palettes = new HashMap();
+            paletteList = new ArrayList();
+            tiles = new IdentityHashMap();
+            tileList = new ArrayList();
+            blocks = new IdentityHashMap();
+            blockList = new ArrayList();
+            contexts = new IdentityHashMap();
+            contextList = new ArrayList();
+            frames = new IdentityHashMap();
+            frameList = new ArrayList();
+        }
+        
+        void write(ObjDesc objdesc) throws InterruptedIOException {
+            // Collect all shared objects first, since they have to be written before the tables that refer to them. Decoding
+            // lazy sequences takes most of the time, so interruption is checked for every sequence.
+            List<String> types = objdesc.animationTypes();
+            List<ObjDescPalettes> typeContexts = objdesc.paletteContexts();
+            
+            for (int i = 0 ; i < types.size() ; i++) {
+                indexOf(contexts, contextList, typeContexts.get(i));
+                
+                for (List<ObjDescFrame> sequence : objdesc.animationSequences(types.get(i))) {
+                    if (Thread.interrupted())
+                        throw new InterruptedIOException("Storing the cache file was interrupted.");
+                    
+                    for (ObjDescFrame frame : sequence)
+                        collect(frame);
+                }
+            }
+            
+            // Palettes, deduplicated by their colors
+            int[][] contextPalettes = new int[contextList.size()][];
+            
+            for (int i = 0 ; i < contextList.size() ; i++) {
+                int[][] colors = contextList.get(i).palettes;
+                contextPalettes[i] = new int[colors.length];
+                
+                for (int p = 0 ; p < colors.length ; p++) {
+                    if (colors[p] == null)
+                        contextPalettes[i][p] = NONE;
+                    else
+                        contextPalettes[i][p] = indexOf(palettes, paletteList, new IntArrayKey(colors[p]));
+                }
+            }
+            
+            out.putInt(paletteList.size());
+            for (IntArrayKey palette : paletteList)
+                putInts(palette.values);
+            
+            out.putInt(contextList.size());
+            for (int[] ids : contextPalettes) {
+                out.putInt(ids.length);
+                putInts(ids);
+            }
+            
+            // Tiles
+            out.putInt(tileList.size());
+            for (byte[] tile : tileList) {
+                out.putInt(tile.length);
+                putBytes(tile);
+            }
+            
+            // Cell blocks
+            out.putInt(blockList.size());
+            for (ObjDescCells block : blockList)
+                writeBlock(block);
+            
+            // Frames
+            out.putInt(frameList.size());
+            for (ObjDescFrame frame : frameList)
+                writeFrame(frame);
+            
+            // Animation tables
+            out.putInt(types.size());
+            
+            for (int i = 0 ; i < types.size() ; i++) {
+                List<List<ObjDescFrame>> sequences = objdesc.animationSequences(types.get(i));
+                putString(types.get(i));
+                out.putInt(contexts.get(typeContexts.get(i)));
+                out.putInt(sequences.size());
+                
+                for (List<ObjDescFrame> sequence : sequences) {
+                    ensure(4 + sequence.size() * 4);
+                    out.putInt(sequence.size());
+                    
+                    for (ObjDescFrame frame : sequence)
+                        out.putInt(frames.get(frame));
+                }
+            }
+        }
+        
+        private void collect(ObjDescFrame frame) {
+            if (frames.containsKey(frame))
+                return;
+            
+            indexOf(frames, frameList, frame);
+            
+            if (frame.paletteContext != null)
+                indexOf(contexts, contextList, frame.paletteContext);
+            
+            if (frame.cells != null && !blocks.containsKey(frame.cells)) {
+                ObjDescCells block = frame.cells;
+                indexOf(blocks, blockList, block);
+                
+                for (int cell = 0 ; cell < block.size() ; cell++)
+                    indexOf(tiles, tileList, block.bitmap(cell));
+            }
+        }
+        
+        private void writeBlock(ObjDescCells block) {
+            int count = block.size();
+            ensure(4 + count * 12);
+            out.putInt(count);
+            
+            for (int cell = 0 ; cell < count ; cell++)
+                out.putShort((short)block.x(cell));
+            for (int cell = 0 ; cell < count ; cell++)
+                out.putShort((short)block.y(cell));
+            for (int cell = 0 ; cell < count ; cell++)
+                out.putShort((short)block.paletteIdx(cell));
+            for (int cell = 0 ; cell < count ; cell++)
+                out.put((byte)block.dims(cell));
+            for (int cell = 0 ; cell < count ; cell++)
+                out.put((byte)block.flipBits(cell));
+            for (int cell = 0 ; cell < count ; cell++)
+                out.putInt(tiles.get(block.bitmap(cell)));
+        }
+        
+        private void writeFrame(ObjDescFrame frame) {
+            ensure(0x100);
+            out.put((byte)frame.seqType.ordinal());
+            out.putInt(frame.duration).putInt(frame.shakeArgX).putInt(frame.shakeArgY);
+            out.putInt(frame.unkShakeArgX).putInt(frame.unkShakeArgY).putInt(frame.loopCount);
+            out.putInt(frame.paletteContext == null ? NONE : contexts.get(frame.paletteContext));
+            out.putInt(frame.cells == null ? NONE : blocks.get(frame.cells));
+            out.putInt(frame.firstCell).putInt(frame.numCells);
+            
+            Rectangle bounds = frame.bounds;
+            out.putInt(bounds.x).putInt(bounds.y).putInt(bounds.width).putInt(bounds.height);
+            
+            if (frame.paletteSlots == null)
+                out.putInt(NONE);
+            else {
+                out.putInt(frame.paletteSlots.size());
+                
+                for (int slot : frame.paletteSlots)
+                    out.putInt(slot);
+            }
+            
+            byte[] pixels = includePixels ? frame.indexedPixelData() : null;
+            
+            if (pixels == null)
+                out.putInt(NONE);
+            else {
+                out.putInt(pixels.length);
+                putBytes(pixels);
+            }
+        }
+        
+        private static <T> int indexOf(Map<T, Integer> indices, List<T> list, T value) {
+            Integer index = indices.get(value);
+            
+            if (index == null) {
+                index = list.size();
+                indices.put(value, index);
+                list.add(value);
+            }
+            
+            return index;
+        }
+        
+        private void putInts(int[] values) {
+            ensure(values.length * 4);
+            
+            for (int value : values)
+                out.putInt(value);
+        }
+        
+        private void putBytes(byte[] bytes) {
+            ensure(bytes.length);
+            out.put(bytes);
+        }
+        
+        private void putString(String str) {
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length);
+            out.putInt(bytes.length);
+            out.put(bytes);
+        }
+        
+        private void ensure(int count) {
+            if (out.remaining() < count) {
+                long capacity = Math.max((long)out.position() + count, out.capacity() * 2L);
+                
+                if (capacity > Integer.MAX_VALUE - 8)
+                    throw new IllegalStateException("Cache file exceeds the maximum size of 2 GiB.");
+                
+                ByteBuffer grown = ByteBuffer.allocate((int)capacity).order(ByteOrder.LITTLE_ENDIAN);
+                grown.put(out.flip());
+                out = grown;
+            }
+        }
+    }
+    
+    /**
+     * Wraps an array of colors so that palettes can be deduplicated by their contents.
+     */
+    private static final class IntArrayKey {
+        final int[] values;
+        
+        IntArrayKey(int[] values) {
+            this.values = values;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof IntArrayKey && Arrays.equals(values, ((IntArrayKey)obj).values);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Restores an {@code ObjDesc} from the contents of a cache file. Everything that the prerendering relies on is validated,
+     * so a damaged file that passes the checksum still cannot produce frames that fail when they are displayed.
+     */
+    private static final class Reader {
+        private final ByteBuffer in;
+        
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+        
+        ObjDesc read() {
+            // Palettes
+            int[][] palettes = new int[checkCount(in, in.getInt(), 64)][];
+            
+            for (int i = 0 ; i < palettes.length ; i++)
+                palettes[i] = getInts(16);
+            
+            ObjDescPalettes[] contexts = new ObjDescPalettes[checkCount(in, in.getInt(), 4)];
+            
+            for (int i = 0 ; i < contexts.length ; i++) {
+                int[] ids = getInts(checkCount(in, in.getInt(), 4));
+                contexts[i] = new ObjDescPalettes(ids.length);
+                
+                for (int p = 0 ; p < ids.length ; p++)
+                    contexts[i].palettes[p] = ids[p] == NONE ? null : palettes[ids[p]];
+            }
+            
+            // Tiles
+            byte[][] tiles = new byte[checkCount(in, in.getInt(), 4)][];
+            
+            for (int i = 0 ; i < tiles.length ; i++) {
+                tiles[i] = new byte[checkCount(in, in.getInt(), 1)];
+                checkData(tiles[i].length <= MAX_TILE_SIZE);
+                in.get(tiles[i]);
+            }
+            
+            // Cell blocks
+            ObjDescCells[] blocks = new ObjDescCells[checkCount(in, in.getInt(), 4)];
+            
+            for (int i = 0 ; i < blocks.length ; i++)
+                blocks[i] = readBlock(tiles);
+            
+            // Frames
+            ObjDescFrame[] frames = new ObjDescFrame[checkCount(in, in.getInt(), 53)];
+            
+            for (int i = 0 ; i < frames.length ; i++)
+                frames[i] = readFrame(contexts, blocks);
+            
+            // Animation tables
+            int numTypes = checkCount(in, in.getInt(), 12);
+            ObjDesc objdesc = new ObjDesc(numTypes);
+            
+            for (int i = 0 ; i < numTypes ; i++) {
+                String type = readString(in);
+                ObjDescPalettes context = contexts[in.getInt()];
+                List<ObjDescFrame>[] sequences = new List[checkCount(in, in.getInt(), 4)];
+                
+                for (int seq = 0 ; seq < sequences.length ; seq++) {
+                    ObjDescFrame[] sequence = new ObjDescFrame[checkCount(in, in.getInt(), 4)];
+                    
+                    for (int f = 0 ; f < sequence.length ; f++)
+                        sequence[f] = frames[in.getInt()];
+                    
+                    sequences[seq] = List.of(sequence);
+                }
+                
+                objdesc.addRestoredAnimationType(type, List.of(sequences), context);
+            }
+            
+            return objdesc;
+        }
+        
+        private ObjDescCells readBlock(byte[][] tiles) {
+            int count = checkCount(in, in.getInt(), 12);
+            short[] x = getShorts(count);
+            short[] y = getShorts(count);
+            short[] palette = getShorts(count);
+            byte[] dims = new byte[count];
+            byte[] flip = new byte[count];
+            in.get(dims);
+            in.get(flip);
+            int[] tile = getInts(count);
+            
+            for (int cell = 0 ; cell < count ; cell++) {
+                Objects.checkIndex(tile[cell], tiles.length);
+                checkData((dims[cell] & ~0xF) == 0);
+            }
+            
+            return new ObjDescCells(x, y, palette, dims, flip, tile, tiles);
+        }
+        
+        private ObjDescFrame readFrame(ObjDescPalettes[] contexts, ObjDescCells[] blocks) {
+            ObjDescFrame frame = new ObjDescFrame();
+            frame.seqType = ObjDescFrame.SeqType.values()[in.get()];
+            frame.duration = in.getInt();
+            frame.shakeArgX = in.getInt();
+            frame.shakeArgY = in.getInt();
+            frame.unkShakeArgX = in.getInt();
+            frame.unkShakeArgY = in.getInt();
+            frame.loopCount = in.getInt();
+            
+            int context = in.getInt();
+            int block = in.getInt();
+            frame.paletteContext = context == NONE ? null : contexts[context];
+            frame.cells = block == NONE ? null : blocks[block];
+            frame.firstCell = in.getInt();
+            frame.numCells = in.getInt();
+            frame.bounds.setBounds(in.getInt(), in.getInt(), in.getInt(), in.getInt());
+            
+            int numSlots = in.getInt();
+            
+            if (numSlots != NONE) {
+                Integer[] slots = new Integer[checkCount(in, numSlots, 4)];
+                checkData(slots.length <= ObjDescFrame.MAX_INDEXED_PALETTES);
+                
+                for (int i = 0 ; i < slots.length ; i++)
+                    slots[i] = in.getInt();
+                
+                frame.paletteSlots = List.of(slots);
+            }
+            
+            if (frame.cells != null)
+                checkCells(frame);
+            
+            int numPixels = in.getInt();
+            
+            if (numPixels != NONE) {
+                checkData(frame.hasPrerender() && frame.paletteSlots != null);
+                checkData(numPixels == (long)frame.bounds.width * frame.bounds.height);
+                
+                byte[] pixels = new byte[checkCount(in, numPixels, 1)];
+                in.get(pixels);
+                
+                // Every pixel value has to be transparent or refer to one of the frame's palette slots
+                int maxValue = frame.paletteSlots.size() * 16;
+                
+                for (byte pixel : pixels)
+                    checkData(pixel == 0 || (pixel & 0xFF) < maxValue);
+                
+                frame.restoreIndexedPixels(pixels);
+            }
+            
+            return frame;
+        }
+        
+        /**
+         * Checks that the frame's cells exist, that its bounds are the union of its cells like the parser computes them and
+         * that the palette of every cell has a slot.
+         */
+        private void checkCells(ObjDescFrame frame) {
+            ObjDescCells cells = frame.cells;
+            Objects.checkFromIndexSize(frame.firstCell, frame.numCells, cells.size());
+            checkData(frame.paletteContext != null);
+            
+            int minX = Integer.MAX_VALUE;
+            int minY = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE;
+            int maxY = Integer.MIN_VALUE;
+            
+            for (int cell = frame.firstCell ; cell < frame.firstCell + frame.numCells ; cell++) {
+                minX = Math.min(minX, cells.x(cell));
+                minY = Math.min(minY, cells.y(cell));
+                maxX = Math.max(maxX, cells.x(cell) + cells.width(cell));
+                maxY = Math.max(maxY, cells.y(cell) + cells.height(cell));
+                
+                if (frame.paletteSlots != null)
+                    checkData(frame.paletteSlots.contains(cells.paletteIdx(cell)));
+            }
+            
+            Rectangle bounds = frame.bounds;
+            checkData(bounds.x == minX && bounds.y == minY && bounds.width == maxX - minX && bounds.height == maxY - minY);
+        }
+        
+        private static void checkData(boolean valid) {
+            if (!valid)
+                throw new IllegalArgumentException("Damaged cache file.");
+        }
+        
+        private short[] getShorts(int count) {
+            short[] values = new short[count];
+            in.asShortBuffer().get(values);
+            in.position(in.position() + count * 2);
+            return values;
+        }
+        
+        private int[] getInts(int count) {
+            int[] values = new int[count];
+            in.asIntBuffer().get(values);
+            in.position(in.position() + count * 4);
+            return values;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.util.Arrays;
+
+/**
+ * An immutable block of frame cells whose attributes are stored in packed primitive arrays. Frames refer to a range of cells
+ * in a block instead of holding an object for every cell. The tile of a cell is an index into the tile bitmaps of its section.
+ * <p>
+ * Blocks are created by a {@code Builder}, which collects the cells of all frames that are parsed at once.
+ * 
+ * @author Aurum
+ */
+final class ObjDescCells {
+    /**
+     * Collects cells until they are turned into an immutable block.
+     */
+    static final class Builder {
+        private short[] x, y, palette;
+        private byte[] dims, flip;
+        private int[] tile;
+        private int count;
+        
+        Builder() {
+            x = new short[64];
+            y = new short[64];
+            palette = new short[64];
+            dims = new byte[64];
+            flip = new byte[64];
+            tile = new int[64];
+            count = 0;
+        }
+        
+        /**
+         * Returns the number of cells added since the last block was built, which is the index of the next cell in the next
+         * block.
+         * 
+         * @return the number of pending cells.
+         */
+        int size() {
+            return count;
+        }
+        
+        /**
+         * Appends a cell to the next block.
+         * 
+         * @param tileIdx the index of the cell's tile bitmap.
+         * @param widthDim the width dimension from 0 to 3, denoting 8 to 64 pixels.
+         * @param heightDim the height dimension from 0 to 3, denoting 8 to 64 pixels.
+         * @param paletteIdx the palette index.
+         * @param flipBits the flip bits. Bit 0 flips horizontally, bit 1 flips vertically.
+         * @param posX the X position of the cell.
+         * @param posY the Y position of the cell.
+         */
+        void add(int tileIdx, int widthDim, int heightDim, int paletteIdx, int flipBits, int posX, int posY) {
+            if (count == tile.length) {
+                int capacity = count * 2;
+                x = Arrays.copyOf(x, capacity);
+                y = Arrays.copyOf(y, capacity);
+                palette = Arrays.copyOf(palette, capacity);
+                dims = Arrays.copyOf(dims, capacity);
+                flip = Arrays.copyOf(flip, capacity);
+                tile = Arrays.copyOf(tile, capacity);
+            }
+            
+            x[count] = (short)posX;
+            y[count] = (short)posY;
+            palette[count] = (short)paletteIdx;
+            dims[count] = (byte)(widthDim | heightDim << 2);
+            flip[count] = (byte)flipBits;
+            tile[count] = tileIdx;
+            count++;
+        }
+        
+        /**
+         * Creates a block from the pending cells and starts a new one.
+         * 
+         * @param tiles the tile bitmaps of the section. Entries that are used by the cells must not be changed anymore.
+         * @return the new block.
+         */
+        ObjDescCells build(byte[][] tiles) {
+            ObjDescCells block = new ObjDescCells(Arrays.copyOf(x, count), Arrays.copyOf(y, count),
+                    Arrays.copyOf(palette, count), Arrays.copyOf(dims, count), Arrays.copyOf(flip, count),
+                    Arrays.copyOf(tile, count), tiles);
+            count = 0;
+            return block;
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private final short[] x, y, palette;
+    private final byte[] dims, flip;
+    private final int[] tile;
+    private final byte[][] tiles;
+    
+    /**
+     * Creates a block that takes ownership of the specified arrays, which all have to be of the same length. The dimensions
+     * hold the width dimension in bits 0 and 1 and the height dimension in bits 2 and 3.
+     */
+    ObjDescCells(short[] x, short[] y, short[] palette, byte[] dims, byte[] flip, int[] tile, byte[][] tiles) {
+        this.x = x;
+        this.y = y;
+        this.palette = palette;
+        this.dims = dims;
+        this.flip = flip;
+        this.tile = tile;
+        this.tiles = tiles;
+    }
+    
+    int size() {
+        return tile.length;
+    }
+    
+    int x(int cell) {
+        return x[cell];
+    }
+    
+    int y(int cell) {
+        return y[cell];
+    }
+    
+    int width(int cell) {
+        return 8 << (dims[cell] & 3);
+    }
+    
+    int height(int cell) {
+        return 8 << ((dims[cell] >>> 2) & 3);
+    }
+    
+    int dims(int cell) {
+        return dims[cell];
+    }
+    
+    int paletteIdx(int cell) {
+        return palette[cell];
+    }
+    
+    int flipBits(int cell) {
+        return flip[cell];
+    }
+    
+    byte[] bitmap(int cell) {
+        return tiles[tile[cell]];
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    // The cells are drawn straight into the backing arrays of the prerendered images. Instead of mirroring the position of
+    // every pixel, the destination is walked backwards along flipped axes. Every bitmap byte holds two pixels, the lower
+    // nybble being the first one. Widths are always even, so a byte never spans two rows.
+    
+    void prerenderIndexed(int cell, byte[] pixels, int offPixels, int stride, int slot) {
+        byte[] bitmap = bitmap(cell);
+        int width = width(cell);
+        int value = slot << 4;
+        int colStep = (flip[cell] & 1) != 0 ? -1 : 1;
+        int rowStep = (flip[cell] & 2) != 0 ? -stride : stride;
+        int rowStart = offPixels + firstPixelOffset(cell, stride);
+        int numPixels = Math.min(bitmap.length * 2, width * height(cell));
+        
+        for (int p = 0, src = 0 ; p < numPixels ; rowStart += rowStep) {
+            int dst = rowStart;
+            int rowEnd = Math.min(p + width, numPixels);
+            
+            for (; p < rowEnd ; p += 2, dst += colStep * 2) {
+                int colorIDs = bitmap[src++];
+                int lo = colorIDs & 15;
+                int hi = (colorIDs >>> 4) & 15;
+                
+                // Draw pixel if color is not the first in palette as these are always transparent
+                if (lo != 0)
+                    pixels[dst] = (byte)(value | lo);
+                if (hi != 0)
+                    pixels[dst + colStep] = (byte)(value | hi);
+            }
+        }
+    }
+    
+    void prerenderDirect(int cell, int[] pixels, int offPixels, int stride, int[] palette) {
+        byte[] bitmap = bitmap(cell);
+        int width = width(cell);
+        int colStep = (flip[cell] & 1) != 0 ? -1 : 1;
+        int rowStep = (flip[cell] & 2) != 0 ? -stride : stride;
+        int rowStart = offPixels + firstPixelOffset(cell, stride);
+        int numPixels = Math.min(bitmap.length * 2, width * height(cell));
+        
+        for (int p = 0, src = 0 ; p < numPixels ; rowStart += rowStep) {
+            int dst = rowStart;
+            int rowEnd = Math.min(p + width, numPixels);
+            
+            for (; p < rowEnd ; p += 2, dst += colStep * 2) {
+                int colorIDs = bitmap[src++];
+                int lo = colorIDs & 15;
+                int hi = (colorIDs >>> 4) & 15;
+                
+                // Draw pixel if color is not the first in palette as these are always transparent
+                if (lo != 0)
+                    pixels[dst] = palette[lo];
+                if (hi != 0)
+                    pixels[dst + colStep] = palette[hi];
+            }
+        }
+    }
+    
+    private int firstPixelOffset(int cell, int stride) {
+        int off = 0;
+        
+        if ((flip[cell] & 1) != 0)
+            off += width(cell) - 1;
+        if ((flip[cell] & 2) != 0)
+            off += (height(cell) - 1) * stride;
+        
+        return off;
+    }
+}
@@ -16,74 +16,322 @@
  */
 package com.aurumsmods.tychogfx.format;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 import javax.imageio.ImageIO;
 
 /**
- * Provides methods to dump animation sequences or individual animation frames as PNG images.
+ * Provides methods to dump animation sequences or individual animation frames as PNG images. Dumping is done in a pipeline:
+ * the frames to be dumped are collected first, then encoded into PNG data in parallel and finally written to their files in
+ * order. Only a limited number of encoded frames is held in memory at any time.
  * 
  * @author Aurum
  */
 public final class ObjDescDumper {
+    /**
+     * Receives progress updates while a {@code DumpTask} is running. Updates are reported on the thread that runs the task.
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        /**
+         * Called after a frame has been written.
+         * 
+         * @param dumped the number of frames that have been processed so far.
+         * @param total the total number of frames to be processed.
+         */
+        void progress(int dumped, int total);
+    }
+    
+    /**
+     * A prepared list of frames to be dumped. A task can be run only once and can be cancelled from any thread.
+     */
+    public static final class DumpTask {
+        private final List<ObjDescFrame> frames;
+        private final List<File> files;
+        private volatile boolean cancelled;
+        private ProgressListener listener;
+        private int compressionLevel;
+        
+        private DumpTask() {
+            frames = new ArrayList();
+            files = new ArrayList();
+            cancelled = false;
+            listener = null;
+            compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        }
+        
+        private void add(List<ObjDescFrame> sequence, String type, int seq, String root) {
+            for (int frameid = 0 ; frameid < sequence.size() ; frameid++)
+                add(sequence.get(frameid), type, seq, frameid, root);
+        }
+        
+        private void add(ObjDescFrame frame, String type, int seq, int frameid, String root) {
+            frames.add(frame);
+            files.add(new File(String.format("%s/%s_%d_%d.png", root, type, seq, frameid)));
+        }
+        
+        /**
+         * Returns the number of frames to be dumped by this task.
+         * 
+         * @return the number of frames.
+         */
+        public int frameCount() {
+            return frames.size();
+        }
+        
+        /**
+         * Sets the listener that receives progress updates.
+         * 
+         * @param progressListener the listener, or {@code null} to disable updates.
+         */
+        public void setProgressListener(ProgressListener progressListener) {
+            listener = progressListener;
+        }
+        
+        /**
+         * Sets the deflate compression level used for frames with indexed colors. Lower levels encode faster, but produce
+         * larger files.
+         * 
+         * @param level the compression level, ranging from 0 to 9 or {@code Deflater.DEFAULT_COMPRESSION}.
+         */
+        public void setCompressionLevel(int level) {
+            if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+                throw new IllegalArgumentException("Invalid compression level: " + level);
+            
+            compressionLevel = level;
+        }
+        
+        /**
+         * Cancels this task. Frames that have already been written are kept, but no further frames will be written.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+        
+        /**
+         * Returns {@code true} if this task has been cancelled.
+         * 
+         * @return {@code true} if this task has been cancelled.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        
+        /**
+         * Runs this task by encoding the frames on the common {@code ForkJoinPool}.
+         * 
+         * @return {@code true} if all frames have been dumped, {@code false} if the task has been cancelled.
+         * @throws IOException if a frame cannot be encoded or written.
+         */
+        public boolean run() throws IOException {
+            return run(ForkJoinPool.commonPool(), 2 * ForkJoinPool.getCommonPoolParallelism() + 1);
+        }
+        
+        /**
+         * Runs this task by encoding the frames using the specified executor. The encoded frames are written on the calling
+         * thread in the order they have been added. At most {@code maxPending} frames are encoded or waiting to be written at
+         * the same time.
+         * 
+         * @param executor the executor used to encode the frames.
+         * @param maxPending the maximum number of frames that are encoded or waiting to be written.
+         * @return {@code true} if all frames have been dumped, {@code false} if the task has been cancelled.
+         * @throws IOException if a frame cannot be encoded or written.
+         */
+        public boolean run(ExecutorService executor, int maxPending) throws IOException {
+            if (maxPending < 1)
+                throw new IllegalArgumentException("At least one frame has to be processed at a time.");
+            
+            int total = frames.size();
+            ArrayDeque<Future<byte[]>> pending = new ArrayDeque(maxPending);
+            int next = 0;
+            
+            try {
+                for (int dumped = 0 ; dumped < total ;) {
+                    if (cancelled)
+                        return false;
+                    
+                    // Keep the encoders busy, but never hold more than the allowed number of frames
+                    while(next < total && pending.size() < maxPending) {
+                        ObjDescFrame frame = frames.get(next++);
+                        pending.add(executor.submit(() -> encodeFrame(frame)));
+                    }
+                    
+                    // Write the oldest frame
+                    byte[] png = awaitFrame(pending.poll());
+                    
+                    if (png != null)
+                        Files.write(files.get(dumped).toPath(), png);
+                    
+                    dumped++;
+                    
+                    if (listener != null)
+                        listener.progress(dumped, total);
+                }
+                
+                return true;
+            }
+            finally {
+                for (Future<byte[]> future : pending)
+                    future.cancel(false);
+            }
+        }
+        
+        private byte[] awaitFrame(Future<byte[]> future) throws IOException {
+            try {
+                return future.get();
+            }
+            catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+                throw new InterruptedIOException("Dumping frames was interrupted.");
+            }
+            catch(ExecutionException ex) {
+                if (ex.getCause() instanceof IOException)
+                    throw (IOException)ex.getCause();
+                throw new IOException(ex.getCause());
+            }
+        }
+        
+        private byte[] encodeFrame(ObjDescFrame frame) throws IOException {
+            // Frames with indexed colors are written as palette images directly from their indexed pixels
+            byte[] indexed = frame.indexedPixelData();
+            
+            if (indexed != null) {
+                Rectangle bounds = frame.bounds;
+                return IndexedPngWriter.encode(bounds.width, bounds.height, indexed, frame.indexedColorModel(), compressionLevel);
+            }
+            
+            BufferedImage sprite = frame.prerendered();
+            
+            if (sprite == null)
+                return null;
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream(sprite.getWidth() * sprite.getHeight() / 2 + 64);
+            ImageIO.write(sprite, "png", out);
+            return out.toByteArray();
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
     private ObjDescDumper() {
         throw new IllegalStateException("Instantiation of this class is forbidden!");
     }
     
-    public static boolean dumpAnimationTypes(ObjDesc objdesc, String folder) throws IOException {
-        boolean result = true;
+    /**
+     * Prepares a task that dumps all frames of all animation types.
+     * 
+     * @param objdesc the ObjDesc container.
+     * @param folder the output folder.
+     * @return the task that dumps the frames.
+     */
+    public static DumpTask prepareAnimationTypes(ObjDesc objdesc, String folder) {
+        DumpTask task = new DumpTask();
         
-        for (String type : objdesc.animationTypes())
-            result |= dumpAnimationSequences(objdesc, type, folder);
+        for (String type : objdesc.animationTypes()) {
+            List<List<ObjDescFrame>> sequences = objdesc.animationSequences(type);
+            
+            for (int seq = 0 ; seq < sequences.size() ; seq++)
+                task.add(sequences.get(seq), type, seq, folder);
+        }
         
-        return result;
+        return task;
     }
     
-    public static boolean dumpAnimationSequences(ObjDesc objdesc, String type, String folder) throws IOException {
+    /**
+     * Prepares a task that dumps all frames of all sequences of the specified animation type. If the type does not exist,
+     * {@code null} is returned.
+     * 
+     * @param objdesc the ObjDesc container.
+     * @param type the animation type.
+     * @param folder the output folder.
+     * @return the task that dumps the frames, or {@code null} if the type does not exist.
+     */
+    public static DumpTask prepareAnimationSequences(ObjDesc objdesc, String type, String folder) {
         List<List<ObjDescFrame>> sequences = objdesc.animationSequences(type);
         
         if (sequences == null)
-            return false;
+            return null;
+        
+        DumpTask task = new DumpTask();
         
         for (int seq = 0 ; seq < sequences.size() ; seq++)
-            dumpAnimationSequence(sequences.get(seq), type, seq, folder);
+            task.add(sequences.get(seq), type, seq, folder);
         
-        return true;
+        return task;
     }
     
-    public static boolean dumpAnimationSequence(ObjDesc objdesc, String type, int seq, String folder) throws IOException {
+    /**
+     * Prepares a task that dumps all frames of the specified animation sequence. If the sequence does not exist, {@code null}
+     * is returned.
+     * 
+     * @param objdesc the ObjDesc container.
+     * @param type the animation type.
+     * @param seq the animation sequence.
+     * @param folder the output folder.
+     * @return the task that dumps the frames, or {@code null} if the sequence does not exist.
+     */
+    public static DumpTask prepareAnimationSequence(ObjDesc objdesc, String type, int seq, String folder) {
         List<ObjDescFrame> sequence = objdesc.animationSequence(type, seq);
         
         if (sequence == null)
-            return false;
+            return null;
         
-        dumpAnimationSequence(sequence, type, seq, folder);
-        return false;
+        DumpTask task = new DumpTask();
+        task.add(sequence, type, seq, folder);
+        return task;
     }
     
-    public static boolean dumpAnimationFrame(ObjDesc objdesc, String type, int seq, int frameid, String folder) throws IOException {
+    /**
+     * Prepares a task that dumps a single frame. If the sequence does not exist, {@code null} is returned.
+     * 
+     * @param objdesc the ObjDesc container.
+     * @param type the animation type.
+     * @param seq the animation sequence.
+     * @param frameid the frame index.
+     * @param folder the output folder.
+     * @return the task that dumps the frame, or {@code null} if the sequence does not exist.
+     */
+    public static DumpTask prepareAnimationFrame(ObjDesc objdesc, String type, int seq, int frameid, String folder) {
         List<ObjDescFrame> sequence = objdesc.animationSequence(type, seq);
         
         if (sequence == null)
-            return false;
+            return null;
         
-        dumpAnimationFrame(sequence.get(frameid), type, seq, frameid, folder);
-        return true;
+        DumpTask task = new DumpTask();
+        task.add(sequence.get(frameid), type, seq, frameid, folder);
+        return task;
     }
     
-    private static void dumpAnimationSequence(List<ObjDescFrame> sequence, String type, int seq, String root) throws IOException {
-        for (int frameid = 0 ; frameid < sequence.size() ; frameid++)
-            dumpAnimationFrame(sequence.get(frameid), type, seq, frameid, root);
+    public static boolean dumpAnimationTypes(ObjDesc objdesc, String folder) throws IOException {
+        return prepareAnimationTypes(objdesc, folder).run();
     }
     
-    private static void dumpAnimationFrame(ObjDescFrame frame, String type, int seq, int frameid, String root) throws IOException {
-        BufferedImage sprite = frame.prerendered();
-
-        if (sprite != null) {
-            File spriteFile = new File(String.format("%s/%s_%d_%d.png", root, type, seq, frameid));
-            ImageIO.write(sprite, "png", spriteFile);
-        }
+    public static boolean dumpAnimationSequences(ObjDesc objdesc, String type, String folder) throws IOException {
+        DumpTask task = prepareAnimationSequences(objdesc, type, folder);
+        return task != null && task.run();
+    }
+    
+    public static boolean dumpAnimationSequence(ObjDesc objdesc, String type, int seq, String folder) throws IOException {
+        DumpTask task = prepareAnimationSequence(objdesc, type, seq, folder);
+        return task != null && task.run();
+    }
+    
+    public static boolean dumpAnimationFrame(ObjDesc objdesc, String type, int seq, int frameid, String folder) throws IOException {
+        DumpTask task = prepareAnimationFrame(objdesc, type, seq, frameid, folder);
+        return task != null && task.run();
     }
 }
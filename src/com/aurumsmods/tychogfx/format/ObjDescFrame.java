@@ -18,6 +18,12 @@ package com.aurumsmods.tychogfx.format;
 
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.List;
 
 /**
  * A single animation prerendered used by {@code ObjDesc} animations that stores the necessary animation to control the
@@ -60,54 +66,37 @@ public final class ObjDescFrame {
     
     // -------------------------------------------------------------------------------------------------------------------------
     
-    final static class Cell {
-        ObjDescPalettes paletteContext;
-        int paletteIdx, x, y, width, height;
-        byte flipBits;
-        byte[] bitmap;
-
-        private void prerenderIntoFrame(BufferedImage frame, int offX, int offY) {
-            int[] palette = paletteContext.getPalette(paletteIdx);
-            int numPixels = bitmap.length * 2;
-            
-            for (int p = 0, colorID = 0 ; p < numPixels ; p++) {
-                // Read a new byte every second pixel
-                if ((p & 1) == 0)
-                    colorID = bitmap[p >> 1];
-                
-                // Calculate absolute pixel position in the prerendered frame
-                int rx = x - offX + mirror(p % width, (flipBits & 1) != 0, width);
-                int ry = y - offY + mirror(p / width, (flipBits & 2) != 0, height);
-
-                // Draw pixel if color is not the first in palette as these are always transparent
-                if ((colorID & 15) != 0)
-                    frame.setRGB(rx, ry, palette[colorID & 15]);
-                
-                // Retrieve upper nybble
-                colorID >>>= 4;
-            }
-        }
-
-        private int mirror(int val, boolean flip, int dist) {
-            return flip ? dist - val - 1 : val;
-        }
-    }
-    
-    // -------------------------------------------------------------------------------------------------------------------------
+    /**
+     * The maximum number of different palettes that can be stored in a single indexed prerender.
+     */
+    static final int MAX_INDEXED_PALETTES = 16;
     
     // These are package-private and will be set by the parser.
-    BufferedImage prerendered;
-    Cell[] cells;
+    ObjDescPalettes paletteContext;
+    ObjDescCells cells;
+    int firstCell, numCells;
     SeqType seqType;
     int duration, shakeArgX, shakeArgY, unkShakeArgX, unkShakeArgY, loopCount;
     Rectangle bounds;
     
+    // The palette indices used by the cells. Pixels of the indexed prerender refer to their palette by its position in this
+    // list. If the cells use too many palettes, this is null and the frame is prerendered with direct colors instead.
+    List<Integer> paletteSlots;
+    
+    // The prerendered palette indices are drawn only once. The image wraps them together with the color model of the current
+    // palette offset and is replaced whenever the offset changes.
+    private volatile WritableRaster indexedPixels;
+    private volatile BufferedImage prerendered;
+    private int prerenderedOffset;
+    
     /**
      * Constructs a new ObjDescFrame with the default parameters and no prerendered.
      */
     ObjDescFrame() {
-        prerendered = null;
+        paletteContext = null;
         cells = null;
+        firstCell = 0;
+        numCells = 0;
         seqType = SeqType.LOOP_SEQUENCE;
         duration = INVALID_ARGUMENT;
         shakeArgX = INVALID_ARGUMENT;
@@ -116,25 +105,143 @@ public final class ObjDescFrame {
         unkShakeArgY = INVALID_ARGUMENT;
         loopCount = INVALID_ARGUMENT;
         bounds = new Rectangle();
+        paletteSlots = null;
+        indexedPixels = null;
+        prerendered = null;
+    }
+    
+    /**
+     * Returns {@code true} if this frame has cells that can be prerendered.
+     * 
+     * @return {@code true} if the frame can be prerendered.
+     */
+    boolean hasPrerender() {
+        return cells != null && bounds.width > 0 && bounds.height > 0;
+    }
+    
+    /**
+     * Prerenders the frame by assembling the individual frame cells. Frames with indexed colors are only drawn once, since
+     * changing the palette offset only replaces the color model.
+     */
+    synchronized void prerender() {
+        if (!hasPrerender())
+            return;
+        
+        if (paletteSlots != null) {
+            if (indexedPixels == null)
+                indexedPixels = createIndexedRaster(prerenderIndexedPixels());
+        }
+        else if (prerendered == null || prerenderedOffset != paletteContext.getOffset()) {
+            int offset = paletteContext.getOffset();
+            BufferedImage image = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
+            int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+            
+            for (int cell = firstCell ; cell < firstCell + numCells ; cell++) {
+                int[] palette = paletteContext.getPalette(cells.paletteIdx(cell));
+                cells.prerenderDirect(cell, pixels, cellPixelOffset(cell), bounds.width, palette);
+            }
+            
+            prerenderedOffset = offset;
+            prerendered = image;
+        }
     }
     
     /**
-     * Prerenders the frame by assembling the individual frame cells.
+     * Assembles the cells into a new array of indexed pixels. Every row of the frame bounds takes up {@code bounds.width}
+     * bytes. A pixel value consists of the slot of the cell's palette in {@code paletteSlots} and the color index.
+     * 
+     * @return the indexed pixels of the frame.
      */
-    void prerender() {
-        if (prerendered != null && cells != null) {
-            for (Cell cell : cells)
-                cell.prerenderIntoFrame(prerendered, bounds.x, bounds.y);
+    byte[] prerenderIndexedPixels() {
+        byte[] pixels = new byte[bounds.width * bounds.height];
+        
+        for (int cell = firstCell ; cell < firstCell + numCells ; cell++) {
+            int slot = paletteSlots.indexOf(cells.paletteIdx(cell));
+            cells.prerenderIndexed(cell, pixels, cellPixelOffset(cell), bounds.width, slot);
         }
+        
+        return pixels;
+    }
+    
+    /**
+     * Uses the specified indexed pixels instead of prerendering them, for example when they have been restored from a cache.
+     * The array has to be laid out like the result of {@code prerenderIndexedPixels} and must not be modified afterwards.
+     * 
+     * @param pixels the indexed pixels of the frame.
+     */
+    synchronized void restoreIndexedPixels(byte[] pixels) {
+        if (pixels.length != bounds.width * bounds.height)
+            throw new IllegalArgumentException("Pixel data does not match the frame bounds.");
+        
+        indexedPixels = createIndexedRaster(pixels);
+    }
+    
+    private WritableRaster createIndexedRaster(byte[] pixels) {
+        DataBufferByte buffer = new DataBufferByte(pixels, bounds.width * bounds.height);
+        return Raster.createInterleavedRaster(buffer, bounds.width, bounds.height, bounds.width, 1, new int[] {0}, null);
     }
     
     /**
-     * Returns the assembled animation prerendered image.
+     * Returns the indexed pixels of the frame, prerendering them first if necessary. The array is shared with the prerendered
+     * image and must not be modified. If the frame does not have any cells or uses direct colors, {@code null} is returned.
+     * 
+     * @return the indexed pixels of the frame.
+     */
+    byte[] indexedPixelData() {
+        if (!hasPrerender() || paletteSlots == null)
+            return null;
+        
+        WritableRaster raster = indexedPixels;
+        
+        if (raster == null) {
+            prerender();
+            raster = indexedPixels;
+        }
+        
+        return ((DataBufferByte)raster.getDataBuffer()).getData();
+    }
+    
+    /**
+     * Returns the color model that maps the indexed pixels to the colors of the current palette offset.
+     * 
+     * @return the color model of the indexed pixels.
+     */
+    IndexColorModel indexedColorModel() {
+        return paletteContext.getColorModel(paletteSlots);
+    }
+    
+    private int cellPixelOffset(int cell) {
+        return (cells.y(cell) - bounds.y) * bounds.width + cells.x(cell) - bounds.x;
+    }
+    
+    /**
+     * Returns the assembled animation prerendered image using the current palette offset. If the frame does not have any
+     * cells, {@code null} is returned.
      * 
      * @return the animation prerendered image.
      */
     public BufferedImage prerendered() {
-        return prerendered;
+        if (!hasPrerender())
+            return null;
+        
+        if (paletteSlots == null) {
+            prerender();
+            return prerendered;
+        }
+        
+        // Wrap the indexed pixels with the color model of the current palette offset if it has changed
+        IndexColorModel colorModel = paletteContext.getColorModel(paletteSlots);
+        BufferedImage image = prerendered;
+        
+        if (image == null || image.getColorModel() != colorModel) {
+            if (indexedPixels == null)
+                prerender();
+            
+            image = new BufferedImage(colorModel, indexedPixels, false, null);
+            prerendered = image;
+        }
+        
+        return image;
     }
     
     /**
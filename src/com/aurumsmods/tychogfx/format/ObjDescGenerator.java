@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Generates synthetic flatbuffers containing ObjDesc sections, which can be used to test and benchmark loading, parsing and
+ * rendering without any game files. Every animation type becomes one section that holds its own tiles, palettes, cells,
+ * frames and sequences in the layout that {@code ObjDescParser} expects. The contents are random, but are fully determined by
+ * the seed. Tile bitmaps consist of runs of colors and transparent pixels, so they compress similarly to sprites.
+ * <p>
+ * Within a section, tiles and cell sets are referenced by 16-bit indices, so a section cannot contain more than 65535 of them.
+ * Large files are created by increasing the number of tiles per section or the number of animation types.
+ * 
+ * @author Aurum
+ */
+public final class ObjDescGenerator {
+    private static final int MAX_INDEX = 0xFFFF;
+    
+    private long seed = 0L;
+    private String[] animationTypes = { "standObjDesc", "walkObjDesc", "runObjDesc", "attack1ObjDesc" };
+    private int sequencesPerType = 8;
+    private int framesPerType = 16;
+    private int framesPerSequence = 8;
+    private int cellSetsPerType = 8;
+    private int maxCellsPerFrame = 4;
+    private int tilesPerType = 16;
+    private int maxCellSize = 32;
+    private int palettesPerType = 4;
+    
+    /**
+     * Creates a new generator with small default settings.
+     */
+    public ObjDescGenerator() {
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Sets the seed of the random contents.
+     * 
+     * @param val the seed.
+     * @return this generator.
+     */
+    public ObjDescGenerator setSeed(long val) {
+        seed = val;
+        return this;
+    }
+    
+    /**
+     * Sets the animation types to be generated. Every type becomes one section.
+     * 
+     * @param types the section names, which should end with "ObjDesc".
+     * @return this generator.
+     */
+    public ObjDescGenerator setAnimationTypes(String... types) {
+        animationTypes = types.clone();
+        return this;
+    }
+    
+    /**
+     * Sets the number of sequences (orientations) of every animation type.
+     * 
+     * @param count the number of sequences.
+     * @return this generator.
+     */
+    public ObjDescGenerator setSequencesPerType(int count) {
+        sequencesPerType = checkCount(count, Integer.MAX_VALUE);
+        return this;
+    }
+    
+    /**
+     * Sets the number of distinct frame records of every animation type. Sequences refer to random frames out of these.
+     * 
+     * @param count the number of frame records.
+     * @return this generator.
+     */
+    public ObjDescGenerator setFramesPerType(int count) {
+        framesPerType = checkCount(count, Integer.MAX_VALUE);
+        return this;
+    }
+    
+    /**
+     * Sets the number of frames in every sequence.
+     * 
+     * @param count the number of frames per sequence.
+     * @return this generator.
+     */
+    public ObjDescGenerator setFramesPerSequence(int count) {
+        framesPerSequence = checkCount(count, Integer.MAX_VALUE);
+        return this;
+    }
+    
+    /**
+     * Sets the number of cell sets of every animation type. Every frame displays one of these.
+     * 
+     * @param count the number of cell sets.
+     * @return this generator.
+     */
+    public ObjDescGenerator setCellSetsPerType(int count) {
+        cellSetsPerType = checkCount(count, MAX_INDEX);
+        return this;
+    }
+    
+    /**
+     * Sets the maximum number of cells per cell set. Every cell set consists of one up to this number of cells.
+     * 
+     * @param count the maximum number of cells.
+     * @return this generator.
+     */
+    public ObjDescGenerator setMaxCellsPerFrame(int count) {
+        maxCellsPerFrame = checkCount(count, Integer.MAX_VALUE);
+        return this;
+    }
+    
+    /**
+     * Sets the number of tiles of every animation type.
+     * 
+     * @param count the number of tiles.
+     * @return this generator.
+     */
+    public ObjDescGenerator setTilesPerType(int count) {
+        tilesPerType = checkCount(count, MAX_INDEX);
+        return this;
+    }
+    
+    /**
+     * Sets the maximum width and height of cells. Tiles are square and their sizes are chosen from 8 up to this size.
+     * 
+     * @param size the maximum size in pixels, which is 8, 16, 32 or 64.
+     * @return this generator.
+     */
+    public ObjDescGenerator setMaxCellSize(int size) {
+        if (size != 8 && size != 16 && size != 32 && size != 64)
+            throw new IllegalArgumentException("Cell size has to be 8, 16, 32 or 64.");
+        
+        maxCellSize = size;
+        return this;
+    }
+    
+    /**
+     * Sets the number of 16-color palettes of every animation type.
+     * 
+     * @param count the number of palettes.
+     * @return this generator.
+     */
+    public ObjDescGenerator setPalettesPerType(int count) {
+        palettesPerType = checkCount(count, MAX_INDEX / 0x20);
+        return this;
+    }
+    
+    private static int checkCount(int count, int max) {
+        if (count < 1 || count > max)
+            throw new IllegalArgumentException(String.format("Count %d is out of range.", count));
+        
+        return count;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Generates the flatbuffer into a byte array.
+     * 
+     * @param compressed whether the flatbuffer should be LZ10 compressed, as found in *.cat files.
+     * @return the generated flatbuffer.
+     */
+    public byte[] generate(boolean compressed) {
+        return generate(new FlatBufferBuilder()).toByteArray(compressed);
+    }
+    
+    /**
+     * Generates the flatbuffer into the specified file.
+     * 
+     * @param file the output file.
+     * @param compressed whether the flatbuffer should be LZ10 compressed, as found in *.cat files.
+     * @throws IOException if the file cannot be written.
+     */
+    public void generate(File file, boolean compressed) throws IOException {
+        generate(new FlatBufferBuilder()).writeFile(file, compressed);
+    }
+    
+    /**
+     * Appends the ObjDesc sections to the specified builder.
+     * 
+     * @param builder the flatbuffer builder.
+     * @return the specified builder.
+     */
+    public FlatBufferBuilder generate(FlatBufferBuilder builder) {
+        Objects.requireNonNull(builder);
+        Random random = new Random(seed);
+        
+        // Offset 0 is never a valid pointer target, since sequences are terminated by null pointers
+        if (builder.position() == 0)
+            builder.putInt(0);
+        
+        for (String type : animationTypes)
+            builder.addSection(type, writeSection(builder, random));
+        
+        return builder.align(4);
+    }
+    
+    private int writeSection(FlatBufferBuilder builder, Random random) {
+        // Tiles, each holding a square bitmap with 4 bits per pixel
+        int maxSizeLog = Integer.numberOfTrailingZeros(maxCellSize >> 3);
+        int[] tileOffsets = new int[tilesPerType];
+        int[] tileDims = new int[tilesPerType];
+        int tilesSize = 0;
+        
+        for (int i = 0 ; i < tilesPerType ; i++) {
+            int dim = random.nextInt(maxSizeLog + 1);
+            int size = 8 << dim;
+            tileOffsets[i] = builder.align(4).position();
+            tileDims[i] = dim;
+            tilesSize += size * size / 2;
+            builder.putBytes(createBitmap(random, size * size / 2));
+        }
+        
+        builder.align(4);
+        int offTiles = builder.position();
+        
+        for (int i = 0 ; i < tilesPerType ; i++) {
+            int size = 8 << tileDims[i];
+            builder.putPointer(tileOffsets[i]).putShort(size * size / 2).putShort(0);
+        }
+        
+        // Palettes
+        int offPalettes = builder.position();
+        
+        for (int i = 0 ; i < palettesPerType * 16 ; i++)
+            builder.putShort(random.nextInt(0x8000));
+        
+        // Cell sets
+        builder.align(4);
+        int[] cellSetOffsets = new int[cellSetsPerType];
+        int[] cellSetSizes = new int[cellSetsPerType];
+        
+        for (int i = 0 ; i < cellSetsPerType ; i++) {
+            cellSetOffsets[i] = builder.position();
+            cellSetSizes[i] = 1 + random.nextInt(maxCellsPerFrame);
+            
+            for (int j = 0 ; j < cellSetSizes[i] ; j++) {
+                int tile = random.nextInt(tilesPerType);
+                int half = 4 << tileDims[tile];
+                
+                builder.putShort(tile).putByte(tileDims[tile]).putByte(tileDims[tile]);
+                builder.putShort(random.nextInt(palettesPerType) * 0x20);
+                builder.putByte(random.nextInt(4)).putByte(0);
+                builder.putShort(random.nextInt(4 * half) - 3 * half).putShort(random.nextInt(4 * half) - 4 * half);
+            }
+        }
+        
+        int offCellSets = builder.position();
+        
+        for (int i = 0 ; i < cellSetsPerType ; i++)
+            builder.putPointer(cellSetOffsets[i]).putInt(cellSetSizes[i]);
+        
+        // Frame records. Most frames display cells for a while, some shake or repeat the preceding frames.
+        int[] frameOffsets = new int[framesPerType];
+        
+        for (int i = 0 ; i < framesPerType ; i++) {
+            frameOffsets[i] = builder.align(4).position();
+            int kind = random.nextInt(16);
+            
+            if (kind != 0)
+                builder.putByte(2).putByte(1).putShort(random.nextInt(cellSetsPerType));
+            if (kind == 1)
+                builder.putByte(3).putByte(1).putShort(random.nextInt(5) - 2).putByte(4).putByte(1).putShort(random.nextInt(5) - 2);
+            
+            if (kind == 2)
+                builder.putByte(16).putByte(1).putShort(1 + random.nextInt(3)).putByte(32).putByte(0);
+            else
+                builder.putByte(1).putByte(1).putShort(1 + random.nextInt(8));
+        }
+        
+        builder.align(4);
+        
+        // Sequences, each a null terminated list of frame pointers
+        int[] sequenceOffsets = new int[sequencesPerType];
+        
+        for (int i = 0 ; i < sequencesPerType ; i++) {
+            sequenceOffsets[i] = builder.position();
+            
+            for (int j = 0 ; j < framesPerSequence ; j++)
+                builder.putPointer(frameOffsets[random.nextInt(framesPerType)]);
+            
+            builder.putInt(0);
+        }
+        
+        int offSequences = builder.position();
+        for (int offset : sequenceOffsets)
+            builder.putPointer(offset);
+        
+        // Info blocks and the section itself
+        int offAnimInfo = builder.position();
+        builder.putPointer(offSequences).putInt(sequencesPerType);
+        
+        int offFrameInfo = builder.position();
+        builder.putPointer(offCellSets).putInt(0);
+        
+        int offTileInfo = builder.position();
+        builder.putPointer(offTiles).putInt(tilesSize);
+        
+        int offPaletteInfo = builder.position();
+        builder.putPointer(offPalettes).putInt(palettesPerType * 0x20);
+        
+        int offSection = builder.position();
+        builder.putPointer(offAnimInfo).putPointer(offFrameInfo).putPointer(offTileInfo).putPointer(offPaletteInfo);
+        return offSection;
+    }
+    
+    private static byte[] createBitmap(Random random, int size) {
+        byte[] bitmap = new byte[size];
+        byte value = 0;
+        
+        for (int i = 0 ; i < size ; i++) {
+            if (random.nextInt(4) == 0)
+                value = random.nextInt(3) == 0 ? 0 : (byte)random.nextInt(256);
+            bitmap[i] = value;
+        }
+        
+        return bitmap;
+    }
+}
@@ -16,22 +16,55 @@
  */
 package com.aurumsmods.tychogfx.format;
 
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
 final class ObjDescPalettes {
     private static final int[] DEFAULT_PALETTE = {
         0x00000000, 0xFF000000, 0xFF000000, 0xFF000000, 0xFF000000, 0xFF000000, 0xFF000000, 0xFF000000,
         0xFF000000, 0xFF000000, 0xFF000000, 0xFF000000, 0xFF000000, 0xFF000000, 0xFF000000, 0xFF000000
     };
     
+    /**
+     * The color models that have been created for one palette offset. A new instance replaces the old one whenever the offset
+     * changes, so a model that has been built for an outdated offset can never be returned.
+     */
+    private static final class ColorModels {
+        final int offset;
+        final ConcurrentHashMap<List<Integer>, IndexColorModel> models;
+        
+        ColorModels(int off) {
+            offset = off;
+            models = new ConcurrentHashMap();
+        }
+    }
+    
     // -------------------------------------------------------------------------------------------------------------------------
     
     final int[][] palettes;
-    int offset = 0;
+    private volatile ColorModels colorModels;
     
     ObjDescPalettes(int numpalettes) {
         palettes = new int[numpalettes][];
+        colorModels = new ColorModels(0);
+    }
+    
+    int getOffset() {
+        return colorModels.offset;
+    }
+    
+    void setOffset(int offset) {
+        if (colorModels.offset != offset)
+            colorModels = new ColorModels(offset);
     }
     
     int[] getPalette(int index) {
+        return getPalette(index, colorModels.offset);
+    }
+    
+    private int[] getPalette(int index, int offset) {
         index += offset;
         
         if (0 <= index && index < palettes.length)
@@ -39,4 +72,28 @@ final class ObjDescPalettes {
         else
             return DEFAULT_PALETTE;
     }
+    
+    /**
+     * Returns the color model for indexed pixels that refer to the specified palettes at the current offset. A pixel value
+     * consists of the slot of its palette in the list and the color index, {@code slot * 16 + color}. The first color of every
+     * palette is transparent.
+     * 
+     * @param slots the palette indices used by the pixels, 16 at most.
+     * @return the color model for the palettes at the current offset.
+     */
+    IndexColorModel getColorModel(List<Integer> slots) {
+        ColorModels current = colorModels;
+        return current.models.computeIfAbsent(slots, key -> createColorModel(key, current.offset));
+    }
+    
+    private IndexColorModel createColorModel(List<Integer> slots, int offset) {
+        int[] colors = new int[slots.size() * 16];
+        
+        for (int slot = 0 ; slot < slots.size() ; slot++) {
+            System.arraycopy(getPalette(slots.get(slot), offset), 0, colors, slot * 16, 16);
+            colors[slot * 16] = 0;
+        }
+        
+        return new IndexColorModel(8, colors.length, colors, 0, true, -1, DataBuffer.TYPE_BYTE);
+    }
 }
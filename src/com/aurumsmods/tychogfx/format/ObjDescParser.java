@@ -18,26 +18,83 @@ package com.aurumsmods.tychogfx.format;
 
 import com.aurumsmods.ajul.ColorUtil;
 import java.awt.Rectangle;
-import java.awt.image.BufferedImage;
 import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
 
 final class ObjDescParser {
-    // Working buffer attributes
+    /**
+     * An animation sequence whose frames are decoded when any of them is accessed for the first time. The number of frames is
+     * known without decoding them.
+     */
+    static final class LazySequence extends AbstractList<ObjDescFrame> implements RandomAccess {
+        private final ObjDescParser parser;
+        private final int index, size;
+        private volatile List<ObjDescFrame> frames;
+        
+        private LazySequence(ObjDescParser parser, int index, int size) {
+            this.parser = parser;
+            this.index = index;
+            this.size = size;
+            frames = null;
+        }
+        
+        @Override
+        public ObjDescFrame get(int i) {
+            Objects.checkIndex(i, size);
+            List<ObjDescFrame> decoded = frames;
+            
+            if (decoded == null) {
+                synchronized(parser) {
+                    decoded = frames;
+                    
+                    if (decoded == null) {
+                        decoded = parser.parseSequence(index);
+                        parser.flushCells();
+                        frames = decoded;
+                    }
+                }
+            }
+            
+            return decoded.get(i);
+        }
+        
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    // Working buffer. This is a private view of the flatbuffer's data, so several parsers can work on the same flatbuffer at
+    // once.
     private ByteBuffer buffer;
-    private final int originalBufferPos;
     
     // Output data structures that can be retrieved as a result.
-    private List<ObjDescFrame> prerenderFrames;
     private ObjDescPalettes paletteContext;
     private List<List<ObjDescFrame>> animations;
     
-    // Temporary storage for tile bitmaps. Since they will be reused several times, we don't want multiple copies of the same
-    // data. This reduces wasting memory.
-    private HashMap<Integer, byte[]> bitmaps;
+    // Storage for tile bitmaps. Since they will be reused several times, we don't want multiple copies of the same data. The
+    // store is shared by all sections of the flatbuffer, so tiles are not copied again for every animation type.
+    private final ObjDescTileStore tiles;
+    
+    // The tile bitmaps of this section by their index, which is how cells refer to them. Cells are collected until the frames
+    // that have been parsed at once are complete and are then stored in an immutable block.
+    private byte[][] tileBitmaps;
+    private ObjDescFrame[] cellSetFrames;
+    private ObjDescCells.Builder pendingCells;
+    private List<ObjDescFrame> pendingFrames;
+    
+    // Frames by their offset. Sequences often refer to the same frame record, for example in mirrored directions, which is
+    // parsed only once and shared by all references.
+    private HashMap<Integer, ObjDescFrame> parsedFrames;
+    private int frameReferences, uniqueFrames;
     
     // Various important info header block attributes.
     private int offAnims, numAnims;           // Animations info
@@ -45,26 +102,85 @@ final class ObjDescParser {
     private int offTiles, rawTilesSize;       // Tiles info
     private int offPalettes, alignPalettes;   // Palettes info
 
-    ObjDescParser(FlatBuffer flatbuffer, int offset) {
-        // Prepare the working buffer and return offset
-        buffer = flatbuffer.data();
-        originalBufferPos = buffer.position();
+    ObjDescParser(FlatBuffer flatbuffer, ObjDescTileStore tiles, int offset) {
+        // Prepare the working buffer
+        buffer = flatbuffer.dataView();
         buffer.position(offset);
+        this.tiles = tiles;
+        tileBitmaps = new byte[16][];
+        cellSetFrames = new ObjDescFrame[16];
+        pendingCells = new ObjDescCells.Builder();
+        pendingFrames = new ArrayList();
+        parsedFrames = new HashMap();
+        frameReferences = 0;
+        uniqueFrames = 0;
     }
     
     List<List<ObjDescFrame>> getAnimations() {
         return animations;
     }
     
-    List<ObjDescFrame> getPrerenderFrames() {
-        return prerenderFrames;
-    }
-    
     ObjDescPalettes getPaletteContext() {
         return paletteContext;
     }
+    
+    /**
+     * Returns the number of frame references in the sequences that have been parsed so far.
+     * 
+     * @return the number of frame references.
+     */
+    synchronized int frameReferences() {
+        return frameReferences;
+    }
+    
+    /**
+     * Returns the number of distinct frames in the sequences that have been parsed so far.
+     * 
+     * @return the number of distinct frames.
+     */
+    synchronized int uniqueFrames() {
+        return uniqueFrames;
+    }
 
+    /**
+     * Parses the whole section and releases the working data afterwards.
+     */
     void parse() {
+        parseHeader();
+        
+        // Parse all animations
+        animations = new ArrayList(numAnims);
+        
+        for (int i = 0 ; i < numAnims ; i++)
+            animations.add(parseSequence(i));
+        
+        flushCells();
+        
+        // Release the working data as it is not needed anymore
+        buffer = null;
+        tileBitmaps = null;
+        cellSetFrames = null;
+        pendingCells = null;
+        pendingFrames = null;
+        parsedFrames = null;
+    }
+    
+    /**
+     * Parses only the header, the palettes and the sizes of the animation sequences. The frames of every sequence are decoded
+     * when they are accessed for the first time. The working data is kept for as long as the sequences are reachable.
+     */
+    void parseLazily() {
+        parseHeader();
+        
+        List<ObjDescFrame>[] sequences = new List[numAnims];
+        
+        for (int i = 0 ; i < numAnims ; i++)
+            sequences[i] = new LazySequence(this, i, countSequenceFrames(i));
+        
+        animations = List.of(sequences);
+    }
+    
+    private void parseHeader() {
         // Parse header
         int offAnimInfo = buffer.getInt();
         int offFrameInfo = buffer.getInt();
@@ -105,37 +221,88 @@ final class ObjDescParser {
             for (int i = 0 ; i < 16 ; i++)
                 palette[i] = ColorUtil.BGR555ToARGB(buffer.getShort());
         }
+    }
+    
+    /**
+     * Checks if the section at the specified offset has the structure of an ObjDesc section without parsing it. The header has
+     * to point to four info blocks, and the tables that these declare have to be word-aligned and located inside the data
+     * block. Only the first and last sequence pointers are checked, so the cost does not depend on the section's size.
+     * 
+     * @param data the data block of the flatbuffer.
+     * @param offset the offset of the section.
+     * @return {@code true} if the section looks like an ObjDesc section. Otherwise, {@code false} is returned.
+     */
+    static boolean hasValidHeader(ByteBuffer data, int offset) {
+        int limit = data.limit();
+        if (!isWordRange(offset, 16, limit))
+            return false;
         
-        // Parse all animations
-        bitmaps = new LinkedHashMap(rawTilesSize / 0x200); // Approximate initial capacity
+        // Every info block consists of an offset and a size or count
+        int offAnimInfo = data.getInt(offset);
+        int offFrameInfo = data.getInt(offset + 4);
+        int offTileInfo = data.getInt(offset + 8);
+        int offPaletteInfo = data.getInt(offset + 12);
         
-        animations = new ArrayList(numAnims);
-        prerenderFrames = new ArrayList(numAnims * 4);
-        parseAnimations();
+        if (!isWordRange(offAnimInfo, 8, limit) || !isWordRange(offFrameInfo, 8, limit)
+                || !isWordRange(offTileInfo, 8, limit) || !isWordRange(offPaletteInfo, 8, limit))
+            return false;
         
-        // Restore the working buffer's initial position and drop the reference to it
-        buffer.position(originalBufferPos);
+        // Sequence table, which holds at least one sequence like in parseHeader
+        int offAnims = data.getInt(offAnimInfo);
+        int numAnims = Math.max(data.getInt(offAnimInfo + 4), 1);
         
-        // Release some data that is not needed anymore
-        buffer = null;
-        bitmaps.clear();
-        bitmaps = null;
+        if (numAnims > limit / 4 || !isWordRange(offAnims, numAnims * 4, limit)
+                || !isWordRange(data.getInt(offAnims), 4, limit)
+                || !isWordRange(data.getInt(offAnims + (numAnims - 1) * 4), 4, limit))
+            return false;
+        
+        // Cell set table and tile table
+        if (!isWordRange(data.getInt(offFrameInfo), 0, limit) || !isWordRange(data.getInt(offTileInfo), 0, limit)
+                || data.getInt(offTileInfo + 4) < 0)
+            return false;
+        
+        // Palettes consist of 16-bit colors and are read in blocks of 0x20 bytes
+        int offPalettes = data.getInt(offPaletteInfo);
+        int alignPalettes = data.getInt(offPaletteInfo + 4);
+        
+        return (offPalettes & 1) == 0 && alignPalettes >= 0 && offPalettes >= 0
+                && offPalettes <= limit - (alignPalettes / 0x20) * 0x20;
     }
     
-    private void parseAnimations() {
-        for (int i = 0 ; i < numAnims ; i++) {
-            // Parse animation sequence
-            ArrayList<ObjDescFrame> sequence = new ArrayList();
-            animations.add(sequence);
-            
-            int offAnim = buffer.getInt(offAnims + i * 4);
-            int offAnimFrame;
+    private static boolean isWordRange(int offset, int size, int limit) {
+        return (offset & 3) == 0 && offset >= 0 && size >= 0 && offset <= limit - size;
+    }
+    
+    private int countSequenceFrames(int index) {
+        int offAnim = buffer.getInt(offAnims + index * 4);
+        int count = 0;
+        
+        while(buffer.getInt(offAnim + count * 4) != 0)
+            count++;
+        
+        return count;
+    }
+    
+    private List<ObjDescFrame> parseSequence(int index) {
+        ArrayList<ObjDescFrame> sequence = new ArrayList();
+        int offAnim = buffer.getInt(offAnims + index * 4);
+        int offAnimFrame;
+        
+        while((offAnimFrame = buffer.getInt(offAnim)) != 0) {
+            ObjDescFrame animFrame = parsedFrames.get(offAnimFrame);
             
-            while((offAnimFrame = buffer.getInt(offAnim)) != 0) {
-                sequence.add(parseAnimationFrame(offAnimFrame));
-                offAnim += 4;
+            if (animFrame == null) {
+                animFrame = parseAnimationFrame(offAnimFrame);
+                parsedFrames.put(offAnimFrame, animFrame);
+                uniqueFrames++;
             }
+            
+            sequence.add(animFrame);
+            frameReferences++;
+            offAnim += 4;
         }
+        
+        return sequence;
     }
     
     private ObjDescFrame parseAnimationFrame(int offAnimFrame) {
@@ -186,90 +353,76 @@ final class ObjDescParser {
         }
         
         // If the frame has cells, parse them and prepare the prerender
-        if (cellsIdx != ObjDescFrame.INVALID_ARGUMENT) {
-            animFrame.cells = parseCells(cellsIdx);
-            preparePrerender(animFrame);
-        }
+        if (cellsIdx != ObjDescFrame.INVALID_ARGUMENT)
+            assignCells(animFrame, cellsIdx);
         
         return animFrame;
     }
     
-    private ObjDescFrame.Cell[] parseCells(int cellsIdx) {
-        // Read frame cells info
-        buffer.position(offFirstFrame + cellsIdx * 8);
-        int offCells = buffer.getInt();
-        int numCells = buffer.getInt();
-        
-        // Parse all cells
-        ObjDescFrame.Cell[] cells = new ObjDescFrame.Cell[numCells];
+    private void assignCells(ObjDescFrame animFrame, int cellsIdx) {
+        // Frames often display the same cells, which are parsed only once. The bounds and palettes are taken from the first
+        // frame that used them.
+        ObjDescFrame known = cellsIdx < cellSetFrames.length ? cellSetFrames[cellsIdx] : null;
         
-        for (int i = 0 ; i < numCells ; i++) {
-            buffer.position(offCells + i * 12);
-            
-            ObjDescFrame.Cell cell = new ObjDescFrame.Cell();
-            cells[i] = cell;
+        if (known != null) {
+            animFrame.cells = known.cells;
+            animFrame.firstCell = known.firstCell;
+            animFrame.numCells = known.numCells;
+            animFrame.bounds.setBounds(known.bounds);
+            animFrame.paletteContext = known.paletteContext;
+            animFrame.paletteSlots = known.paletteSlots;
+        }
+        else {
+            parseCells(animFrame, cellsIdx);
             
-            // Parse cell
-            int tileIndex = buffer.getShort() & 0xFFFF;
-            cell.width = dimToPixels(buffer.get());
-            cell.height = dimToPixels(buffer.get());
-            cell.paletteIdx = (buffer.getShort() & 0xFFFF) / 0x20;
-            cell.flipBits = buffer.get();
-            buffer.get(); // padding
-            cell.x = buffer.getShort();
-            cell.y = buffer.getShort();
+            if (cellsIdx >= cellSetFrames.length)
+                cellSetFrames = Arrays.copyOf(cellSetFrames, Math.max(cellsIdx + 1, cellSetFrames.length * 2));
             
-            // Set tile bitmap and palette context
-            cell.bitmap = getTileBitmap(tileIndex);
-            cell.paletteContext = paletteContext;
+            cellSetFrames[cellsIdx] = animFrame;
         }
         
-        return cells;
-    }
-    
-    private byte[] getTileBitmap(int tileIdx) {
-        // Read tile info
-        buffer.position(offTiles + tileIdx * 8);
-        int offTile = buffer.getInt();
-        int bitmapSize = buffer.getShort() & 0xFFFF;
-        
-        // Bitmap has been cached?
-        if (bitmaps.containsKey(offTile))
-            return bitmaps.get(offTile);
-        // Read bitmap if not cached
-        else {
-            byte[] bitmap = new byte[bitmapSize];
-            bitmaps.put(offTile, bitmap);
-            buffer.position(offTile);
-            buffer.get(bitmap);
-            return bitmap;
-        }
+        // The cells are not stored in a block yet
+        if (animFrame.cells == null)
+            pendingFrames.add(animFrame);
     }
     
-    private int dimToPixels(int dim) {
-        switch(dim) {
-            case 0: return 8;
-            case 1: return 16;
-            case 2: return 32;
-            case 3: return 64;
-            default: throw new IllegalArgumentException(String.format("Unknown dimension %d", dim));
-        }
-    }
-    
-    private void preparePrerender(ObjDescFrame animFrame) {
-        prerenderFrames.add(animFrame);
+    private void parseCells(ObjDescFrame animFrame, int cellsIdx) {
+        // Read frame cells info
+        buffer.position(offFirstFrame + cellsIdx * 8);
+        int offCells = buffer.getInt();
+        int numCells = buffer.getInt();
+        
+        animFrame.firstCell = pendingCells.size();
+        animFrame.numCells = numCells;
         
-        // Calculate frame bounds in world space
+        // Parse all cells and calculate the frame bounds in world space
         int minX = Integer.MAX_VALUE;
         int minY = Integer.MAX_VALUE;
         int maxX = Integer.MIN_VALUE;
         int maxY = Integer.MIN_VALUE;
         
-        for (ObjDescFrame.Cell cell : animFrame.cells) {
-            int x = cell.x;
-            int y = cell.y;
-            int w = cell.width;
-            int h = cell.height;
+        // Collect the palettes used by the cells. The actual prerendering is done later on with indexed colors if the frame
+        // does not use too many different palettes.
+        List<Integer> slots = new ArrayList(ObjDescFrame.MAX_INDEXED_PALETTES);
+        
+        for (int i = 0 ; i < numCells ; i++) {
+            buffer.position(offCells + i * 12);
+            
+            // Parse cell
+            int tileIndex = buffer.getShort() & 0xFFFF;
+            int widthDim = checkDim(buffer.get());
+            int heightDim = checkDim(buffer.get());
+            int paletteIdx = (buffer.getShort() & 0xFFFF) / 0x20;
+            int flipBits = buffer.get();
+            buffer.get(); // padding
+            int x = buffer.getShort();
+            int y = buffer.getShort();
+            
+            loadTileBitmap(tileIndex);
+            pendingCells.add(tileIndex, widthDim, heightDim, paletteIdx, flipBits, x, y);
+            
+            int w = 8 << widthDim;
+            int h = 8 << heightDim;
             
             if (x < minX)
                 minX = x;
@@ -279,6 +432,9 @@ final class ObjDescParser {
                 maxX = x + w;
             if (y + h > maxY)
                 maxY = y + h;
+            
+            if (!slots.contains(paletteIdx))
+                slots.add(paletteIdx);
         }
         
         // Set the frame's actual bounds
@@ -288,7 +444,46 @@ final class ObjDescParser {
         bounds.width = maxX - minX;
         bounds.height = maxY - minY;
         
-        // Prepare the prerendered image, the actual prerendering is done later on
-        animFrame.prerendered = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_4BYTE_ABGR);
+        animFrame.paletteContext = paletteContext;
+        animFrame.paletteSlots = slots.size() <= ObjDescFrame.MAX_INDEXED_PALETTES ? List.copyOf(slots) : null;
+    }
+    
+    private void loadTileBitmap(int tileIdx) {
+        if (tileIdx < tileBitmaps.length && tileBitmaps[tileIdx] != null)
+            return;
+        
+        // Read tile info
+        int offTileInfo = offTiles + tileIdx * 8;
+        int offTile = buffer.getInt(offTileInfo);
+        int bitmapSize = buffer.getShort(offTileInfo + 4) & 0xFFFF;
+        
+        // Blocks that have been built already keep the old table, which holds all of their bitmaps
+        if (tileIdx >= tileBitmaps.length)
+            tileBitmaps = Arrays.copyOf(tileBitmaps, Math.max(tileIdx + 1, tileBitmaps.length * 2));
+        
+        // The bitmap is read only if no section of the file has used it before
+        tileBitmaps[tileIdx] = tiles.get(buffer, offTile, bitmapSize);
+    }
+    
+    private int checkDim(int dim) {
+        if (dim < 0 || dim > 3)
+            throw new IllegalArgumentException(String.format("Unknown dimension %d", dim));
+        
+        return dim;
+    }
+    
+    /**
+     * Stores the cells that have been parsed since the last call in a new immutable block and hands it to their frames.
+     */
+    private void flushCells() {
+        if (pendingFrames.isEmpty())
+            return;
+        
+        ObjDescCells block = pendingCells.build(tileBitmaps);
+        
+        for (ObjDescFrame animFrame : pendingFrames)
+            animFrame.cells = block;
+        
+        pendingFrames.clear();
     }
 }
@@ -23,10 +23,70 @@ import java.util.Objects;
 
 /**
  * An animation sequencer for the {@code ObjDesc} graphics format that emulates the animation system found in Pokémon Ranger.
+ * The sequencer may be updated on a different thread than it is rendered on. After every change, the state required for
+ * rendering is published as an immutable {@code Snapshot}, so rendering never observes a partially updated state.
  * 
  * @author Aurum
  */
 public final class ObjDescSequencer {
+    /**
+     * An immutable view of the sequencer state that is required to render the current animation frame.
+     */
+    public static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(null, null, 0, 0);
+        
+        private final ObjDescFrame currentFrame, renderFrame;
+        private final int shakeX, shakeY;
+        
+        private Snapshot(ObjDescFrame currentFrame, ObjDescFrame renderFrame, int shakeX, int shakeY) {
+            this.currentFrame = currentFrame;
+            this.renderFrame = renderFrame;
+            this.shakeX = shakeX;
+            this.shakeY = shakeY;
+        }
+        
+        /**
+         * Returns the frame that was active when this snapshot was taken.
+         * 
+         * @return the active frame, or {@code null} if no animation was set.
+         */
+        public ObjDescFrame currentFrame() {
+            return currentFrame;
+        }
+        
+        /**
+         * Returns the frame whose cells are displayed. This is the most recent frame that had any cells.
+         * 
+         * @return the displayed frame, or {@code null} if there is none.
+         */
+        public ObjDescFrame renderFrame() {
+            return renderFrame;
+        }
+        
+        /**
+         * Returns the horizontal shake offset.
+         * 
+         * @return the horizontal shake offset.
+         */
+        public int shakeX() {
+            return shakeX;
+        }
+        
+        /**
+         * Returns the vertical shake offset.
+         * 
+         * @return the vertical shake offset.
+         */
+        public int shakeY() {
+            return shakeY;
+        }
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    static final int LOOP_STATE_SIZE = 7;
+    
+    private volatile Snapshot snapshot;
     private List<ObjDescFrame> currentAnimation;
     private ObjDescFrame currentFrame, currentRenderFrame;
     private int currentFrameIndex, firstSubSequenceFrameIndex, subloopCount, subloopThreshold, timer;
@@ -42,7 +102,7 @@ public final class ObjDescSequencer {
     /**
      * Clears the current context and resets the sequencer's progress.
      */
-    public void clearContext() {
+    public synchronized void clearContext() {
         currentAnimation = null;
         currentFrame = null;
         currentRenderFrame = null;
@@ -59,6 +119,8 @@ public final class ObjDescSequencer {
         currentShakeY = 0;
         unkShakeArgX = 0;
         unkShakeArgY = 0;
+        
+        snapshot = Snapshot.EMPTY;
     }
     
     /**
@@ -70,25 +132,44 @@ public final class ObjDescSequencer {
      * @param animFrameIndex the animation prerendered index to be used.
      */
     public void setSequenceAndFrame(ObjDesc objDesc, String animType, int animIndex, int animFrameIndex) {
+        setSequenceAndFrame(objDesc.animationSequence(animType, animIndex), animFrameIndex);
+    }
+    
+    /**
+     * Sets the current animation sequence and the frame to start at.
+     * 
+     * @param sequence the animation sequence to be used.
+     * @param animFrameIndex the index of the frame to start at.
+     */
+    synchronized void setSequenceAndFrame(List<ObjDescFrame> sequence, int animFrameIndex) {
         clearContext();
-
-        currentAnimation = objDesc.animationSequence(animType, animIndex);
-        Objects.requireNonNull(currentAnimation);
+        
+        currentAnimation = Objects.requireNonNull(sequence);
         Objects.checkIndex(animFrameIndex, currentAnimation.size());
         
         currentFrameIndex = animFrameIndex;
         firstSubSequenceFrameIndex = animFrameIndex;
         currentFrame = currentAnimation.get(animFrameIndex);
         updateArgsFromCurrentFrame();
+        publishSnapshot();
     }
     
     /**
-     * Returns the currently active {@code ObjDescFrame}.
+     * Returns the currently active {@code ObjDescFrame} of the latest snapshot.
      * 
      * @return the currently active {@code ObjDescFrame}.
      */
     public ObjDescFrame getCurrentFrame() {
-        return currentFrame;
+        return snapshot.currentFrame;
+    }
+    
+    /**
+     * Returns the latest published render state. This can be called from any thread.
+     * 
+     * @return the latest snapshot.
+     */
+    public Snapshot snapshot() {
+        return snapshot;
     }
     
     /**
@@ -101,23 +182,29 @@ public final class ObjDescSequencer {
      * @param showBoundingBox shows the frame's bounding box if {@code true}.
      */
     public void render(Graphics g, int offX, int offY, boolean showBoundingBox) {
-        if (currentRenderFrame != null && currentRenderFrame.prerendered() != null) {
-            int x = offX + currentShakeX;
-            int y = offY + currentShakeY;
-            int bx = currentRenderFrame.bounds.x + x;
-            int by = currentRenderFrame.bounds.y + y;
+        // Read the state only once, so an update on another thread cannot change it while drawing
+        Snapshot state = snapshot;
+        ObjDescFrame frame = state.renderFrame;
+        
+        if (frame != null && frame.prerendered() != null) {
+            int x = offX + state.shakeX;
+            int y = offY + state.shakeY;
+            int bx = frame.bounds.x + x;
+            int by = frame.bounds.y + y;
             
-            g.drawImage(currentRenderFrame.prerendered(), bx, by, null);
+            g.drawImage(frame.prerendered(), bx, by, null);
             
             if (showBoundingBox) {
                 // Draw cell bounding boxes
                 g.setColor(Color.BLUE);
-                for (ObjDescFrame.Cell cell : currentRenderFrame.cells)
-                    g.drawRect(x + cell.x, y + cell.y, cell.width, cell.height);
+                ObjDescCells cells = frame.cells;
+                
+                for (int cell = frame.firstCell ; cell < frame.firstCell + frame.numCells ; cell++)
+                    g.drawRect(x + cells.x(cell), y + cells.y(cell), cells.width(cell), cells.height(cell));
                 
                 // Draw frame bounding box
                 g.setColor(Color.RED);
-                g.drawRect(bx, by, currentRenderFrame.bounds.width, currentFrame.bounds.height);
+                g.drawRect(bx, by, frame.bounds.width, frame.bounds.height);
             }
         }
     }
@@ -125,7 +212,7 @@ public final class ObjDescSequencer {
     /**
      * Updates the animation sequencer.
      */
-    public void update() {
+    public synchronized void update() {
         if (currentAnimation == null)
             return;
         
@@ -169,6 +256,67 @@ public final class ObjDescSequencer {
             else if (shakingArgX > 0)
                 currentShakeX++;
         }
+        
+        publishSnapshot();
+    }
+    
+    /**
+     * Returns the number of upcoming updates that only advance the timer of the active frame. The active frame does not change
+     * during these updates, so they can be performed at once by {@code skipIdleUpdates}.
+     * 
+     * @return the number of updates until the active frame changes, or 0 if the next update may change it.
+     */
+    synchronized int idleUpdates() {
+        if (currentAnimation == null || currentFrame.seqType != ObjDescFrame.SeqType.LOOP_SEQUENCE
+                || currentFrame.duration == ObjDescFrame.INVALID_ARGUMENT || timer >= currentFrame.duration)
+            return 0;
+        
+        return currentFrame.duration - timer;
+    }
+    
+    /**
+     * Performs the specified number of updates at once, which has to be at most the number returned by {@code idleUpdates}.
+     * 
+     * @param count the number of updates to perform.
+     */
+    synchronized void skipIdleUpdates(int count) {
+        if (count == 0)
+            return;
+        
+        // Every update that makes the timer a multiple of 4 moves the shake offsets by one pixel
+        int shakeSteps = (timer + count) / 4 - timer / 4;
+        timer += count;
+        currentShakeY -= Integer.signum(shakingArgY) * shakeSteps;
+        currentShakeX += Integer.signum(shakingArgX) * shakeSteps;
+        
+        publishSnapshot();
+    }
+    
+    /**
+     * Stores the state that determines how the sequencer progresses into the specified array. The shake offsets are not part of
+     * this state since they do not affect the progress. The array has to hold {@code LOOP_STATE_SIZE} values.
+     * 
+     * @param state the array to store the state in.
+     */
+    synchronized void loopState(int[] state) {
+        state[0] = currentFrameIndex;
+        state[1] = firstSubSequenceFrameIndex;
+        state[2] = subloopCount;
+        state[3] = subloopThreshold;
+        state[4] = timer;
+        state[5] = shakingArgX;
+        state[6] = shakingArgY;
+    }
+    
+    /**
+     * Publishes the current render state if it differs from the latest snapshot.
+     */
+    private void publishSnapshot() {
+        Snapshot last = snapshot;
+        
+        if (last.currentFrame != currentFrame || last.renderFrame != currentRenderFrame || last.shakeX != currentShakeX
+                || last.shakeY != currentShakeY)
+            snapshot = new Snapshot(currentFrame, currentRenderFrame, currentShakeX, currentShakeY);
     }
     
     /**
@@ -186,7 +334,7 @@ public final class ObjDescSequencer {
      * respective attribute will not be updated at all.
      */
     private void updateArgsFromCurrentFrame() {
-        if (currentFrame.prerendered != null)
+        if (currentFrame.hasPrerender())
             currentRenderFrame = currentFrame;
         
         if (currentFrame.shakeArgX != ObjDescFrame.INVALID_ARGUMENT)
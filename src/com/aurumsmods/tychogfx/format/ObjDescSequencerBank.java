@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+/**
+ * Simulates a large number of animation sequencers at once. Every sequencer behaves exactly like an {@code ObjDescSequencer},
+ * but the state of all sequencers is stored in primitive arrays and the frame attributes of all sequences are flattened into
+ * shared tables. Sequencers are identified by the index returned when adding them.
+ * <p>
+ * A bank is not thread-safe. While {@code updateAll} runs, no other method may be called.
+ * 
+ * @author Aurum
+ */
+public final class ObjDescSequencerBank {
+    private static final byte TYPE_OTHER = 0, TYPE_LOOP = 1, TYPE_ELAPSE = 2;
+    private static final int PARALLEL_CHUNK_SIZE = 4096;
+    private static final int INVALID = ObjDescFrame.INVALID_ARGUMENT;
+    
+    // Flattened frame tables of all added sequences
+    private final IdentityHashMap<List<ObjDescFrame>, Integer> sequenceBases;
+    private final List<ObjDescFrame> frames;
+    private byte[] frameTypes;
+    private boolean[] frameRendered;
+    private int[] frameDurations, frameShakeX, frameShakeY, frameLoopCounts;
+    
+    // State of every sequencer
+    private int count;
+    private int[] base, length, frame, firstSubFrame, subloopCount, subloopThreshold, timer;
+    private int[] shakingArgX, shakingArgY, shakeX, shakeY, renderFrame;
+    
+    /**
+     * Creates a new empty bank.
+     * 
+     * @param capacity the initial number of sequencers that can be held without growing the state arrays.
+     */
+    public ObjDescSequencerBank(int capacity) {
+        sequenceBases = new IdentityHashMap();
+        frames = new ArrayList();
+        frameTypes = new byte[16];
+        frameRendered = new boolean[16];
+        frameDurations = new int[16];
+        frameShakeX = new int[16];
+        frameShakeY = new int[16];
+        frameLoopCounts = new int[16];
+        
+        capacity = Math.max(capacity, 1);
+        count = 0;
+        base = new int[capacity];
+        length = new int[capacity];
+        frame = new int[capacity];
+        firstSubFrame = new int[capacity];
+        subloopCount = new int[capacity];
+        subloopThreshold = new int[capacity];
+        timer = new int[capacity];
+        shakingArgX = new int[capacity];
+        shakingArgY = new int[capacity];
+        shakeX = new int[capacity];
+        shakeY = new int[capacity];
+        renderFrame = new int[capacity];
+    }
+    
+    /**
+     * Adds a new sequencer that plays the specified sequence, starting at the specified frame. This is the same as calling
+     * {@code setSequenceAndFrame} on a new {@code ObjDescSequencer}.
+     * 
+     * @param sequence the animation sequence.
+     * @param startFrame the index of the frame to start at.
+     * @return the index of the new sequencer.
+     */
+    public int add(List<ObjDescFrame> sequence, int startFrame) {
+        Objects.requireNonNull(sequence);
+        Objects.checkIndex(startFrame, sequence.size());
+        
+        if (count == base.length)
+            resize(count * 2);
+        
+        int id = count++;
+        base[id] = registerSequence(sequence);
+        length[id] = sequence.size();
+        reset(id, startFrame);
+        return id;
+    }
+    
+    /**
+     * Restarts the specified sequencer at the specified frame of its sequence.
+     * 
+     * @param id the index of the sequencer.
+     * @param startFrame the index of the frame to start at.
+     */
+    public void restart(int id, int startFrame) {
+        Objects.checkIndex(id, count);
+        Objects.checkIndex(startFrame, length[id]);
+        reset(id, startFrame);
+    }
+    
+    /**
+     * Returns the number of sequencers in this bank.
+     * 
+     * @return the number of sequencers.
+     */
+    public int size() {
+        return count;
+    }
+    
+    /**
+     * Updates all sequencers once.
+     */
+    public void updateAll() {
+        update(0, count);
+    }
+    
+    /**
+     * Updates all sequencers once. If {@code parallel} is {@code true}, the sequencers are split into chunks that are updated
+     * on the common {@code ForkJoinPool}.
+     * 
+     * @param parallel whether the update should be split across multiple threads.
+     */
+    public void updateAll(boolean parallel) {
+        if (!parallel || count <= PARALLEL_CHUNK_SIZE) {
+            update(0, count);
+            return;
+        }
+        
+        int chunks = (count + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE;
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int from = chunk * PARALLEL_CHUNK_SIZE;
+            update(from, Math.min(from + PARALLEL_CHUNK_SIZE, count));
+        });
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Returns the index of the active frame of the specified sequencer.
+     * 
+     * @param id the index of the sequencer.
+     * @return the index of the active frame in its sequence.
+     */
+    public int currentFrameIndex(int id) {
+        Objects.checkIndex(id, count);
+        return frame[id];
+    }
+    
+    /**
+     * Returns the active frame of the specified sequencer.
+     * 
+     * @param id the index of the sequencer.
+     * @return the active frame.
+     */
+    public ObjDescFrame currentFrame(int id) {
+        Objects.checkIndex(id, count);
+        return frames.get(base[id] + frame[id]);
+    }
+    
+    /**
+     * Returns the frame that is displayed by the specified sequencer.
+     * 
+     * @param id the index of the sequencer.
+     * @return the displayed frame, or {@code null} if no frame with cells has been reached yet.
+     */
+    public ObjDescFrame renderFrame(int id) {
+        Objects.checkIndex(id, count);
+        return renderFrame[id] < 0 ? null : frames.get(renderFrame[id]);
+    }
+    
+    /**
+     * Returns the horizontal shake offset of the specified sequencer.
+     * 
+     * @param id the index of the sequencer.
+     * @return the horizontal shake offset.
+     */
+    public int shakeX(int id) {
+        Objects.checkIndex(id, count);
+        return shakeX[id];
+    }
+    
+    /**
+     * Returns the vertical shake offset of the specified sequencer.
+     * 
+     * @param id the index of the sequencer.
+     * @return the vertical shake offset.
+     */
+    public int shakeY(int id) {
+        Objects.checkIndex(id, count);
+        return shakeY[id];
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private int registerSequence(List<ObjDescFrame> sequence) {
+        Integer known = sequenceBases.get(sequence);
+        
+        if (known != null)
+            return known;
+        
+        int first = frames.size();
+        int end = first + sequence.size();
+        
+        if (end > frameTypes.length) {
+            int capacity = Math.max(end, frameTypes.length * 2);
+            frameTypes = Arrays.copyOf(frameTypes, capacity);
+            frameRendered = Arrays.copyOf(frameRendered, capacity);
+            frameDurations = Arrays.copyOf(frameDurations, capacity);
+            frameShakeX = Arrays.copyOf(frameShakeX, capacity);
+            frameShakeY = Arrays.copyOf(frameShakeY, capacity);
+            frameLoopCounts = Arrays.copyOf(frameLoopCounts, capacity);
+        }
+        
+        for (int i = first ; i < end ; i++) {
+            ObjDescFrame animFrame = sequence.get(i - first);
+            frames.add(animFrame);
+            
+            if (animFrame.seqType == ObjDescFrame.SeqType.LOOP_SEQUENCE)
+                frameTypes[i] = TYPE_LOOP;
+            else if (animFrame.seqType == ObjDescFrame.SeqType.ELAPSE_LOOPS)
+                frameTypes[i] = TYPE_ELAPSE;
+            else
+                frameTypes[i] = TYPE_OTHER;
+            
+            frameRendered[i] = animFrame.hasPrerender();
+            frameDurations[i] = animFrame.duration;
+            frameShakeX[i] = animFrame.shakeArgX;
+            frameShakeY[i] = animFrame.shakeArgY;
+            frameLoopCounts[i] = animFrame.loopCount;
+        }
+        
+        sequenceBases.put(sequence, first);
+        return first;
+    }
+    
+    private void resize(int capacity) {
+        base = Arrays.copyOf(base, capacity);
+        length = Arrays.copyOf(length, capacity);
+        frame = Arrays.copyOf(frame, capacity);
+        firstSubFrame = Arrays.copyOf(firstSubFrame, capacity);
+        subloopCount = Arrays.copyOf(subloopCount, capacity);
+        subloopThreshold = Arrays.copyOf(subloopThreshold, capacity);
+        timer = Arrays.copyOf(timer, capacity);
+        shakingArgX = Arrays.copyOf(shakingArgX, capacity);
+        shakingArgY = Arrays.copyOf(shakingArgY, capacity);
+        shakeX = Arrays.copyOf(shakeX, capacity);
+        shakeY = Arrays.copyOf(shakeY, capacity);
+        renderFrame = Arrays.copyOf(renderFrame, capacity);
+    }
+    
+    private void reset(int id, int startFrame) {
+        frame[id] = startFrame;
+        firstSubFrame[id] = startFrame;
+        subloopCount[id] = 0;
+        subloopThreshold[id] = 0;
+        timer[id] = 0;
+        shakingArgX[id] = 0;
+        shakingArgY[id] = 0;
+        shakeX[id] = 0;
+        shakeY[id] = 0;
+        renderFrame[id] = -1;
+        applyFrameArgs(id);
+    }
+    
+    /**
+     * Updates the sequencers in the specified range. This mirrors {@code ObjDescSequencer.update}, including its quirks.
+     */
+    private void update(int from, int to) {
+        byte[] types = frameTypes;
+        int[] durations = frameDurations;
+        
+        for (int id = from ; id < to ; id++) {
+            int f = base[id] + frame[id];
+            
+            if (types[f] == TYPE_LOOP) {
+                if (durations[f] == INVALID || timer[id] >= durations[f]) {
+                    advanceFrame(id);
+                    timer[id] = 0;
+                    f = base[id] + frame[id];
+                }
+                else
+                    timer[id]++;
+            }
+            
+            if (types[f] == TYPE_ELAPSE) {
+                if (++subloopCount[id] >= subloopThreshold[id]) {
+                    shakeX[id] = 0;
+                    shakeY[id] = 0;
+                    shakingArgX[id] = 0;
+                    shakingArgY[id] = 0;
+                    
+                    // The subloop count is not reset here, see ObjDescSequencer.update
+                    subloopThreshold[id] = 0;
+                    advanceFrame(id);
+                }
+                else {
+                    frame[id] = firstSubFrame[id];
+                    applyFrameArgs(id);
+                    timer[id] = 0;
+                }
+            }
+            
+            if ((timer[id] % 4) == 0) {
+                int argY = shakingArgY[id];
+                int argX = shakingArgX[id];
+                
+                if (argY < 0)
+                    shakeY[id]++;
+                else if (argY > 0)
+                    shakeY[id]--;
+                
+                if (argX < 0)
+                    shakeX[id]--;
+                else if (argX > 0)
+                    shakeX[id]++;
+            }
+        }
+    }
+    
+    private void advanceFrame(int id) {
+        if (++frame[id] >= length[id]) {
+            shakeX[id] = 0;
+            shakeY[id] = 0;
+            subloopCount[id] = 0;
+            frame[id] = 0;
+        }
+        
+        applyFrameArgs(id);
+    }
+    
+    private void applyFrameArgs(int id) {
+        int f = base[id] + frame[id];
+        
+        if (frameRendered[f])
+            renderFrame[id] = f;
+        
+        if (frameShakeX[f] != INVALID)
+            shakingArgX[id] = frameShakeX[f];
+        if (frameShakeY[f] != INVALID)
+            shakingArgY[id] = frameShakeY[f];
+        
+        if (frameLoopCounts[f] != INVALID) {
+            firstSubFrame[id] = (frame[id] + 1) % length[id];
+            subloopThreshold[id] = frameLoopCounts[f];
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores the tile bitmaps of a single flatbuffer by their offset in the data block. All ObjDesc sections of a file share one
+ * store, so a bitmap that is used by several sections or cells is only copied once. The bitmaps are kept in an open addressing
+ * hash table with linear probing that uses primitive offsets as keys.
+ * <p>
+ * The store is thread-safe, since the sections of a file are parsed concurrently.
+ * 
+ * @author Aurum
+ */
+final class ObjDescTileStore {
+    private int[] offsets;
+    private byte[][] bitmaps;
+    private int count;
+    private long byteCount;
+    
+    /**
+     * Creates a new empty store that fits the specified number of bitmaps without growing.
+     * 
+     * @param capacity the expected number of bitmaps.
+     */
+    ObjDescTileStore(int capacity) {
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 1;
+        offsets = new int[tableSize];
+        bitmaps = new byte[tableSize][];
+        count = 0;
+        byteCount = 0L;
+    }
+    
+    /**
+     * Returns the bitmap that is located at the specified offset. If it has not been requested before, it is read from the
+     * specified data buffer. The position of the buffer is not changed.
+     * 
+     * @param data the data block of the flatbuffer.
+     * @param offset the offset of the bitmap.
+     * @param size the size of the bitmap in bytes, only used when the bitmap is read for the first time.
+     * @return the bitmap at the specified offset.
+     */
+    synchronized byte[] get(ByteBuffer data, int offset, int size) {
+        int mask = offsets.length - 1;
+        int slot = hash(offset) & mask;
+        byte[] bitmap;
+        
+        while((bitmap = bitmaps[slot]) != null) {
+            if (offsets[slot] == offset)
+                return bitmap;
+            
+            slot = (slot + 1) & mask;
+        }
+        
+        bitmap = new byte[size];
+        data.get(offset, bitmap);
+        offsets[slot] = offset;
+        bitmaps[slot] = bitmap;
+        byteCount += size;
+        
+        // Keep the load factor at 1/2 at most
+        if (++count * 2 > offsets.length)
+            grow();
+        
+        return bitmap;
+    }
+    
+    /**
+     * Returns the number of distinct bitmaps in this store.
+     * 
+     * @return the number of bitmaps.
+     */
+    synchronized int size() {
+        return count;
+    }
+    
+    /**
+     * Returns the total size of all bitmaps in this store.
+     * 
+     * @return the number of bytes held by the bitmaps.
+     */
+    synchronized long byteCount() {
+        return byteCount;
+    }
+    
+    private void grow() {
+        int[] oldOffsets = offsets;
+        byte[][] oldBitmaps = bitmaps;
+        offsets = new int[oldOffsets.length * 2];
+        bitmaps = new byte[oldOffsets.length * 2][];
+        int mask = offsets.length - 1;
+        
+        for (int i = 0 ; i < oldOffsets.length ; i++) {
+            if (oldBitmaps[i] == null)
+                continue;
+            
+            int slot = hash(oldOffsets[i]) & mask;
+            
+            while(bitmaps[slot] != null)
+                slot = (slot + 1) & mask;
+            
+            offsets[slot] = oldOffsets[i];
+            bitmaps[slot] = oldBitmaps[i];
+        }
+    }
+    
+    private static int hash(int offset) {
+        // Offsets are aligned, so their lower bits carry little information
+        int h = offset * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
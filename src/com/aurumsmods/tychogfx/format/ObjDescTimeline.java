@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A precompiled timeline of an animation sequence that provides the state of {@code ObjDescSequencer} at any tick without
+ * updating a sequencer tick by tick. Tick 0 is the state right after the sequence was set, tick {@code n} is the state after
+ * {@code n} updates.
+ * <p>
+ * The timeline is compiled by running a real sequencer until its state repeats, so all of its quirks, such as the subloop
+ * count that is never reset, are preserved. Between two frame transitions, a sequencer only advances its timer, so these
+ * updates are skipped at once and compiling takes one step per frame transition regardless of the frame durations. From the
+ * repetition on, the animation runs in a steady cycle. The frames repeat every cycle, whereas the shake offsets may drift by
+ * a constant amount per cycle. The frames up to the end of the first steady cycle are stored as runs of ticks, so looking up
+ * a tick is a binary search over the runs. Within a run, the shake offsets move by one pixel every 4 ticks at most.
+ * 
+ * @author Aurum
+ */
+public final class ObjDescTimeline {
+    private final List<ObjDescFrame> sequence;
+    private final List<ObjDescFrame> renderFrames;
+    private final long cycleStart, cycleLength;
+    private final int shakeDriftX, shakeDriftY;
+    
+    // Runs of ticks with the same frames, sorted by their first tick
+    private final long[] runStarts;
+    private final int[] runFrames, runRenderFrames, runShakeX, runShakeY, runShakeStepX, runShakeStepY;
+    
+    private ObjDescTimeline(List<ObjDescFrame> sequence, Compiler compiler) {
+        this.sequence = sequence;
+        renderFrames = List.copyOf(compiler.renderFrameList);
+        cycleStart = compiler.cycleStart;
+        cycleLength = compiler.cycleLength;
+        shakeDriftX = compiler.shakeDriftX;
+        shakeDriftY = compiler.shakeDriftY;
+        
+        int count = compiler.runCount;
+        runStarts = Arrays.copyOf(compiler.runStarts, count);
+        runFrames = Arrays.copyOf(compiler.runFrames, count);
+        runRenderFrames = Arrays.copyOf(compiler.runRenderFrames, count);
+        runShakeX = Arrays.copyOf(compiler.runShakeX, count);
+        runShakeY = Arrays.copyOf(compiler.runShakeY, count);
+        runShakeStepX = Arrays.copyOf(compiler.runShakeStepX, count);
+        runShakeStepY = Arrays.copyOf(compiler.runShakeStepY, count);
+    }
+    
+    /**
+     * Compiles the timeline of the specified sequence starting at its first frame.
+     * 
+     * @param sequence the animation sequence.
+     * @return the compiled timeline.
+     */
+    public static ObjDescTimeline compile(List<ObjDescFrame> sequence) {
+        return compile(sequence, 0);
+    }
+    
+    /**
+     * Compiles the timeline of the specified sequence starting at the specified frame.
+     * 
+     * @param sequence the animation sequence.
+     * @param startFrame the index of the frame to start at.
+     * @return the compiled timeline.
+     */
+    public static ObjDescTimeline compile(List<ObjDescFrame> sequence, int startFrame) {
+        Objects.requireNonNull(sequence);
+        Objects.checkIndex(startFrame, sequence.size());
+        
+        Compiler compiler = new Compiler(sequence, startFrame);
+        compiler.run();
+        return new ObjDescTimeline(sequence, compiler);
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Returns the first tick of the steady cycle. From this tick on, the frames repeat every {@code cycleLength()} ticks.
+     * 
+     * @return the first tick of the steady cycle.
+     */
+    public long cycleStart() {
+        return cycleStart;
+    }
+    
+    /**
+     * Returns the number of ticks in the steady cycle, which is the duration of one loop of the animation.
+     * 
+     * @return the length of the steady cycle.
+     */
+    public long cycleLength() {
+        return cycleLength;
+    }
+    
+    /**
+     * Returns the amount by which the horizontal shake offset changes every cycle.
+     * 
+     * @return the horizontal shake drift per cycle.
+     */
+    public int shakeDriftX() {
+        return shakeDriftX;
+    }
+    
+    /**
+     * Returns the amount by which the vertical shake offset changes every cycle.
+     * 
+     * @return the vertical shake drift per cycle.
+     */
+    public int shakeDriftY() {
+        return shakeDriftY;
+    }
+    
+    /**
+     * Returns the number of runs of ticks with the same frames that are stored by this timeline.
+     * 
+     * @return the number of runs.
+     */
+    public int runCount() {
+        return runStarts.length;
+    }
+    
+    /**
+     * Returns the index of the active frame at the specified tick.
+     * 
+     * @param tick the tick, not negative.
+     * @return the index of the active frame.
+     */
+    public int currentFrameIndex(long tick) {
+        return runFrames[findRun(localTick(tick))];
+    }
+    
+    /**
+     * Returns the active frame at the specified tick.
+     * 
+     * @param tick the tick, not negative.
+     * @return the active frame.
+     */
+    public ObjDescFrame currentFrame(long tick) {
+        return sequence.get(currentFrameIndex(tick));
+    }
+    
+    /**
+     * Returns the frame that is displayed at the specified tick.
+     * 
+     * @param tick the tick, not negative.
+     * @return the displayed frame, or {@code null} if no frame with cells has been reached yet.
+     */
+    public ObjDescFrame renderFrame(long tick) {
+        int index = runRenderFrames[findRun(localTick(tick))];
+        return index < 0 ? null : renderFrames.get(index);
+    }
+    
+    /**
+     * Returns the horizontal shake offset at the specified tick.
+     * 
+     * @param tick the tick, not negative.
+     * @return the horizontal shake offset.
+     */
+    public int shakeX(long tick) {
+        long local = localTick(tick);
+        int run = findRun(local);
+        return runShakeX[run] + runShakeStepX[run] * shakeSteps(run, local) + (int)elapsedCycles(tick) * shakeDriftX;
+    }
+    
+    /**
+     * Returns the vertical shake offset at the specified tick.
+     * 
+     * @param tick the tick, not negative.
+     * @return the vertical shake offset.
+     */
+    public int shakeY(long tick) {
+        long local = localTick(tick);
+        int run = findRun(local);
+        return runShakeY[run] + runShakeStepY[run] * shakeSteps(run, local) + (int)elapsedCycles(tick) * shakeDriftY;
+    }
+    
+    private long elapsedCycles(long tick) {
+        return tick < cycleStart ? 0L : (tick - cycleStart) / cycleLength;
+    }
+    
+    private int shakeSteps(int run, long local) {
+        return (int)((local - runStarts[run]) / 4);
+    }
+    
+    /**
+     * Maps ticks beyond the stored range into the stored steady cycle.
+     */
+    private long localTick(long tick) {
+        if (tick < 0L)
+            throw new IllegalArgumentException("Tick must not be negative.");
+        
+        return tick < cycleStart ? tick : cycleStart + (tick - cycleStart) % cycleLength;
+    }
+    
+    private int findRun(long local) {
+        int run = Arrays.binarySearch(runStarts, local);
+        return run >= 0 ? run : -run - 2;
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Runs a sequencer from one frame transition to the next and collects the runs of its states until the steady cycle has
+     * been found.
+     */
+    private static final class Compiler {
+        private final ObjDescSequencer sequencer;
+        private final IdentityHashMap<ObjDescFrame, Integer> renderFrames;
+        private final List<ObjDescFrame> renderFrameList;
+        private final HashMap<LoopState, Long> seenStates;
+        private final int[] state;
+        
+        private int runCount;
+        private long[] runStarts;
+        private int[] runFrames, runRenderFrames, runShakeX, runShakeY, runShakeStepX, runShakeStepY;
+        private long cycleStart, cycleLength;
+        private int shakeDriftX, shakeDriftY;
+        
+        Compiler(List<ObjDescFrame> sequence, int startFrame) {
+            sequencer = new ObjDescSequencer();
+            sequencer.setSequenceAndFrame(sequence, startFrame);
+            renderFrames = new IdentityHashMap();
+            renderFrameList = new ArrayList();
+            seenStates = new HashMap();
+            state = new int[ObjDescSequencer.LOOP_STATE_SIZE];
+            
+            runCount = 0;
+            runStarts = new long[16];
+            runFrames = new int[16];
+            runRenderFrames = new int[16];
+            runShakeX = new int[16];
+            runShakeY = new int[16];
+            runShakeStepX = new int[16];
+            runShakeStepY = new int[16];
+        }
+        
+        void run() {
+            // Find the first repeated state. Every frame is entered with a timer of 0, so the state right after a transition
+            // determines everything that follows. The subloop count only grows until the sequence wraps around, so every loop
+            // wraps around unless it gets stuck on a frame that never ends. Wrapping around resets the subloop count, which is
+            // incremented at most once before the next transition, so only these states have to be remembered.
+            long tick = 0L;
+            long repeatStart, repeatEnd;
+            record(tick);
+            
+            while(true) {
+                sequencer.loopState(state);
+                
+                if (state[2] <= 1 || isStuck()) {
+                    Long seen = seenStates.putIfAbsent(new LoopState(state, renderFrameIndex()), tick);
+                    
+                    if (seen != null) {
+                        repeatStart = seen;
+                        repeatEnd = tick;
+                        break;
+                    }
+                }
+                
+                tick = nextTransition(tick);
+            }
+            
+            // The shake offsets may be reset during the first repetition. After another repetition, they change by the same
+            // amount every cycle, so the steady cycle is taken to start there.
+            cycleLength = repeatEnd - repeatStart;
+            cycleStart = repeatEnd;
+            
+            while(tick < cycleStart + cycleLength)
+                tick = nextTransition(tick);
+            
+            ObjDescSequencer.Snapshot snapshot = sequencer.snapshot();
+            int start = findRun(cycleStart);
+            int steps = (int)((cycleStart - runStarts[start]) / 4);
+            shakeDriftX = snapshot.shakeX() - runShakeX[start] - runShakeStepX[start] * steps;
+            shakeDriftY = snapshot.shakeY() - runShakeY[start] - runShakeStepY[start] * steps;
+            
+            // The last tick is the start of the next cycle, so it is not stored
+            if (runStarts[runCount - 1] == cycleStart + cycleLength)
+                runCount--;
+        }
+        
+        /**
+         * Skips the updates that only advance the timer and performs the update that changes the frame.
+         */
+        private long nextTransition(long tick) {
+            int idle = sequencer.idleUpdates();
+            sequencer.skipIdleUpdates(idle);
+            sequencer.update();
+            
+            tick += idle + 1L;
+            record(tick);
+            return tick;
+        }
+        
+        /**
+         * Returns whether the active frame neither advances nor loops, in which case every update only moves the shake offsets.
+         */
+        private boolean isStuck() {
+            ObjDescFrame.SeqType type = sequencer.snapshot().currentFrame().seqType;
+            return type != ObjDescFrame.SeqType.LOOP_SEQUENCE && type != ObjDescFrame.SeqType.ELAPSE_LOOPS;
+        }
+        
+        private int renderFrameIndex() {
+            ObjDescFrame frame = sequencer.snapshot().renderFrame();
+            
+            if (frame == null)
+                return -1;
+            
+            Integer index = renderFrames.get(frame);
+            
+            if (index == null) {
+                index = renderFrameList.size();
+                renderFrames.put(frame, index);
+                renderFrameList.add(frame);
+            }
+            
+            return index;
+        }
+        
+        private int findRun(long tick) {
+            int run = Arrays.binarySearch(runStarts, 0, runCount, tick);
+            return run >= 0 ? run : -run - 2;
+        }
+        
+        private void record(long tick) {
+            ObjDescSequencer.Snapshot snapshot = sequencer.snapshot();
+            sequencer.loopState(state);
+            int frame = state[0];
+            int render = renderFrameIndex();
+            int shakeX = snapshot.shakeX();
+            int shakeY = snapshot.shakeY();
+            
+            // The shake offsets only move during the skipped updates if the frame lasts for more than one tick
+            int stepX = 0, stepY = 0;
+            
+            if (sequencer.idleUpdates() > 0) {
+                stepX = Integer.signum(state[5]);
+                stepY = -Integer.signum(state[6]);
+            }
+            
+            // Extend the last run if nothing has changed
+            if (runCount > 0) {
+                int last = runCount - 1;
+                
+                if (runFrames[last] == frame && runRenderFrames[last] == render && runShakeX[last] == shakeX
+                        && runShakeY[last] == shakeY && runShakeStepX[last] == 0 && runShakeStepY[last] == 0 && stepX == 0
+                        && stepY == 0)
+                    return;
+            }
+            
+            if (runCount == runStarts.length) {
+                int capacity = runCount * 2;
+                runStarts = Arrays.copyOf(runStarts, capacity);
+                runFrames = Arrays.copyOf(runFrames, capacity);
+                runRenderFrames = Arrays.copyOf(runRenderFrames, capacity);
+                runShakeX = Arrays.copyOf(runShakeX, capacity);
+                runShakeY = Arrays.copyOf(runShakeY, capacity);
+                runShakeStepX = Arrays.copyOf(runShakeStepX, capacity);
+                runShakeStepY = Arrays.copyOf(runShakeStepY, capacity);
+            }
+            
+            runStarts[runCount] = tick;
+            runFrames[runCount] = frame;
+            runRenderFrames[runCount] = render;
+            runShakeX[runCount] = shakeX;
+            runShakeY[runCount] = shakeY;
+            runShakeStepX[runCount] = stepX;
+            runShakeStepY[runCount] = stepY;
+            runCount++;
+        }
+    }
+    
+    /**
+     * The progress state of a sequencer together with its displayed frame, used to detect repetitions.
+     */
+    private static final class LoopState {
+        private final int[] values;
+        
+        LoopState(int[] state, int renderFrame) {
+            values = Arrays.copyOf(state, state.length + 1);
+            values[state.length] = renderFrame;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof LoopState && Arrays.equals(values, ((LoopState)obj).values);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that {@code AssetIndex} indexes a small asset folder, survives a save and load round trip, only rescans files that
+ * changed and rejects damaged index files.
+ * 
+ * @author Aurum
+ */
+public class AssetIndexTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+    
+    private Path assets;
+    
+    @Before
+    public void createAssets() throws IOException {
+        assets = temp.newFolder("assets").toPath();
+        Files.createDirectories(assets.resolve("obj"));
+        
+        new ObjDescGenerator().setSeed(1L).setAnimationTypes("walkObjDesc", "standObjDesc").setSequencesPerType(4)
+                .generate(assets.resolve("obj/hero.cat").toFile(), true);
+        new ObjDescGenerator().setSeed(2L).setAnimationTypes("walkObjDesc").setSequencesPerType(2)
+                .generate(assets.resolve("obj/npc.dat").toFile(), false);
+        new FlatBufferBuilder().putInt(0).putInt(0).addSection("mapData", 4)
+                .writeFile(assets.resolve("map.dat").toFile(), false);
+    }
+    
+    @Test
+    public void indexesAnimations() throws IOException {
+        AssetIndex index = AssetIndex.empty().update(assets);
+        
+        assertEquals(Arrays.asList("map.dat", "obj/hero.cat", "obj/npc.dat"), index.files());
+        assertEquals(Arrays.asList("standObjDesc", "walkObjDesc"), index.animationTypes());
+        assertEquals(Arrays.asList("obj/hero.cat", "obj/npc.dat"), index.filesContaining("walkObjDesc"));
+        assertEquals(Arrays.asList("obj/hero.cat"), index.filesContaining("standObjDesc"));
+        assertTrue(index.filesContaining("runObjDesc").isEmpty());
+        
+        Map<String, AssetIndex.Animation> walk = index.findAnimations("walkObjDesc");
+        assertEquals(4, walk.get("obj/hero.cat").directions());
+        assertEquals(2, walk.get("obj/npc.dat").directions());
+        
+        assertTrue(index.findFile("map.dat").animations().isEmpty());
+        assertEquals(Files.size(assets.resolve("obj/npc.dat")), index.findFile("obj/npc.dat").size());
+        assertNull(index.findFile("obj/missing.dat"));
+        
+        assertEquals(3, index.updateStatistics().scanned());
+        assertEquals(0, index.updateStatistics().failed());
+    }
+    
+    @Test
+    public void roundTrip() throws IOException {
+        AssetIndex index = AssetIndex.empty().update(assets);
+        File file = temp.newFile("assets.idx");
+        index.save(file);
+        
+        AssetIndex loaded = AssetIndex.load(file);
+        assertEquals(index.files(), loaded.files());
+        assertEquals(index.animationTypes(), loaded.animationTypes());
+        
+        for (String path : index.files())
+            assertEntryEquals(index.findFile(path), loaded.findFile(path));
+        
+        // Loaded indices did not scan anything
+        assertEquals(0, loaded.updateStatistics().scanned());
+        assertTrue(loaded.updateStatistics().failures().isEmpty());
+        
+        // The loaded index can be replaced while it is in use
+        loaded.update(assets).save(file);
+        assertEquals(index.files(), AssetIndex.load(file).files());
+    }
+    
+    @Test
+    public void rescansChangedFilesOnly() throws IOException {
+        AssetIndex index = AssetIndex.empty().update(assets);
+        Path npc = assets.resolve("obj/npc.dat");
+        Path map = assets.resolve("map.dat");
+        
+        // Touched, modified, removed and new files
+        Files.setLastModifiedTime(npc, FileTime.fromMillis(Files.getLastModifiedTime(npc).toMillis() + 60000L));
+        new ObjDescGenerator().setSeed(3L).setAnimationTypes("runObjDesc").generate(map.toFile(), false);
+        Files.delete(assets.resolve("obj/hero.cat"));
+        new ObjDescGenerator().setSeed(4L).setAnimationTypes("runObjDesc").generate(assets.resolve("new.dat").toFile(), false);
+        
+        AssetIndex updated = index.update(assets);
+        AssetIndex.UpdateStatistics statistics = updated.updateStatistics();
+        assertEquals(2, statistics.scanned());
+        assertEquals(0, statistics.unchanged());
+        assertEquals(1, statistics.rehashed());
+        assertEquals(1, statistics.removed());
+        assertEquals(Arrays.asList("map.dat", "new.dat"), updated.filesContaining("runObjDesc"));
+        assertEquals(Arrays.asList("obj/npc.dat"), updated.filesContaining("walkObjDesc"));
+        
+        // Nothing changed since the last update
+        assertEquals(3, updated.update(assets).updateStatistics().unchanged());
+    }
+    
+    @Test
+    public void reportsFailedFiles() throws IOException {
+        Files.write(assets.resolve("obj/broken.cat"), new byte[] { 0x10, 0x40, 0x00, 0x00, 0x00 });
+        AssetIndex index = AssetIndex.empty().update(assets);
+        
+        AssetIndex.UpdateStatistics statistics = index.updateStatistics();
+        assertEquals(1, statistics.failed());
+        assertEquals(List.of("obj/broken.cat"), List.copyOf(statistics.failures().keySet()));
+        assertTrue(statistics.failures().get("obj/broken.cat").contains("LZ10"));
+        assertNull(index.findFile("obj/broken.cat"));
+        assertEquals(3, index.filesCount());
+    }
+    
+    @Test
+    public void rejectsDamagedFiles() throws IOException {
+        File file = temp.newFile("assets.idx");
+        AssetIndex.empty().update(assets).save(file);
+        byte[] data = Files.readAllBytes(file.toPath());
+        
+        // Truncated, wrong magic, wrong version, a string reference beyond the string pool and too many types
+        assertRejected(Arrays.copyOf(data, 0x10));
+        assertRejected(Arrays.copyOf(data, data.length - 1));
+        assertRejected(withInt(data, 0x00, 0));
+        assertRejected(withInt(data, 0x04, 2));
+        assertRejected(withInt(data, 0x20, 0x7FFFFFF0));
+        assertRejected(withInt(data, 0x08, 0x10000000));
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private void assertRejected(byte[] data) throws IOException {
+        File file = temp.newFile();
+        Files.write(file.toPath(), data);
+        assertThrows(IOException.class, () -> AssetIndex.load(file));
+    }
+    
+    private static byte[] withInt(byte[] data, int offset, int value) {
+        byte[] copy = data.clone();
+        ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN).putInt(offset, value);
+        return copy;
+    }
+    
+    private static void assertEntryEquals(AssetIndex.Entry expected, AssetIndex.Entry actual) {
+        assertEquals(expected.path(), actual.path());
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.lastModified(), actual.lastModified());
+        assertEquals(expected.hash(), actual.hash());
+        assertEquals(expected.animations().toString(), actual.animations().toString());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that {@code FlatBuffer} rejects malformed headers with an {@code IOException} on every path that reads them.
+ * 
+ * @author Aurum
+ */
+public class FlatBufferTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void unpacksGeneratedFlatBuffer() throws Exception {
+        byte[] data = new ObjDescGenerator().setSeed(0x7C04L).generate(false);
+        FlatBuffer flatbuffer = FlatBuffer.unpackFlatBuffer(ByteBuffer.wrap(data));
+        FlatBuffer.Header header = FlatBuffer.probe(ByteBuffer.wrap(data), false);
+        
+        assertEquals(flatbuffer.sectionsCount(), header.sectionNames().size());
+        assertEquals(flatbuffer.sectionsCount(), FlatBuffer.unpackFlatBuffer(write("valid.dat", data)).sectionsCount());
+    }
+    
+    @Test
+    public void unpacksCompressedFile() throws Exception {
+        byte[] data = new ObjDescGenerator().setSeed(0x7C03L).generate(false);
+        FlatBuffer expected = FlatBuffer.unpackFlatBuffer(ByteBuffer.wrap(data));
+        FlatBuffer flatbuffer = FlatBuffer.unpackFlatBuffer(write("valid.cat", LZ10.compress(data)));
+        
+        assertEquals(expected.sections(), flatbuffer.sections());
+        assertEquals(expected.data(), flatbuffer.data());
+    }
+    
+    @Test
+    public void rejectsOverflowingLabelCounts() throws IOException {
+        // Both counts are valid on their own, but their sum overflows to a negative int
+        byte[] data = header(0x40, 0, 0, 0x40000000, 0x40000000);
+        File file = write("overflow.dat", data);
+        
+        assertThrows(IOException.class, () -> FlatBuffer.unpackFlatBuffer(ByteBuffer.wrap(data)));
+        assertThrows(IOException.class, () -> FlatBuffer.probe(ByteBuffer.wrap(data), false));
+        assertThrows(IOException.class, () -> FlatBuffer.unpackFlatBuffer(file));
+        assertThrows(IOException.class, () -> FlatBuffer.probe(file));
+    }
+    
+    @Test
+    public void rejectsNegativeSizes() throws IOException {
+        for (int field = 1 ; field <= 4 ; field++) {
+            int[] values = { 0x40, 0, 0, 0, 0 };
+            values[field] = -1;
+            byte[] data = header(values[0], values[1], values[2], values[3], values[4]);
+            
+            assertThrows(IOException.class, () -> FlatBuffer.unpackFlatBuffer(ByteBuffer.wrap(data)));
+            assertThrows(IOException.class, () -> FlatBuffer.probe(ByteBuffer.wrap(data), false));
+            assertThrows(IOException.class, () -> FlatBuffer.unpackFlatBuffer(write("negative.dat", data)));
+        }
+    }
+    
+    @Test
+    public void rejectsSizesBeyondTotalSize() throws IOException {
+        byte[] data = header(0x40, 0x18, 1, 1, 0);
+        
+        assertThrows(IOException.class, () -> FlatBuffer.unpackFlatBuffer(ByteBuffer.wrap(data)));
+        assertThrows(IOException.class, () -> FlatBuffer.probe(ByteBuffer.wrap(data), false));
+        assertThrows(IOException.class, () -> FlatBuffer.unpackFlatBuffer(write("oversized.dat", data)));
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private static byte[] header(int totalSize, int dataSize, int numPointers, int numSections, int numEntries) {
+        ByteBuffer buffer = ByteBuffer.allocate(0x40).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(totalSize).putInt(dataSize).putInt(numPointers).putInt(numSections).putInt(numEntries);
+        return buffer.array();
+    }
+    
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
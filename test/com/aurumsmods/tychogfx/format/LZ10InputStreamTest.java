@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that {@code LZ10InputStream} decompresses the same data as {@code LZ10.decompress}, no matter how the data is read
+ * or skipped, and that it rejects malformed input.
+ * 
+ * @author Aurum
+ */
+public class LZ10InputStreamTest {
+    private static final int WINDOW_SIZE = 0x1000;
+    
+    @Test
+    public void roundTripInChunks() throws Exception {
+        Random random = new Random(0x30);
+        
+        for (byte[] data : testData(random)) {
+            byte[] compressed = LZ10.compress(data);
+            
+            for (int maxChunk : new int[] { 1, 7, WINDOW_SIZE - 1, 3 * WINDOW_SIZE }) {
+                LZ10InputStream in = new LZ10InputStream(new ByteArrayInputStream(compressed));
+                assertEquals(data.length, in.length());
+                
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+                byte[] chunk = new byte[maxChunk];
+                int read;
+                
+                while((read = in.read(chunk, 0, 1 + random.nextInt(maxChunk))) >= 0)
+                    out.write(chunk, 0, read);
+                
+                assertArrayEquals(data, out.toByteArray());
+                assertEquals(0, in.available());
+                assertEquals(-1, in.read());
+            }
+        }
+    }
+    
+    @Test
+    public void skipDecodesReferencedBytes() throws Exception {
+        Random random = new Random(0x31);
+        
+        for (byte[] data : testData(random)) {
+            LZ10InputStream in = new LZ10InputStream(new ByteArrayInputStream(LZ10.compress(data)));
+            
+            for (int pos = 0 ; pos < data.length ; ) {
+                int count = Math.min(1 + random.nextInt(2 * WINDOW_SIZE), data.length - pos);
+                
+                if (random.nextBoolean())
+                    assertEquals(count, in.skip(count));
+                else
+                    assertArrayEquals(Arrays.copyOfRange(data, pos, pos + count), in.readNBytes(count));
+                
+                pos += count;
+                assertEquals(data.length - pos, in.available());
+            }
+            
+            assertEquals(0L, in.skip(1));
+        }
+    }
+    
+    @Test
+    public void leavesTrailingBytesWithSingleByteBuffer() throws Exception {
+        byte[] data = randomBytes(new Random(0x32), 3 * WINDOW_SIZE, 16);
+        byte[] compressed = LZ10.compress(data);
+        byte[] input = Arrays.copyOf(compressed, compressed.length + 3);
+        input[compressed.length] = 0x7F;
+        
+        ByteArrayInputStream src = new ByteArrayInputStream(input);
+        LZ10InputStream in = new LZ10InputStream(src, 1);
+        assertArrayEquals(data, in.readAllBytes());
+        assertEquals(3, src.available());
+        assertEquals(0x7F, src.read());
+    }
+    
+    @Test
+    public void rejectsTruncatedInput() throws Exception {
+        byte[] compressed = LZ10.compress(randomBytes(new Random(0x33), 300, 8));
+        
+        for (int size = 0 ; size < compressed.length ; size++) {
+            byte[] truncated = Arrays.copyOf(compressed, size);
+            assertMalformed(truncated);
+        }
+    }
+    
+    @Test
+    public void rejectsReferencesBeforeStart() {
+        // A back-reference to the byte before the first one, and one that reaches one byte too far back after 3 literals
+        byte[] first = { 0x10, 0x04, 0x00, 0x00, (byte)0x80, 0x00, 0x00 };
+        byte[] later = { 0x10, 0x06, 0x00, 0x00, 0x10, 'a', 'b', 'c', 0x00, 0x03 };
+        
+        assertMalformed(first);
+        assertMalformed(later);
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Checks that malformed data is rejected by the constructor or while reading. Errors that occur while reading are
+     * {@code IOException}s caused by an {@code LZ10Exception}.
+     */
+    private static void assertMalformed(byte[] compressed) {
+        String message = String.format("%d bytes", compressed.length);
+        LZ10InputStream in;
+        
+        try {
+            in = new LZ10InputStream(new ByteArrayInputStream(compressed));
+        }
+        catch(IOException | LZ10.LZ10Exception ex) {
+            assertTrue(message, ex instanceof LZ10.LZ10Exception);
+            return;
+        }
+        
+        IOException ex = assertThrows(message, IOException.class, () -> in.readAllBytes());
+        assertTrue(message, ex.getCause() instanceof LZ10.LZ10Exception);
+    }
+    
+    private static byte[][] testData(Random random) {
+        byte[] runs = new byte[5 * WINDOW_SIZE];
+        
+        for (int off = 0 ; off < runs.length ; ) {
+            int length = Math.min(1 + random.nextInt(300), runs.length - off);
+            Arrays.fill(runs, off, off + length, (byte)random.nextInt(8));
+            off += length;
+        }
+        
+        return new byte[][] {
+            new byte[0],
+            new byte[] { 0x10 },
+            randomBytes(random, 4 * WINDOW_SIZE + 5, 256),
+            randomBytes(random, 4 * WINDOW_SIZE, 4),
+            runs
+        };
+    }
+    
+    private static byte[] randomBytes(Random random, int size, int range) {
+        byte[] data = new byte[size];
+        
+        for (int i = 0 ; i < size ; i++)
+            data[i] = (byte)random.nextInt(range);
+        
+        return data;
+    }
+}
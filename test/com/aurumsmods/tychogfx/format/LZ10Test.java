@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import org.junit.Test;
+
+/**
+ * Checks that {@code LZ10.compress} produces data that {@code LZ10.decompress} restores byte for byte at every effort level.
+ * The inputs cover the edge cases of the encoder as well as data that is larger than the 4 KiB window. Malformed data has to
+ * be rejected with an {@code LZ10Exception} by every overload.
+ * 
+ * @author Aurum
+ */
+public class LZ10Test {
+    private static final int WINDOW_SIZE = 0x1000;
+    
+    @Test
+    public void roundTripEmpty() throws LZ10.LZ10Exception {
+        assertRoundTrip(new byte[0]);
+    }
+    
+    @Test
+    public void roundTripSingleByte() throws LZ10.LZ10Exception {
+        assertRoundTrip(new byte[] { 0x10 });
+    }
+    
+    @Test
+    public void roundTripShortInputs() throws LZ10.LZ10Exception {
+        // Shorter than, equal to and just longer than the minimum and maximum match lengths
+        Random random = new Random(0x2A);
+        
+        for (int size = 2 ; size <= 20 ; size++) {
+            assertRoundTrip(randomBytes(random, size, 256));
+            assertRoundTrip(new byte[size]);
+        }
+    }
+    
+    @Test
+    public void roundTripRandom() throws LZ10.LZ10Exception {
+        Random random = new Random(0x10);
+        assertRoundTrip(randomBytes(random, 3 * WINDOW_SIZE + 123, 256));
+        assertRoundTrip(randomBytes(random, 5 * WINDOW_SIZE, 4));
+    }
+    
+    @Test
+    public void roundTripRuns() throws LZ10.LZ10Exception {
+        Random random = new Random(0x11);
+        byte[] data = new byte[6 * WINDOW_SIZE];
+        
+        for (int off = 0 ; off < data.length ; ) {
+            int length = Math.min(1 + random.nextInt(300), data.length - off);
+            Arrays.fill(data, off, off + length, (byte)random.nextInt(8));
+            off += length;
+        }
+        
+        assertRoundTrip(data);
+    }
+    
+    @Test
+    public void roundTripWindowDistance() throws LZ10.LZ10Exception {
+        // Blocks that repeat exactly at the largest distance and just beyond it
+        Random random = new Random(0x12);
+        
+        for (int period : new int[] { WINDOW_SIZE - 1, WINDOW_SIZE, WINDOW_SIZE + 1 }) {
+            byte[] block = randomBytes(random, period, 256);
+            byte[] data = new byte[period * 3 + 17];
+            
+            for (int off = 0 ; off < data.length ; off++)
+                data[off] = block[off % period];
+            
+            assertRoundTrip(data);
+        }
+    }
+    
+    @Test
+    public void roundTripFlatBuffer() throws LZ10.LZ10Exception {
+        for (int scale : new int[] { 1, 4 }) {
+            byte[] data = new ObjDescGenerator()
+                    .setSeed(0x7C40L + scale)
+                    .setFramesPerType(8 * scale)
+                    .setFramesPerSequence(4 * scale)
+                    .setCellSetsPerType(4 * scale)
+                    .setTilesPerType(6 * scale)
+                    .generate(false);
+            assertRoundTrip(data);
+        }
+    }
+    
+    @Test
+    public void rejectsTruncatedInput() throws LZ10.LZ10Exception {
+        byte[] compressed = LZ10.compress(randomBytes(new Random(0x13), 300, 8));
+        
+        for (int size = 0 ; size < compressed.length ; size++)
+            assertRejected(Arrays.copyOf(compressed, size));
+    }
+    
+    @Test
+    public void rejectsReferencesBeforeStart() {
+        // A back-reference to the byte before the first one, and one that reaches one byte too far back after 3 literals
+        assertRejected(new byte[] { 0x10, 0x04, 0x00, 0x00, (byte)0x80, 0x00, 0x00 });
+        assertRejected(new byte[] { 0x10, 0x06, 0x00, 0x00, 0x10, 'a', 'b', 'c', 0x00, 0x03 });
+    }
+    
+    @Test
+    public void rejectsMissingHeader() {
+        assertRejected(new byte[] { 0x11, 0x01, 0x00, 0x00, 0x00, 0x00 });
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    /**
+     * Checks that every overload reports the malformed data with an {@code LZ10Exception}.
+     */
+    private static void assertRejected(byte[] compressed) {
+        String message = String.format("%d bytes", compressed.length);
+        ByteBuffer direct = ByteBuffer.allocateDirect(compressed.length).put(compressed).flip();
+        
+        assertThrows(message, LZ10.LZ10Exception.class, () -> LZ10.decompress(compressed));
+        assertThrows(message, LZ10.LZ10Exception.class, () -> LZ10.decompress(direct));
+        assertThrows(message, LZ10.LZ10Exception.class, () -> LZ10.decompress(new ByteArrayInputStream(compressed)));
+        assertThrows(message, LZ10.LZ10Exception.class,
+                () -> LZ10.decompress(compressed, 0, compressed.length, new byte[0x10000]));
+    }
+    
+    private static void assertRoundTrip(byte[] data) throws LZ10.LZ10Exception {
+        for (int effort = LZ10.MIN_EFFORT ; effort <= LZ10.MAX_EFFORT ; effort++) {
+            byte[] compressed = LZ10.compress(data, effort);
+            String message = String.format("%d bytes at effort %d", data.length, effort);
+            
+            assertEquals(message, data.length, LZ10.decompressedSize(compressed));
+            assertArrayEquals(message, data, LZ10.decompress(compressed));
+        }
+    }
+    
+    private static byte[] randomBytes(Random random, int size, int range) {
+        byte[] data = new byte[size];
+        
+        for (int i = 0 ; i < size ; i++)
+            data[i] = (byte)random.nextInt(range);
+        
+        return data;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks the file name and file allocation table parsing of {@code NitroFileSystem} on small synthetic ROMs. File {@code i}
+ * of a synthetic ROM contains {@code i + 1} bytes of the value {@code i + 1}.
+ * 
+ * @author Aurum
+ */
+public class NitroFileSystemTest {
+    private static final int HEADER_SIZE = 0x200;
+    
+    // Directories refer to other directories with "name>index"
+    private static final String[][] DIRECTORIES = {
+        { "a.bin", "b.cat", "data>1" },
+        { "obj.dat", "sub>2" },
+        { "x.bin" }
+    };
+    
+    @Test
+    public void listsPathsAndSlices() throws IOException {
+        // The last file has no name, like an overlay
+        NitroFileSystem filesystem = NitroFileSystem.unpackRom(createRom(createFnt(DIRECTORIES), 5));
+        
+        assertEquals(Arrays.asList("a.bin", "b.cat", "data/obj.dat", "data/sub/x.bin"), new ArrayList(filesystem.files()));
+        assertEquals(4, filesystem.filesCount());
+        assertEquals(2, filesystem.findFile("data/obj.dat"));
+        assertEquals(-1, filesystem.findFile("data/missing.dat"));
+        assertNull(filesystem.fileView("data/missing.dat"));
+        
+        assertContents(3, filesystem.fileView("data/sub/x.bin"));
+        assertContents(0, filesystem.fileView("a.bin"));
+        assertContents(4, filesystem.fileView(4));
+        
+        ByteBuffer view = filesystem.fileView("b.cat");
+        assertTrue(view.isReadOnly());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, view.order());
+    }
+    
+    @Test
+    public void rejectsOutOfRangeIds() throws IOException {
+        ByteBuffer rom = createRom(createFnt(DIRECTORIES), 5);
+        NitroFileSystem filesystem = NitroFileSystem.unpackRom(rom);
+        assertThrows(IndexOutOfBoundsException.class, () -> filesystem.fileView(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> filesystem.fileView(5));
+        
+        // Unnamed files are only checked once they are accessed
+        rom.putInt(rom.getInt(0x48) + 4 * 8 + 4, rom.limit() + 1);
+        assertThrows(IndexOutOfBoundsException.class, () -> NitroFileSystem.unpackRom(rom).fileView(4));
+        
+        // More named files than allocated ones
+        assertRejected(createRom(createFnt(DIRECTORIES), 3), "invalid file ID");
+        
+        // References to the root directory and beyond the last directory
+        assertRejected(createRom(createFnt(new String[][] { { "root>0" } }), 1), "invalid directory ID");
+        assertRejected(createRom(createFnt(new String[][] { { "data>1" }, { "x>2" } }), 1), "invalid directory ID");
+        
+        // Named files located outside of the ROM
+        ByteBuffer outside = createRom(createFnt(DIRECTORIES), 5);
+        outside.putInt(outside.getInt(0x48) + 2 * 8, -4);
+        assertRejected(outside, "data/obj.dat");
+    }
+    
+    @Test
+    public void rejectsCycles() {
+        assertRejected(createRom(createFnt(new String[][] { { "data>1" }, { "loop>1" } }), 1), "more than once");
+        assertRejected(createRom(createFnt(new String[][] { { "a>1", "b>1" }, { } }), 1), "more than once");
+    }
+    
+    @Test
+    public void rejectsTruncatedTables() {
+        byte[] fnt = createFnt(DIRECTORIES);
+        
+        // Sub table entries that end too early
+        for (int len : new int[] { fnt.length - 1, fnt.length - 3, DIRECTORIES.length * 8 })
+            assertRejected(createRom(Arrays.copyOf(fnt, len), 5), "truncated");
+        
+        assertRejected(createRom(Arrays.copyOf(fnt, 4), 5), "too small");
+        assertRejected(createRom(Arrays.copyOf(fnt, 16), 5), "declares 3 directories");
+        
+        // Tables that exceed the ROM
+        ByteBuffer rom = createRom(fnt, 5);
+        rom.putInt(0x4C, rom.limit());
+        assertRejected(rom, "File allocation table");
+        
+        rom = createRom(fnt, 5);
+        rom.putInt(0x40, -1);
+        assertRejected(rom, "File name table");
+        
+        assertRejected(ByteBuffer.allocate(HEADER_SIZE - 1), "smaller than its header");
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private static byte[] createFnt(String[][] directories) {
+        ByteArrayOutputStream subTables = new ByteArrayOutputStream();
+        ByteBuffer mainTable = ByteBuffer.allocate(directories.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        int fileId = 0;
+        
+        for (int i = 0 ; i < directories.length ; i++) {
+            // The root entry stores the number of directories instead of its parent
+            mainTable.putInt(directories.length * 8 + subTables.size());
+            mainTable.putShort((short)fileId);
+            mainTable.putShort((short)(i == 0 ? directories.length : 0xF000));
+            
+            for (String entry : directories[i]) {
+                int sep = entry.indexOf('>');
+                byte[] name = (sep < 0 ? entry : entry.substring(0, sep)).getBytes(StandardCharsets.ISO_8859_1);
+                
+                if (sep < 0) {
+                    subTables.write(name.length);
+                    subTables.writeBytes(name);
+                    fileId++;
+                }
+                else {
+                    int dirId = 0xF000 + Integer.parseInt(entry.substring(sep + 1));
+                    subTables.write(0x80 | name.length);
+                    subTables.writeBytes(name);
+                    subTables.write(dirId);
+                    subTables.write(dirId >>> 8);
+                }
+            }
+            
+            subTables.write(0);
+        }
+        
+        byte[] fnt = Arrays.copyOf(mainTable.array(), mainTable.capacity() + subTables.size());
+        System.arraycopy(subTables.toByteArray(), 0, fnt, mainTable.capacity(), subTables.size());
+        return fnt;
+    }
+    
+    private static ByteBuffer createRom(byte[] fnt, int numFiles) {
+        int offFat = (HEADER_SIZE + fnt.length + 3) & ~3;
+        int offData = offFat + numFiles * 8;
+        int size = offData + numFiles * (numFiles + 1) / 2;
+        ByteBuffer rom = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        
+        rom.putInt(0x40, HEADER_SIZE).putInt(0x44, fnt.length);
+        rom.putInt(0x48, offFat).putInt(0x4C, numFiles * 8);
+        rom.put(HEADER_SIZE, fnt);
+        
+        for (int i = 0 ; i < numFiles ; i++) {
+            rom.putInt(offFat + i * 8, offData).putInt(offFat + i * 8 + 4, offData + i + 1);
+            
+            for (int j = 0 ; j <= i ; j++)
+                rom.put(offData++, (byte)(i + 1));
+        }
+        
+        return rom;
+    }
+    
+    private static void assertContents(int id, ByteBuffer view) {
+        byte[] expected = new byte[id + 1];
+        Arrays.fill(expected, (byte)(id + 1));
+        byte[] actual = new byte[view.remaining()];
+        view.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+    
+    private static void assertRejected(ByteBuffer rom, String message) {
+        IOException ex = assertThrows(IOException.class, () -> NitroFileSystem.unpackRom(rom));
+        assertTrue(ex.getMessage(), ex.getMessage().contains(message));
+    }
+}
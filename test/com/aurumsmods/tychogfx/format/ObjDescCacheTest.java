@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that {@code ObjDescCache} restores the animations it stored, ignores cache files of sources that changed and treats
+ * damaged cache files as missing.
+ * 
+ * @author Aurum
+ */
+public class ObjDescCacheTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+    
+    private ObjDescCache cache;
+    private File source;
+    
+    @Before
+    public void createSource() throws IOException {
+        cache = new ObjDescCache(new File(temp.getRoot(), "cache"));
+        source = temp.newFile("hero.cat");
+        generator(0x21L).generate(source, true);
+    }
+    
+    @Test
+    public void roundTripWithoutPixels() throws Exception {
+        assertNull(cache.load(source));
+        
+        ObjDesc objdesc = ObjDesc.unpackObjDescLazily(FlatBuffer.unpackFlatBuffer(source));
+        cache.store(source, objdesc, false);
+        assertObjDescEquals(ObjDesc.unpackObjDesc(FlatBuffer.unpackFlatBuffer(source)), cache.load(source));
+    }
+    
+    @Test
+    public void roundTripWithPixels() throws Exception {
+        ObjDesc opened = cache.open(source);
+        assertObjDescEquals(ObjDesc.unpackObjDesc(FlatBuffer.unpackFlatBuffer(source)), opened);
+        assertObjDescEquals(opened, cache.load(source));
+    }
+    
+    @Test
+    public void ignoresChangedSources() throws Exception {
+        cache.open(source);
+        long lastModified = source.lastModified();
+        
+        // Touching the source keeps the cache file, since its contents are the same
+        assertTrue(source.setLastModified(lastModified + 60000L));
+        assertNotNull(cache.load(source));
+        
+        // Same size and modification time, but different contents
+        byte[] data = Files.readAllBytes(source.toPath());
+        data[data.length - 1] ^= 0x55;
+        Files.write(source.toPath(), data);
+        Files.setLastModifiedTime(source.toPath(), FileTime.fromMillis(lastModified + 120000L));
+        assertNull(cache.load(source));
+        
+        // Different size
+        generator(0x22L).setSequencesPerType(8).generate(source, true);
+        assertNull(cache.load(source));
+        
+        // The outdated cache file is replaced
+        cache.open(source);
+        assertNotNull(cache.load(source));
+    }
+    
+    @Test
+    public void ignoresDamagedFiles() throws Exception {
+        cache.open(source);
+        File file = cache.cacheFile(source);
+        byte[] data = Files.readAllBytes(file.toPath());
+        
+        // Flipped payload bits, truncated files, another version and garbage
+        for (int off : new int[] { data.length / 2, data.length - 1 }) {
+            byte[] damaged = data.clone();
+            damaged[off] ^= 0x01;
+            assertIgnored(file, damaged);
+        }
+        
+        assertIgnored(file, Arrays.copyOf(data, data.length - 1));
+        assertIgnored(file, Arrays.copyOf(data, 6));
+        assertIgnored(file, new byte[0]);
+        
+        byte[] version = data.clone();
+        version[4]++;
+        assertIgnored(file, version);
+        
+        // The damaged file is replaced
+        cache.open(source);
+        assertNotNull(cache.load(source));
+    }
+    
+    @Test
+    public void abandonsInterruptedStores() throws Exception {
+        ObjDesc objdesc = ObjDesc.unpackObjDescLazily(FlatBuffer.unpackFlatBuffer(source));
+        Thread.currentThread().interrupt();
+        
+        try {
+            assertThrows(InterruptedIOException.class, () -> cache.store(source, objdesc, false));
+        }
+        finally {
+            Thread.interrupted();
+        }
+        
+        assertFalse(cache.cacheFile(source).exists());
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private static ObjDescGenerator generator(long seed) {
+        return new ObjDescGenerator()
+                .setSeed(seed)
+                .setAnimationTypes("walkObjDesc", "standObjDesc", "runObjDesc")
+                .setSequencesPerType(4)
+                .setFramesPerSequence(6)
+                .setPalettesPerType(2);
+    }
+    
+    private void assertIgnored(File file, byte[] data) throws IOException {
+        Files.write(file.toPath(), data);
+        assertNull(cache.load(source));
+    }
+    
+    private static void assertObjDescEquals(ObjDesc expected, ObjDesc actual) {
+        assertNotNull(actual);
+        assertEquals(expected.animationTypes(), actual.animationTypes());
+        
+        for (String type : expected.animationTypes()) {
+            assertEquals(type, expected.paletteCount(type), actual.paletteCount(type));
+            List<List<ObjDescFrame>> expectedSequences = expected.animationSequences(type);
+            List<List<ObjDescFrame>> actualSequences = actual.animationSequences(type);
+            assertEquals(type, expectedSequences.size(), actualSequences.size());
+            
+            for (int seq = 0 ; seq < expectedSequences.size() ; seq++) {
+                List<ObjDescFrame> expectedFrames = expectedSequences.get(seq);
+                List<ObjDescFrame> actualFrames = actualSequences.get(seq);
+                assertEquals(type, expectedFrames.size(), actualFrames.size());
+                
+                for (int f = 0 ; f < expectedFrames.size() ; f++)
+                    assertFrameEquals(type + " " + seq + " " + f, expectedFrames.get(f), actualFrames.get(f));
+            }
+        }
+    }
+    
+    private static void assertFrameEquals(String message, ObjDescFrame expected, ObjDescFrame actual) {
+        assertEquals(message, expected.sequenceType(), actual.sequenceType());
+        assertEquals(message, expected.duration(), actual.duration());
+        assertEquals(message, expected.shakeArgX(), actual.shakeArgX());
+        assertEquals(message, expected.shakeArgY(), actual.shakeArgY());
+        assertEquals(message, expected.loopCount(), actual.loopCount());
+        assertEquals(message, expected.bounds(), actual.bounds());
+        
+        BufferedImage expectedImage = expected.prerendered();
+        BufferedImage actualImage = actual.prerendered();
+        
+        if (expectedImage == null) {
+            assertNull(message, actualImage);
+            return;
+        }
+        
+        int w = expectedImage.getWidth();
+        int h = expectedImage.getHeight();
+        assertArrayEquals(message, expectedImage.getRGB(0, 0, w, h, null, 0, w), actualImage.getRGB(0, 0, w, h, null, 0, w));
+    }
+}
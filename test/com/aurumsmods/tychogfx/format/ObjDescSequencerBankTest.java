@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static com.aurumsmods.tychogfx.format.TestSequences.randomSequence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * Checks that {@code ObjDescSequencerBank} produces the same results as updating an {@code ObjDescSequencer} for every
+ * sequence one instance at a time. Both are advanced in lock-step and compared after every tick.
+ * 
+ * @author Aurum
+ */
+public class ObjDescSequencerBankTest {
+    @Test
+    public void matchesSequencersOnRandomSequences() {
+        Random random = new Random(0x14);
+        List<List<ObjDescFrame>> sequences = new ArrayList();
+        
+        for (int i = 0 ; i < 200 ; i++)
+            sequences.add(randomSequence(random));
+        
+        assertLockStep(sequences, random, 20000, false, 0);
+    }
+    
+    @Test
+    public void matchesSequencersOnGeneratedObjDesc() throws Exception {
+        byte[] data = new ObjDescGenerator()
+                .setSeed(0x7C14L)
+                .setFramesPerType(16)
+                .setFramesPerSequence(8)
+                .setCellSetsPerType(4)
+                .setTilesPerType(6)
+                .generate(false);
+        ObjDesc objdesc = ObjDesc.unpackObjDesc(FlatBuffer.unpackFlatBuffer(ByteBuffer.wrap(data)));
+        List<List<ObjDescFrame>> sequences = new ArrayList();
+        
+        for (String type : objdesc.animationTypes())
+            sequences.addAll(objdesc.animationSequences(type));
+        
+        assertLockStep(sequences, new Random(0x15), 20000, false, 0);
+    }
+    
+    @Test
+    public void matchesSequencersInParallel() {
+        // More sequencers than fit into a single chunk, so the update is split across threads
+        Random random = new Random(0x16);
+        List<List<ObjDescFrame>> sequences = new ArrayList();
+        
+        for (int i = 0 ; i < 10000 ; i++)
+            sequences.add(randomSequence(random));
+        
+        assertLockStep(sequences, random, 500, true, 0);
+    }
+    
+    @Test
+    public void matchesSequencersAfterRestart() {
+        Random random = new Random(0x17);
+        List<List<ObjDescFrame>> sequences = new ArrayList();
+        
+        for (int i = 0 ; i < 200 ; i++)
+            sequences.add(randomSequence(random));
+        
+        assertLockStep(sequences, random, 5000, false, 97);
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private static void assertLockStep(List<List<ObjDescFrame>> sequences, Random random, int ticks, boolean parallel,
+            int restartInterval) {
+        int count = sequences.size();
+        ObjDescSequencer[] sequencers = new ObjDescSequencer[count];
+        ObjDescSequencerBank bank = new ObjDescSequencerBank(1);
+        
+        for (int i = 0 ; i < count ; i++) {
+            List<ObjDescFrame> sequence = sequences.get(i);
+            int startFrame = random.nextInt(sequence.size());
+            
+            sequencers[i] = new ObjDescSequencer();
+            sequencers[i].setSequenceAndFrame(sequence, startFrame);
+            assertEquals(i, bank.add(sequence, startFrame));
+        }
+        
+        assertEquals(count, bank.size());
+        
+        for (int tick = 0 ; tick < ticks ; tick++) {
+            if (tick > 0) {
+                for (ObjDescSequencer sequencer : sequencers)
+                    sequencer.update();
+                
+                bank.updateAll(parallel);
+            }
+            
+            if (restartInterval > 0 && tick % restartInterval == restartInterval - 1) {
+                int id = random.nextInt(count);
+                int startFrame = random.nextInt(sequences.get(id).size());
+                sequencers[id].setSequenceAndFrame(sequences.get(id), startFrame);
+                bank.restart(id, startFrame);
+            }
+            
+            for (int id = 0 ; id < count ; id++) {
+                ObjDescSequencer.Snapshot snapshot = sequencers[id].snapshot();
+                
+                if (snapshot.currentFrame() != bank.currentFrame(id) || snapshot.renderFrame() != bank.renderFrame(id)
+                        || snapshot.shakeX() != bank.shakeX(id) || snapshot.shakeY() != bank.shakeY(id)) {
+                    String message = String.format("sequencer %d at tick %d", id, tick);
+                    assertSame(message, snapshot.currentFrame(), bank.currentFrame(id));
+                    assertSame(message, snapshot.renderFrame(), bank.renderFrame(id));
+                    assertEquals(message, snapshot.shakeX(), bank.shakeX(id));
+                    assertEquals(message, snapshot.shakeY(), bank.shakeY(id));
+                }
+            }
+        }
+    }
+}
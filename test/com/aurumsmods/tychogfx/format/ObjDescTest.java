@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks the perfect hash table of known ObjDesc types and that building it fails fast for names it cannot tell apart.
+ * 
+ * @author Aurum
+ */
+public class ObjDescTest {
+    @Test
+    public void recognizesKnownTypes() {
+        for (String name : ObjDesc.OBJ_DESC_TYPES)
+            assertTrue(name, ObjDesc.isObjDesc(name));
+        
+        assertFalse(ObjDesc.isObjDesc(""));
+        assertFalse(ObjDesc.isObjDesc("ObjDesc"));
+        assertFalse(ObjDesc.isObjDesc("unknownObjDesc"));
+        assertFalse(ObjDesc.isObjDesc("walkobjdesc"));
+    }
+    
+    @Test
+    public void rejectsDuplicateTypes() {
+        String[] types = { "walkObjDesc", "runObjDesc", "walkObjDesc" };
+        assertThrows(IllegalStateException.class, () -> ObjDesc.createKnownTypesTable(types, new int[2]));
+    }
+    
+    @Test
+    public void rejectsCollidingHashCodes() {
+        // "Aa" and "BB" have the same hash code
+        String[] types = { "AaObjDesc", "BBObjDesc" };
+        assertThrows(IllegalStateException.class, () -> ObjDesc.createKnownTypesTable(types, new int[2]));
+    }
+    
+    @Test
+    public void stopsSearchingForSeeds() {
+        // Five names never fit into the four slots of a single bucket
+        String[] types = { "aObjDesc", "bObjDesc", "cObjDesc", "dObjDesc", "eObjDesc" };
+        assertThrows(IllegalStateException.class, () -> ObjDesc.createKnownTypesTable(types, new int[1]));
+    }
+}
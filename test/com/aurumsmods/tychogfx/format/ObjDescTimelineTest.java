@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static com.aurumsmods.tychogfx.format.TestSequences.createFrame;
+import static com.aurumsmods.tychogfx.format.TestSequences.randomSequence;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * Checks that {@code ObjDescTimeline} reports the same state as an {@code ObjDescSequencer} that is updated tick by tick,
+ * both before and after the steady cycle has been reached.
+ * 
+ * @author Aurum
+ */
+public class ObjDescTimelineTest {
+    private static final int INVALID = ObjDescFrame.INVALID_ARGUMENT;
+    
+    @Test
+    public void matchesSequencerOnRandomSequences() {
+        Random random = new Random(0x13);
+        
+        for (int i = 0 ; i < 500 ; i++) {
+            List<ObjDescFrame> sequence = randomSequence(random);
+            int startFrame = random.nextInt(sequence.size());
+            assertMatchesSequencer(sequence, startFrame, 2000, 1);
+        }
+    }
+    
+    @Test
+    public void compilesLongDurationsPerTransition() {
+        // 300 frames that last for 65536 ticks each, which used to exceed the compile limit
+        List<ObjDescFrame> sequence = new ArrayList();
+        
+        for (int i = 0 ; i < 300 ; i++)
+            sequence.add(createFrame(ObjDescFrame.SeqType.LOOP_SEQUENCE, 65535, i % 3 - 1, INVALID, INVALID, true));
+        
+        ObjDescTimeline timeline = ObjDescTimeline.compile(sequence);
+        assertEquals(300L * 65536L, timeline.cycleLength());
+        
+        // One run per frame for the first loop and the steady cycle after it
+        assertEquals(600, timeline.runCount());
+        
+        assertMatchesSequencer(sequence, 0, 2L * timeline.cycleLength() + 1000L, 997);
+    }
+    
+    @Test
+    public void compilesFramesThatNeverEnd() {
+        List<ObjDescFrame> sequence = new ArrayList();
+        sequence.add(createFrame(ObjDescFrame.SeqType.LOOP_SEQUENCE, 10, 1, -1, INVALID, true));
+        sequence.add(createFrame(ObjDescFrame.SeqType.CANCEL_SEQUENCE, INVALID, INVALID, INVALID, INVALID, false));
+        
+        ObjDescTimeline timeline = ObjDescTimeline.compile(sequence);
+        assertEquals(1L, timeline.cycleLength());
+        assertEquals(1, timeline.shakeDriftX());
+        assertEquals(1, timeline.shakeDriftY());
+        
+        assertMatchesSequencer(sequence, 0, 1000L, 1);
+    }
+    
+    // -------------------------------------------------------------------------------------------------------------------------
+    
+    private static void assertMatchesSequencer(List<ObjDescFrame> sequence, int startFrame, long ticks, int stride) {
+        ObjDescTimeline timeline = ObjDescTimeline.compile(sequence, startFrame);
+        ObjDescSequencer sequencer = new ObjDescSequencer();
+        sequencer.setSequenceAndFrame(sequence, startFrame);
+        
+        for (long tick = 0L ; tick < ticks ; tick++) {
+            if (tick > 0L)
+                sequencer.update();
+            
+            if (tick % stride != 0)
+                continue;
+            
+            ObjDescSequencer.Snapshot snapshot = sequencer.snapshot();
+            String message = "tick " + tick;
+            assertSame(message, snapshot.currentFrame(), timeline.currentFrame(tick));
+            assertSame(message, snapshot.renderFrame(), timeline.renderFrame(tick));
+            assertEquals(message, snapshot.shakeX(), timeline.shakeX(tick));
+            assertEquals(message, snapshot.shakeY(), timeline.shakeY(tick));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2021 Aurum
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aurumsmods.tychogfx.format;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates animation sequences for the sequencer tests. Random sequences mix all sequence types, durations, shaking and
+ * subloops, so they reach the quirks of {@code ObjDescSequencer} much more often than real files do.
+ * 
+ * @author Aurum
+ */
+final class TestSequences {
+    static final int INVALID = ObjDescFrame.INVALID_ARGUMENT;
+    
+    private TestSequences() {
+        throw new IllegalStateException("Instantiation of this class is forbidden!");
+    }
+    
+    /**
+     * Returns a new random sequence of 1 to 8 frames.
+     * 
+     * @param random the source of randomness.
+     * @return the random sequence.
+     */
+    static List<ObjDescFrame> randomSequence(Random random) {
+        int count = 1 + random.nextInt(8);
+        List<ObjDescFrame> sequence = new ArrayList(count);
+        
+        for (int i = 0 ; i < count ; i++) {
+            int type = random.nextInt(20);
+            ObjDescFrame.SeqType seqType;
+            
+            if (type == 0)
+                seqType = ObjDescFrame.SeqType.CANCEL_SEQUENCE;
+            else if (type < 6)
+                seqType = ObjDescFrame.SeqType.ELAPSE_LOOPS;
+            else
+                seqType = ObjDescFrame.SeqType.LOOP_SEQUENCE;
+            
+            int duration = random.nextInt(4) == 0 ? INVALID : random.nextInt(24);
+            int shakeX = random.nextBoolean() ? INVALID : random.nextInt(5) - 2;
+            int shakeY = random.nextBoolean() ? INVALID : random.nextInt(5) - 2;
+            int loopCount = random.nextInt(3) == 0 ? random.nextInt(6) : INVALID;
+            sequence.add(createFrame(seqType, duration, shakeX, shakeY, loopCount, random.nextBoolean()));
+        }
+        
+        return sequence;
+    }
+    
+    /**
+     * Creates a frame with the specified attributes. Frames that are rendered get an empty block of cells, which makes them the
+     * displayed frame of a sequencer.
+     * 
+     * @return the new frame.
+     */
+    static ObjDescFrame createFrame(ObjDescFrame.SeqType seqType, int duration, int shakeX, int shakeY, int loopCount,
+            boolean rendered) {
+        ObjDescFrame frame = new ObjDescFrame();
+        frame.seqType = seqType;
+        frame.duration = duration;
+        frame.shakeArgX = shakeX;
+        frame.shakeArgY = shakeY;
+        frame.loopCount = loopCount;
+        
+        if (rendered) {
+            frame.cells = new ObjDescCells(new short[0], new short[0], new short[0], new byte[0], new byte[0], new int[0],
+                    new byte[0][]);
+            frame.bounds.setBounds(0, 0, 8, 8);
+        }
+        
+        return frame;
+    }
+}